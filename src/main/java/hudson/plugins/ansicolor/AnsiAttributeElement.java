@@ -2,6 +2,8 @@ package hudson.plugins.ansicolor;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.Serializable;
+import java.util.EnumMap;
+import java.util.Map;
 
 /**
  * Represents an HTML elements which maps to an ANSI attribute.
@@ -11,6 +13,8 @@ import java.io.Serializable;
  * <p>
  * How the HTML is actually emitted depends on the specified {@link AnsiAttributeElement.Emitter}. For Jenkins, the Emitter creates {@link hudson.console.ConsoleNote}s as part of the stream, but for
  * other software or testing the HTML may be emitted otherwise.
+ * <p>
+ * Elements are immutable, so the ones returned by the factory methods are shared.
  */
 class AnsiAttributeElement implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -19,10 +23,23 @@ class AnsiAttributeElement implements Serializable {
         DEFAULT, BOLD, FAINT, ITALIC, UNDERLINE, STRIKEOUT, FRAMED, OVERLINE, FG, BG, FGBG
     }
 
-    AnsiAttrType ansiAttrType;
+    private static final AnsiAttributeElement BOLD = new AnsiAttributeElement(AnsiAttrType.BOLD, "b", "");
+    private static final AnsiAttributeElement ITALIC = new AnsiAttributeElement(AnsiAttrType.ITALIC, "i", "");
+    private static final AnsiAttributeElement UNDERLINE = new AnsiAttributeElement(AnsiAttrType.UNDERLINE, "u", "");
+    private static final Map<StyleMode, AnsiAttributeElement> FAINT = styled(AnsiAttrType.FAINT, "ac-faint", "font-weight: lighter;");
+    private static final Map<StyleMode, AnsiAttributeElement> UNDERLINE_DOUBLE = styled(AnsiAttrType.UNDERLINE, "ac-u2", "border-bottom: 3px double;");
+    private static final Map<StyleMode, AnsiAttributeElement> STRIKEOUT = styled(AnsiAttrType.STRIKEOUT, "ac-strike", "text-decoration: line-through;");
+    private static final Map<StyleMode, AnsiAttributeElement> FRAMED = styled(AnsiAttrType.FRAMED, "ac-framed", "border: 1px solid;");
+    private static final Map<StyleMode, AnsiAttributeElement> OVERLINE = styled(AnsiAttrType.OVERLINE, "ac-overline", "text-decoration: overline;");
+
+    final AnsiAttrType ansiAttrType;
+
+    final String name;
+    final String attributes;
 
-    String name;
-    String attributes;
+    // Built on first use rather than on construction so deserialized elements get them as well.
+    private transient String openingTagHtml;
+    private transient String closingTagHtml;
 
     public interface Emitter {
         void emitHtml(@NonNull String html);
@@ -47,13 +64,25 @@ class AnsiAttributeElement implements Serializable {
     }
 
     public void emitOpen(Emitter emitter) {
-        final String openingTagHtml = "<" + name + (attributes.trim().equals("") ? "" : " " + attributes) + ">";
-        emitter.emitHtml(openingTagHtml);
+        emitter.emitHtml(getOpeningTag());
     }
 
     public void emitClose(Emitter emitter) {
-        String closingTagHtml = "</" + name + ">";
-        emitter.emitHtml(closingTagHtml);
+        emitter.emitHtml(getClosingTag());
+    }
+
+    String getOpeningTag() {
+        if (openingTagHtml == null) {
+            openingTagHtml = "<" + name + (attributes.trim().equals("") ? "" : " " + attributes) + ">";
+        }
+        return openingTagHtml;
+    }
+
+    String getClosingTag() {
+        if (closingTagHtml == null) {
+            closingTagHtml = "</" + name + ">";
+        }
+        return closingTagHtml;
     }
 
     @Override
@@ -84,36 +113,64 @@ class AnsiAttributeElement implements Serializable {
         return "AnsiAttributeElement{ansiAttrType=" + ansiAttrType + ",name=" + name + ",attributes=" + attributes + "}";
     }
 
+    private static Map<StyleMode, AnsiAttributeElement> styled(AnsiAttrType ansiAttrType, String cssClass, String style) {
+        final Map<StyleMode, AnsiAttributeElement> elements = new EnumMap<>(StyleMode.class);
+        for (StyleMode styleMode : StyleMode.values()) {
+            elements.put(styleMode, new AnsiAttributeElement(ansiAttrType, "span", styleMode.attributes(cssClass, style)));
+        }
+        return elements;
+    }
+
     public static AnsiAttributeElement bold() {
-        return new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.BOLD, "b", "");
+        return BOLD;
     }
 
     public static AnsiAttributeElement faint() {
-        return new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.FAINT, "span", "style=\"font-weight: lighter;\"");
+        return faint(StyleMode.INLINE);
+    }
+
+    public static AnsiAttributeElement faint(StyleMode styleMode) {
+        return FAINT.get(styleMode);
     }
 
     public static AnsiAttributeElement italic() {
-        return new AnsiAttributeElement(AnsiAttrType.ITALIC, "i", "");
+        return ITALIC;
     }
 
     public static AnsiAttributeElement underline() {
-        return new AnsiAttributeElement(AnsiAttrType.UNDERLINE, "u", "");
+        return UNDERLINE;
     }
 
     public static AnsiAttributeElement underlineDouble() {
-        return new AnsiAttributeElement(AnsiAttrType.UNDERLINE, "span", "style=\"border-bottom: 3px double;\"");
+        return underlineDouble(StyleMode.INLINE);
+    }
+
+    public static AnsiAttributeElement underlineDouble(StyleMode styleMode) {
+        return UNDERLINE_DOUBLE.get(styleMode);
     }
 
     public static AnsiAttributeElement strikeout() {
-        return new AnsiAttributeElement(AnsiAttrType.STRIKEOUT, "span", "style=\"text-decoration: line-through;\"");
+        return strikeout(StyleMode.INLINE);
+    }
+
+    public static AnsiAttributeElement strikeout(StyleMode styleMode) {
+        return STRIKEOUT.get(styleMode);
     }
 
     public static AnsiAttributeElement framed() {
-        return new AnsiAttributeElement(AnsiAttrType.FRAMED, "span", "style=\"border: 1px solid;\"");
+        return framed(StyleMode.INLINE);
+    }
+
+    public static AnsiAttributeElement framed(StyleMode styleMode) {
+        return FRAMED.get(styleMode);
     }
 
     public static AnsiAttributeElement overline() {
-        return new AnsiAttributeElement(AnsiAttrType.OVERLINE, "span", "style=\"text-decoration: overline;\"");
+        return overline(StyleMode.INLINE);
+    }
+
+    public static AnsiAttributeElement overline(StyleMode styleMode) {
+        return OVERLINE.get(styleMode);
     }
 
 }
@@ -27,23 +27,29 @@ import hudson.EnvVars;
 import hudson.Extension;
 import hudson.FilePath;
 import hudson.Launcher;
+import hudson.console.ConsoleLogFilter;
+import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
 import hudson.model.Run;
 import hudson.model.TaskListener;
-import hudson.plugins.ansicolor.action.ActionNote;
+import hudson.plugins.ansicolor.action.CommandNote;
 import hudson.plugins.ansicolor.action.ColorizedAction;
+import hudson.plugins.ansicolor.action.ColorizedActionTable;
 import hudson.tasks.BuildWrapper;
 import hudson.tasks.BuildWrapperDescriptor;
 import hudson.util.FormValidation;
 import hudson.util.ListBoxModel;
 import jenkins.tasks.SimpleBuildWrapper;
+import jenkins.util.JenkinsJVM;
 import net.sf.json.JSONObject;
 import org.kohsuke.stapler.DataBoundConstructor;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest2;
 
+import edu.umd.cs.findbugs.annotations.NonNull;
 import jakarta.servlet.ServletException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -83,8 +89,29 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
     @Override
     public void setUp(Context context, Run<?, ?> build, FilePath workspace, Launcher launcher, TaskListener listener, EnvVars initialEnvironment) throws IOException, InterruptedException {
         final ColorizedAction action = new ColorizedAction(colorMapName, ColorizedAction.Command.START);
-        build.replaceAction(action);
-        listener.annotate(new ActionNote(action));
+        ColorizedActionTable.getOrCreate(build).add(action);
+        listener.annotate(new CommandNote(action));
+    }
+
+    @Override
+    public ConsoleLogFilter createLoggerDecorator(@NonNull Run<?, ?> build) {
+        return getDescriptor().isSeparateStyles() ? new SeparateStylesFilter() : null;
+    }
+
+    /**
+     * Strips the escape sequences from the log of a freestyle build, keeping its styles in a {@link StyleSidecar}.
+     */
+    private static final class SeparateStylesFilter extends ConsoleLogFilter implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public OutputStream decorateLogger(Run build, OutputStream logger) throws IOException, InterruptedException {
+            if (!(build instanceof AbstractBuild) || !JenkinsJVM.isJenkinsJVM()) {
+                // Loggers of Pipeline steps may be decorated on agents, where the sidecar cannot be written.
+                return logger;
+            }
+            return StyleSidecar.record(build, logger);
+        }
     }
 
     /**
@@ -96,6 +123,8 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
         private static final Map<String, Function<AnsiColorMap, String>> VALIDATED_FIELDS = new HashMap<>();
         private AnsiColorMap[] colorMaps = new AnsiColorMap[0];
         private String globalColorMapName;
+        private StyleMode styleMode;
+        private boolean separateStyles;
 
         static {
             VALIDATED_FIELDS.put("black", AnsiColorMap::getBlack);
@@ -152,8 +181,11 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
                 if (!globalColorMapName.isEmpty() && colorMaps.stream().noneMatch(cm -> cm.getName().equals(globalColorMapName))) {
                     throw new FormException("Global color map name must match one of the color maps", "globalColorMapName");
                 }
+                final String styleMode = req.getSubmittedForm().optString("styleMode");
                 setColorMaps(colorMaps.toArray(new AnsiColorMap[0]));
                 setGlobalColorMapName(globalColorMapName.isEmpty() ? null : globalColorMapName);
+                setStyleMode(styleMode.isEmpty() ? null : StyleMode.valueOf(styleMode));
+                setSeparateStyles(req.getSubmittedForm().optBoolean("separateStyles"));
                 save();
                 return true;
             } catch (ServletException e) {
@@ -272,6 +304,25 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
             globalColorMapName = colorMapName;
         }
 
+        public StyleMode getStyleMode() {
+            return styleMode == null ? StyleMode.INLINE : styleMode;
+        }
+
+        public void setStyleMode(StyleMode styleMode) {
+            this.styleMode = styleMode;
+        }
+
+        /**
+         * @return Whether freestyle builds write their logs as plain text, with the styles kept next to them.
+         */
+        public boolean isSeparateStyles() {
+            return separateStyles;
+        }
+
+        public void setSeparateStyles(boolean separateStyles) {
+            this.separateStyles = separateStyles;
+        }
+
         public AnsiColorMap[] getColorMaps() {
             return withDefaults(colorMaps);
         }
@@ -313,6 +364,15 @@ public final class AnsiColorBuildWrapper extends SimpleBuildWrapper implements S
             return m;
         }
 
+        @SuppressWarnings("unused")
+        public ListBoxModel doFillStyleModeItems() {
+            ListBoxModel m = new ListBoxModel();
+            for (StyleMode mode : StyleMode.values()) {
+                m.add(mode.getDisplayName(), mode.name());
+            }
+            return m;
+        }
+
         @SuppressWarnings("unused")
         public ListBoxModel doFillDefaultBackgroundItems() {
             return doFillDefaultForegroundItems();
@@ -7,11 +7,15 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import jenkins.util.JenkinsJVM;
+import org.apache.commons.io.output.NullOutputStream;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
 
@@ -26,6 +30,28 @@ public final class AnsiColorConsoleLogFilter extends ConsoleLogFilter implements
 
     private static final Logger LOGGER = Logger.getLogger(AnsiColorConsoleLogFilter.class.getName());
 
+    /**
+     * Upper bound on the notes encoded once and shared by all the filters of this JVM, the least recently used ones are
+     * dropped beyond it.
+     */
+    private static final int MAX_SHARED_NOTES = Integer.getInteger(AnsiColorConsoleLogFilter.class.getName() + ".maxSharedNotes", 8192);
+
+    private static final Map<String, byte[]> SHARED_NOTES = Collections.synchronizedMap(new LinkedHashMap<String, byte[]>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, byte[]> eldest) {
+            return size() > MAX_SHARED_NOTES;
+        }
+    });
+
+    /**
+     * The styles most builds use, whose notes every filter carries so that agents do not have to encode them. These
+     * are the SGR attributes, the 16 colors of the color map as foreground and background, and both combined with the
+     * default colors in negative mode. Anything else is encoded when it is first written.
+     */
+    private static final byte[] HOT_SEQUENCES = hotSequences();
+
     private AnsiColorMap colorMap;
     private final Map<String, byte[]> notes;
 
@@ -33,38 +59,57 @@ public final class AnsiColorConsoleLogFilter extends ConsoleLogFilter implements
         super();
         this.colorMap = colorMap;
         this.notes = new HashMap<>();
-        // some cases of AnsiHtmlOutputStream.setForegroundColor:
-        for (AnsiColorMap.Color color : AnsiColorMap.Color.values()) {
-            pregenerateNote(new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.FG, "span", "style=\"color: " + colorMap.getNormal(color.ordinal()) + ";\""));
-            pregenerateNote(new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.FG, "span", "style=\"color: " + colorMap.getBright(color.ordinal()) + ";\""));
+        // Run the common styles through the stream, so that their notes can still be written where they cannot be
+        // encoded, i.e. on agents.
+        try (AnsiHtmlOutputStream stream = new AnsiHtmlOutputStream(new NullOutputStream(), colorMap, this::pregenerateNote)) {
+            stream.write(HOT_SEQUENCES);
+        } catch (IOException x) { // should be impossible
+            throw new RuntimeException(x);
         }
-        pregenerateNote(AnsiAttributeElement.bold());
-        pregenerateNote(AnsiAttributeElement.italic());
-        pregenerateNote(AnsiAttributeElement.underline());
-        pregenerateNote(AnsiAttributeElement.underlineDouble());
-        pregenerateNote(AnsiAttributeElement.strikeout());
-        pregenerateNote(AnsiAttributeElement.framed());
-        pregenerateNote(AnsiAttributeElement.overline());
-        // TODO other cases, and other methods
-        LOGGER.log(Level.FINE, "Notes pregenerated for {0}", notes.keySet());
+        LOGGER.log(Level.FINE, "{0} notes pregenerated for {1}", new Object[] {notes.size(), colorMap.getName()});
     }
 
-    private void pregenerateNote(AnsiAttributeElement element) {
-        element.emitOpen(html -> pregenerateNote(html));
-        element.emitClose(html -> pregenerateNote(html));
+    private static byte[] hotSequences() {
+        final StringBuilder sequences = new StringBuilder();
+        final int[] attributes = {1, 2, 3, 4, 7, 8, 9, 21, 51, 53};
+        for (int attribute : attributes) {
+            sequences.append("\033[").append(attribute).append("mx\033[0m");
+        }
+        final int[] colors = {30, 40, 90, 100};
+        for (int color : colors) {
+            for (int i = 0; i < 8; i++) {
+                sequences.append("\033[").append(color + i).append("mx\033[7mx\033[0m");
+            }
+        }
+        return sequences.toString().getBytes(StandardCharsets.US_ASCII);
     }
 
     private void pregenerateNote(String html) {
         if (!notes.containsKey(html)) {
             JenkinsJVM.checkJenkinsJVM();
+            notes.put(html, sharedNote(html));
+        }
+    }
+
+    /**
+     * @return The note for this markup, encoded once for all the builds of this JVM while it is in use.
+     */
+    private static byte[] sharedNote(String html) {
+        byte[] encoded = SHARED_NOTES.get(html);
+        if (encoded == null) {
             ByteArrayOutputStream baos = new ByteArrayOutputStream();
             try {
                 new SimpleHtmlNote(html).encodeTo(baos);
             } catch (IOException x) { // should be impossible
                 throw new RuntimeException(x);
             }
-            notes.put(html, baos.toByteArray());
+            encoded = baos.toByteArray();
+            final byte[] existing = SHARED_NOTES.putIfAbsent(html, encoded);
+            if (existing != null) {
+                encoded = existing;
+            }
         }
+        return encoded;
     }
 
     private Object readResolve() { // handle old program.dat
@@ -86,6 +131,8 @@ public final class AnsiColorConsoleLogFilter extends ConsoleLogFilter implements
                     byte[] pregenerated = notes.get(html);
                     if (pregenerated != null) {
                         logger.write(pregenerated);
+                    } else if (JenkinsJVM.isJenkinsJVM()) {
+                        logger.write(sharedNote(html));
                     } else {
                         // TODO decline to use pregenerated form of end tag if start tag could not be pregenerated
                         new SimpleHtmlNote(html).encodeTo(logger);
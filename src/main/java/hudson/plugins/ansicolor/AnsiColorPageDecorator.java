@@ -0,0 +1,89 @@
+package hudson.plugins.ansicolor;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.PageDecorator;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
+
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Links the stylesheet backing the markup of the configured {@link StyleMode} into every page.
+ * <p>
+ * The stylesheet covers all color maps, each scoped to the elements wrapping the output rendered with it, so the output
+ * of every run is shown in the color maps it uses, whichever pages it appears on. The stylesheet is generated once for
+ * the configured color maps and served with an ETag; the link carries that ETag too, so browsers may cache it for good.
+ */
+@Extension
+public final class AnsiColorPageDecorator extends PageDecorator {
+
+    private transient volatile Stylesheet stylesheet;
+
+    public boolean isEnabled() {
+        return !getStylesheet().css.isEmpty();
+    }
+
+    /**
+     * @return The URL of the stylesheet, relative to the root URL.
+     */
+    public String getStylesheetUrl() {
+        return "descriptorByName/" + getId() + "/stylesheet?v=" + getStylesheet().digest;
+    }
+
+    @GET
+    public void doStylesheet(StaplerRequest2 req, StaplerResponse2 rsp) throws IOException {
+        final Stylesheet stylesheet = getStylesheet();
+        final String etag = "\"" + stylesheet.digest + "\"";
+        rsp.setHeader("ETag", etag);
+        rsp.setHeader("Cache-Control", "public, max-age=31536000");
+        if (etag.equals(req.getHeader("If-None-Match"))) {
+            rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+        rsp.setContentType("text/css;charset=UTF-8");
+        rsp.getWriter().write(stylesheet.css);
+    }
+
+    private Stylesheet getStylesheet() {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = getWrapperDescriptor();
+        final StyleMode styleMode = descriptor.getStyleMode();
+        final List<AnsiColorMap> colorMaps = new ArrayList<>();
+        // The global color map comes first.
+        final String name = descriptor.getGlobalColorMapName();
+        colorMaps.add(name != null ? descriptor.getColorMap(name) : AnsiColorMap.Default);
+        for (AnsiColorMap colorMap : descriptor.getColorMaps()) {
+            if (!colorMaps.contains(colorMap)) {
+                colorMaps.add(colorMap);
+            }
+        }
+        Stylesheet result = stylesheet;
+        if (result == null || result.styleMode != styleMode || !result.colorMaps.equals(colorMaps)) {
+            stylesheet = result = new Stylesheet(styleMode, colorMaps, styleMode.stylesheet(colorMaps.toArray(new AnsiColorMap[0])));
+        }
+        return result;
+    }
+
+    private static AnsiColorBuildWrapper.DescriptorImpl getWrapperDescriptor() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+    }
+
+    private static final class Stylesheet {
+        private final StyleMode styleMode;
+        private final List<AnsiColorMap> colorMaps;
+        private final String css;
+        private final String digest;
+
+        Stylesheet(StyleMode styleMode, List<AnsiColorMap> colorMaps, String css) {
+            this.styleMode = styleMode;
+            this.colorMaps = colorMaps;
+            this.css = css;
+            this.digest = Util.getDigestOf(css);
+        }
+    }
+}
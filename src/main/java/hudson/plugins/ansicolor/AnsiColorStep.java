@@ -5,14 +5,17 @@ import hudson.ExtensionList;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.plugins.ansicolor.AnsiColorBuildWrapper.DescriptorImpl;
-import hudson.plugins.ansicolor.action.ActionNote;
+import hudson.plugins.ansicolor.action.CommandNote;
 import hudson.plugins.ansicolor.action.ColorizedAction;
+import hudson.plugins.ansicolor.action.ColorizedActionTable;
 import hudson.util.ListBoxModel;
 import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.workflow.graph.FlowNode;
 import org.jenkinsci.plugins.workflow.log.TaskListenerDecorator;
 import org.jenkinsci.plugins.workflow.steps.*;
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import java.io.IOException;
 import java.util.*;
@@ -71,9 +74,11 @@ public class AnsiColorStep extends Step {
 
             EnvironmentExpander currentEnvironment = context.get(EnvironmentExpander.class);
             EnvironmentExpander terminalEnvironment = EnvironmentExpander.constant(Collections.singletonMap("TERM", colorMapName));
+            // The output of the body is enclosed by the node of this step, which identifies the block.
+            FlowNode node = context.get(FlowNode.class);
             context.newBodyInvoker()
                 .withContext(EnvironmentExpander.merge(currentEnvironment, terminalEnvironment))
-                .withCallback(new AnsiColorExecution(colorMapName))
+                .withCallback(new AnsiColorExecution(colorMapName, node != null ? node.getId() : null))
                 .start();
             return false;
         }
@@ -124,6 +129,9 @@ public class AnsiColorStep extends Step {
 
         private final String colorMapName;
 
+        @CheckForNull
+        private final String blockId;
+
         private Boolean needsPrintln;
 
         static {
@@ -135,8 +143,9 @@ public class AnsiColorStep extends Step {
             EXTENSIONS_NL.put(StepDescriptor.class, new String[]{"plugins.pipeline.maven"});
         }
 
-        public AnsiColorExecution(String colorMapName) {
+        public AnsiColorExecution(String colorMapName, @CheckForNull String blockId) {
             this.colorMapName = colorMapName;
+            this.blockId = blockId;
         }
 
         @Override
@@ -162,15 +171,14 @@ public class AnsiColorStep extends Step {
                 final TaskListener taskListener = context.get(TaskListener.class);
                 final Run<?, ?> run = context.get(Run.class);
                 if (taskListener != null && run != null) {
-                    run.addAction(action);
-                    taskListener.annotate(new ActionNote(action));
-                    ensureRendering(taskListener);
-                    final ColorizedAction currentAction = new ColorizedAction(action.getColorMapName(), ColorizedAction.Command.CURRENT);
-                    if (action.getCommand().equals(ColorizedAction.Command.START)) {
-                        run.addAction(currentAction);
+                    final ColorizedActionTable table = ColorizedActionTable.getOrCreate(run);
+                    if (blockId != null) {
+                        table.add(action, blockId);
                     } else {
-                        run.removeAction(currentAction);
+                        table.add(action);
                     }
+                    taskListener.annotate(new CommandNote(action));
+                    ensureRendering(taskListener);
                 }
             } catch (IOException | InterruptedException e) {
                 LOGGER.log(Level.WARNING, "Could not annotate. Ansicolor plugin will not work correctly.", e);
@@ -0,0 +1,70 @@
+package hudson.plugins.ansicolor;
+
+import java.io.IOException;
+
+/**
+ * Receives the text and the escape sequences parsed by an {@link AnsiEventStream}, in the order they appear.
+ * <p>
+ * Arrays passed to a listener are reused by the stream, they are only valid for the duration of the call.
+ */
+public interface AnsiEventListener {
+
+    /**
+     * A run of plain text, up to the next escape sequence or flush.
+     */
+    default void onText(byte[] bytes, int offset, int length) throws IOException {
+    }
+
+    /**
+     * A part of a {@link hudson.console.ConsoleNote} embedded in the text, from its preamble to its postamble. Notes are
+     * passed on as they are, without looking for escape sequences in them, and may come in several parts.
+     */
+    default void onNote(byte[] bytes, int offset, int length) throws IOException {
+    }
+
+    /**
+     * A Select Graphic Rendition sequence, {@code ESC[...m}.
+     *
+     * @param params The parameters of the sequence, without the omitted ones; a sequence without any is a single
+     * {@code 0} (reset).
+     * @param count The number of parameters in {@code params}.
+     */
+    default void onSgr(int[] params, int count) throws IOException {
+    }
+
+    /**
+     * A cursor, erase or scroll sequence.
+     *
+     * @param command The final char of the sequence, e.g. {@code 'A'} for cursor up or {@code 'K'} for erase line.
+     * @param first Its first parameter, defaults applied.
+     * @param second Its second parameter for {@code 'H'} (column), {@code 0} otherwise.
+     */
+    default void onCursor(char command, int first, int second) throws IOException {
+    }
+
+    /**
+     * An Operating System Command, {@code ESC]command;param} terminated by BEL or ST.
+     */
+    default void onOsc(int command, String param) throws IOException {
+    }
+
+    /**
+     * A character set selection, {@code ESC(seq} or {@code ESC)seq}.
+     *
+     * @param set {@code '0'} for G0, {@code '1'} for G1.
+     */
+    default void onCharset(int set, char seq) throws IOException {
+    }
+
+    /**
+     * The stream was flushed, after the text written so far was passed on.
+     */
+    default void onFlush() throws IOException {
+    }
+
+    /**
+     * The stream was closed, nothing comes after.
+     */
+    default void onClose() throws IOException {
+    }
+}
@@ -0,0 +1,359 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Parses its input once and hands the text and the escape sequences to any number of {@link AnsiEventListener}s, so
+ * that stripping, indexing or collecting statistics over the same bytes do not each need their own parser.
+ * <p>
+ * Text is passed on in runs, buffered up to the next escape sequence or flush rather than byte by byte. Nothing is
+ * written anywhere else, listeners decide what to do with the text, see {@link PlainTextSink} and {@link HtmlSink}.
+ * <p>
+ * Console notes embedded in the text are recognized by their preamble and passed on as they are, like
+ * {@link AnsiHtmlOutputStream} does. Sequences with malformed parameters are passed on as text.
+ */
+public class AnsiEventStream extends AnsiOutputStream {
+
+    private static final int FIRST_ESC_CHAR = 27;
+
+    private enum State {
+        DATA, PREAMBLE, NOTE, POSTAMBLE
+    }
+
+    private final TextBuffer text;
+    private final AnsiEventListener[] listeners;
+    private int[] params = new int[8];
+    private State state = State.DATA;
+    private int amblePos;
+
+    public AnsiEventStream(AnsiEventListener... listeners) {
+        this(new TextBuffer(listeners.clone()));
+    }
+
+    private AnsiEventStream(TextBuffer text) {
+        super(text);
+        this.text = text;
+        this.listeners = text.listeners;
+    }
+
+    @Override
+    public void write(int data) throws IOException {
+        switch (state) {
+            case DATA:
+                if (data == ConsoleNote.PREAMBLE[0]) {
+                    state = State.PREAMBLE;
+                    amblePos = 0;
+                    collectAmbleCharacter(data, ConsoleNote.PREAMBLE);
+                } else {
+                    super.write(data);
+                }
+                break;
+            case NOTE:
+                if (data == ConsoleNote.POSTAMBLE[0]) {
+                    state = State.POSTAMBLE;
+                    amblePos = 0;
+                    collectAmbleCharacter(data, ConsoleNote.POSTAMBLE);
+                } else {
+                    text.writeNote(data);
+                }
+                break;
+            case PREAMBLE:
+                collectAmbleCharacter(data, ConsoleNote.PREAMBLE);
+                break;
+            case POSTAMBLE:
+                collectAmbleCharacter(data, ConsoleNote.POSTAMBLE);
+                break;
+            default:
+                throw new IllegalStateException("State " + state + " should not be reached");
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        final int end = off + len;
+        while (off < end) {
+            if (state == State.DATA && isInText() || state == State.NOTE) {
+                int esc = off;
+                while (esc < end && b[esc] != FIRST_ESC_CHAR) {
+                    esc++;
+                }
+                if (esc > off) {
+                    if (state == State.NOTE) {
+                        text.writeNote(b, off, esc - off);
+                    } else {
+                        text.write(b, off, esc - off);
+                    }
+                    off = esc;
+                    continue;
+                }
+            }
+            write(b[off++]);
+        }
+    }
+
+    private void collectAmbleCharacter(int data, byte[] amble) throws IOException {
+        if (data != amble[amblePos]) {
+            // Not an amble after all, the bytes collected so far are replayed.
+            replayAmble(amble);
+            write(data);
+        } else if (amblePos == amble.length - 1) {
+            text.writeNote(amble, 0, amble.length);
+            state = state == State.POSTAMBLE ? State.DATA : State.NOTE;
+            amblePos = 0;
+        } else {
+            amblePos++;
+        }
+    }
+
+    private void replayAmble(byte[] amble) throws IOException {
+        final int collected = amblePos;
+        amblePos = 0;
+        if (state == State.POSTAMBLE) {
+            state = State.NOTE;
+            text.writeNote(amble, 0, collected);
+        } else {
+            state = State.DATA;
+            for (int i = 0; i < collected; i++) {
+                super.write(amble[i]);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (state == State.PREAMBLE) {
+            replayAmble(ConsoleNote.PREAMBLE);
+        } else if (state == State.POSTAMBLE) {
+            replayAmble(ConsoleNote.POSTAMBLE);
+        }
+        super.close();
+    }
+
+    @Override
+    protected void processGraphicRendition(ArrayList<Object> options) throws IOException {
+        int count = 0;
+        for (Object option : options) {
+            if (option == null) {
+                continue;
+            } else if (option.getClass() != Integer.class) {
+                throw new IllegalArgumentException();
+            }
+            if (count == params.length) {
+                params = Arrays.copyOf(params, count * 2);
+            }
+            params[count++] = (Integer) option;
+        }
+        if (count == 0) {
+            params[count++] = 0;
+        }
+        validateGraphicRendition(params, count);
+        text.flushText();
+        for (AnsiEventListener listener : listeners) {
+            listener.onSgr(params, count);
+        }
+    }
+
+    // Extended colors are checked the way AnsiOutputStream does before anything is passed on.
+    private static void validateGraphicRendition(int[] params, int count) {
+        for (int i = 0; i < count; i++) {
+            if ((params[i] == 38 || params[i] == 48) && i + 1 < count) {
+                final int components = params[i + 1] == 5 ? 1 : params[i + 1] == 2 ? 3 : -1;
+                if (components < 0 || i + 1 + components >= count) {
+                    throw new IllegalArgumentException();
+                }
+                for (int j = i + 2; j <= i + 1 + components; j++) {
+                    if (params[j] < 0 || params[j] > 255) {
+                        throw new IllegalArgumentException();
+                    }
+                }
+                i += 1 + components;
+            }
+        }
+    }
+
+    @Override
+    protected void processOperatingSystemCommand(int command, String label) throws IOException {
+        text.flushText();
+        for (AnsiEventListener listener : listeners) {
+            listener.onOsc(command, label);
+        }
+    }
+
+    @Override
+    protected void processCharsetSelect(int set, char seq) throws IOException {
+        text.flushText();
+        for (AnsiEventListener listener : listeners) {
+            listener.onCharset(set, seq);
+        }
+    }
+
+    @Override
+    protected void processCursorUp(int count) throws IOException {
+        cursor('A', count, 0);
+    }
+
+    @Override
+    protected void processCursorDown(int count) throws IOException {
+        cursor('B', count, 0);
+    }
+
+    @Override
+    protected void processCursorRight(int count) throws IOException {
+        cursor('C', count, 0);
+    }
+
+    @Override
+    protected void processCursorLeft(int count) throws IOException {
+        cursor('D', count, 0);
+    }
+
+    @Override
+    protected void processCursorDownLine(int count) throws IOException {
+        cursor('E', count, 0);
+    }
+
+    @Override
+    protected void processCursorUpLine(int count) throws IOException {
+        cursor('F', count, 0);
+    }
+
+    @Override
+    protected void processCursorToColumn(int x) throws IOException {
+        cursor('G', x, 0);
+    }
+
+    @Override
+    protected void processCursorTo(int row, int col) throws IOException {
+        cursor('H', row, col);
+    }
+
+    @Override
+    protected void processEraseScreen(int eraseOption) throws IOException {
+        cursor('J', eraseOption, 0);
+    }
+
+    @Override
+    protected void processEraseLine(int eraseOption) throws IOException {
+        cursor('K', eraseOption, 0);
+    }
+
+    @Override
+    protected void processScrollUp(int optionInt) throws IOException {
+        cursor('S', optionInt, 0);
+    }
+
+    @Override
+    protected void processScrollDown(int optionInt) throws IOException {
+        cursor('T', optionInt, 0);
+    }
+
+    @Override
+    protected void processSaveCursorPosition() throws IOException {
+        cursor('s', 0, 0);
+    }
+
+    @Override
+    protected void processRestoreCursorPosition() throws IOException {
+        cursor('u', 0, 0);
+    }
+
+    private void cursor(char command, int first, int second) throws IOException {
+        text.flushText();
+        for (AnsiEventListener listener : listeners) {
+            listener.onCursor(command, first, second);
+        }
+    }
+
+    /**
+     * Collects the text written by the parser and the notes, and hands them to the listeners as runs.
+     */
+    private static final class TextBuffer extends OutputStream {
+        private final AnsiEventListener[] listeners;
+        private final byte[] buffer = new byte[8192];
+        private int size;
+        // Whether the buffer holds a part of a note rather than text.
+        private boolean note;
+
+        TextBuffer(AnsiEventListener[] listeners) {
+            this.listeners = listeners;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            append(b, false);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            append(b, off, len, false);
+        }
+
+        void writeNote(int b) throws IOException {
+            append(b, true);
+        }
+
+        void writeNote(byte[] b, int off, int len) throws IOException {
+            append(b, off, len, true);
+        }
+
+        private void append(int b, boolean note) throws IOException {
+            if (size == buffer.length || note != this.note) {
+                flushText();
+                this.note = note;
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        private void append(byte[] b, int off, int len, boolean note) throws IOException {
+            if (len > buffer.length - size || note != this.note) {
+                flushText();
+                this.note = note;
+                if (len >= buffer.length) {
+                    // Large runs are not copied.
+                    pass(b, off, len);
+                    return;
+                }
+            }
+            System.arraycopy(b, off, buffer, size, len);
+            size += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            flushText();
+            for (AnsiEventListener listener : listeners) {
+                listener.onFlush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushText();
+            for (AnsiEventListener listener : listeners) {
+                listener.onClose();
+            }
+        }
+
+        void flushText() throws IOException {
+            if (size > 0) {
+                pass(buffer, 0, size);
+                size = 0;
+            }
+        }
+
+        private void pass(byte[] b, int off, int len) throws IOException {
+            for (AnsiEventListener listener : listeners) {
+                if (note) {
+                    listener.onNote(b, off, len);
+                } else {
+                    listener.onText(b, off, len);
+                }
+            }
+        }
+    }
+}
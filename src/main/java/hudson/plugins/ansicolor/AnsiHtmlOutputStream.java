@@ -31,9 +31,9 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
-import java.util.Stack;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import edu.umd.cs.findbugs.annotations.NonNull;
 
 /**
@@ -49,7 +49,19 @@ import edu.umd.cs.findbugs.annotations.NonNull;
  * handling via state machine. Simply remove this if you plan to use this class somewhere else.
  */
 public class AnsiHtmlOutputStream extends AnsiOutputStream {
+    // Colors are tracked as int codes: 0…255 are palette indices (0…15 being the normal and bright colors of the color
+    // map), 24 bit colors are flagged by RGB_FLAG and negative values are special.
+    static final int PALETTE_SIZE = 256;
+    static final int NO_COLOR = -1;
+    private static final int CURRENT_COLOR = -2;
+    static final int RGB_FLAG = 1 << 24;
+
+    private static final OutputStream CONCEALED = new NullStream();
+
+    private static final AnsiAttrType[] COLOR_TYPES = {AnsiAttrType.FG, AnsiAttrType.BG, AnsiAttrType.FGBG};
+
     private final AnsiColorMap colorMap;
+    private final StyleMode styleMode;
     private final AnsiAttributeElement.Emitter emitter;
 
     private enum State {
@@ -58,32 +70,33 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
     private State state = State.INIT;
     private int amblePos = 0;
 
-    private String currentForegroundColor = null;
-    private String currentBackgroundColor = null;
+    private int currentForegroundColor = NO_COLOR;
+    private int currentBackgroundColor = NO_COLOR;
     private boolean swapColors = false;  // true if negative / inverse mode is active (esc[7m)
 
-    // A Deque might be a better choice, but we are constrained by the Java 5 API.
-    private final ArrayList<AnsiAttributeElement> openTags;
+    private final TagStack openTags = new TagStack();
+    private ColorElements colorElements;
+    private StyleState stateToOpen;
 
     private final OutputStream logOutput;
 
     /**
-     * @param tagsToOpen A list of tags to open in the given order immediately after opening the tag for the default
-     * foreground/background colors (if such colors are specified by the color map) before any data is written to the
-     * underlying stream.
+     * @param stateToOpen The style to open immediately after opening the tag for the default foreground/background
+     * colors (if such colors are specified by the color map) before any data is written to the underlying stream.
      */
-    /*package*/ AnsiHtmlOutputStream(final OutputStream os, final AnsiColorMap colorMap,
-        final AnsiAttributeElement.Emitter emitter, @NonNull List<AnsiAttributeElement> tagsToOpen) {
+    /*package*/ AnsiHtmlOutputStream(final OutputStream os, final AnsiColorMap colorMap, final StyleMode styleMode,
+        final AnsiAttributeElement.Emitter emitter, @NonNull StyleState stateToOpen) {
         super(os);
         this.logOutput = os;
         this.colorMap = colorMap;
+        this.styleMode = styleMode;
         this.emitter = emitter;
-        this.openTags = new ArrayList<>(tagsToOpen);
+        this.stateToOpen = stateToOpen;
     }
 
     public AnsiHtmlOutputStream(final OutputStream os, final AnsiColorMap colorMap,
         final AnsiAttributeElement.Emitter emitter) {
-        this(os, colorMap, emitter, Collections.emptyList());
+        this(os, colorMap, StyleMode.INLINE, emitter, StyleState.DEFAULT);
     }
 
     // Debug output for plugin developers. Puts the debug message into the html page
@@ -101,7 +114,7 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
      * Both the start- and stop-Method are idempotent and may be called regardless of current concealing state.
      */
     private void startConcealing() {
-        this.out = new NullStream();
+        this.out = CONCEALED;
     }
 
     private void stopConcealing() {
@@ -109,14 +122,49 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
     }
 
     /**
-     * @return A copy of the {@link AnsiAttributeElement}s which are currently opened, in order from outermost to innermost tag.
+     * @return The style currently in effect, not including the default colors of the color map.
      */
-    /*package*/ List<AnsiAttributeElement> getOpenTags() {
-        return new ArrayList<>(openTags);
+    /*package*/ StyleState getState() {
+        if (stateToOpen != null) {
+            // Nothing has been written yet.
+            return stateToOpen;
+        }
+        int attributes = 0;
+        if (openTags.lastIndexOf(AnsiAttrType.BOLD) >= 0) attributes |= StyleState.BOLD;
+        if (openTags.lastIndexOf(AnsiAttrType.FAINT) >= 0) attributes |= StyleState.FAINT;
+        if (openTags.lastIndexOf(AnsiAttrType.ITALIC) >= 0) attributes |= StyleState.ITALIC;
+        int underline = openTags.lastIndexOf(AnsiAttrType.UNDERLINE);
+        if (underline >= 0) {
+            attributes |= openTags.get(underline) == AnsiAttributeElement.underline() ? StyleState.UNDERLINE : StyleState.UNDERLINE_DOUBLE;
+        }
+        if (openTags.lastIndexOf(AnsiAttrType.STRIKEOUT) >= 0) attributes |= StyleState.STRIKEOUT;
+        if (openTags.lastIndexOf(AnsiAttrType.FRAMED) >= 0) attributes |= StyleState.FRAMED;
+        if (openTags.lastIndexOf(AnsiAttrType.OVERLINE) >= 0) attributes |= StyleState.OVERLINE;
+        return StyleState.of(attributes, currentForegroundColor, currentBackgroundColor, swapColors);
+    }
+
+    private void openState(StyleState state) {
+        if (state.has(StyleState.BOLD)) openTag(AnsiAttributeElement.bold());
+        if (state.has(StyleState.FAINT)) openTag(AnsiAttributeElement.faint(styleMode));
+        if (state.has(StyleState.ITALIC)) openTag(AnsiAttributeElement.italic());
+        if (state.has(StyleState.UNDERLINE)) openTag(AnsiAttributeElement.underline());
+        if (state.has(StyleState.UNDERLINE_DOUBLE)) openTag(AnsiAttributeElement.underlineDouble(styleMode));
+        if (state.has(StyleState.STRIKEOUT)) openTag(AnsiAttributeElement.strikeout(styleMode));
+        if (state.has(StyleState.FRAMED)) openTag(AnsiAttributeElement.framed(styleMode));
+        if (state.has(StyleState.OVERLINE)) openTag(AnsiAttributeElement.overline(styleMode));
+        currentForegroundColor = state.getForeground();
+        currentBackgroundColor = state.getBackground();
+        swapColors = state.isSwapColors();
+        openColorTags();
+        if (state.has(StyleState.CONCEAL)) startConcealing();
     }
 
     private void openTag(AnsiAttributeElement tag) {
-        openTags.add(tag);
+        if (openTags.isFull()) {
+            // Not reachable as long as every attribute type is open at most once, drop the attribute.
+            return;
+        }
+        openTags.push(tag);
         tag.emitOpen(emitter);
     }
 
@@ -128,11 +176,10 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             emitter.emitInvisibleSequence();
         }
         while (!openTags.isEmpty()) {
-            int index = openTags.size() - 1;
-            if (until != null && openTags.get(index).ansiAttrType == until)
+            if (until != null && openTags.peek().ansiAttrType == until)
                 break;
 
-            openTags.remove(index).emitClose(emitter);
+            openTags.pop().emitClose(emitter);
         }
     }
 
@@ -150,14 +197,8 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             closeTagsOfTypeFGBG();
             return;
         }
-        int sameTypePos;
-
-        // Search for an element with matching type.
-        for (sameTypePos = openTags.size(); sameTypePos > 0; sameTypePos--) {
-            if (openTags.get(sameTypePos - 1).ansiAttrType == ansiAttrType) {
-                break;
-            }
-        }
+        // Position of the innermost element with matching type, plus one.
+        int sameTypePos = openTags.lastIndexOf(ansiAttrType) + 1;
 
         if (sameTypePos == 0) {
             // No need to unwind anything if the attribute has not been touched yet.
@@ -165,59 +206,54 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             return;
         }
 
-        Stack<AnsiAttributeElement> reopen = new Stack<>();
-
         // Unwind ...
         for (int unwindAt = openTags.size(); unwindAt > sameTypePos; unwindAt--) {
-            AnsiAttributeElement tag = openTags.remove(unwindAt-1);
+            AnsiAttributeElement tag = openTags.pop();
             tag.emitClose(emitter);
-            reopen.push(tag);
+            openTags.stash(tag);
         }
 
         // ... close matching element ...
-        AnsiAttributeElement offendingTag = openTags.remove(sameTypePos-1);
+        AnsiAttributeElement offendingTag = openTags.pop();
         offendingTag.emitClose(emitter);
 
         // ... reopen.
-        while (!reopen.isEmpty()) {
-            AnsiAttributeElement tag = reopen.pop();
-            tag.emitOpen(emitter);
-            openTags.add(tag);
-        }
+        reopenStashed();
     }
 
     // Like closeTagOfType(), but closes all FG, BG and FGBG elements.
     private void closeTagsOfTypeFGBG() {
-        int firstMatch;
-
         // Search for first element with matching type.
-        for (firstMatch = 0 ; firstMatch < openTags.size(); firstMatch++) {
-            AnsiAttrType attrtype = openTags.get(firstMatch).ansiAttrType;
-            if (attrtype == AnsiAttrType.FG || attrtype == AnsiAttrType.BG || attrtype == AnsiAttrType.FGBG)
-                break;
+        int firstMatch = openTags.size();
+        for (AnsiAttrType attrtype : COLOR_TYPES) {
+            int index = openTags.indexOf(attrtype);
+            if (index >= 0 && index < firstMatch)
+                firstMatch = index;
         }
 
         if (firstMatch >= openTags.size())
             // No need to unwind anything if none of the attributes has not been touched yet.
             return;
 
-        Stack<AnsiAttributeElement> reopen = new Stack<>();
-
         // Unwind, close all elements until firstMatch (including all FG, BG, FGBG)
         for (int unwindAt = openTags.size(); unwindAt > firstMatch;) {
             unwindAt--;
-            AnsiAttributeElement tag = openTags.remove(unwindAt);
+            AnsiAttributeElement tag = openTags.pop();
             tag.emitClose(emitter);
             AnsiAttrType attrtype = tag.ansiAttrType;
             if (!(attrtype == AnsiAttrType.FG || attrtype == AnsiAttrType.BG || attrtype == AnsiAttrType.FGBG))
-                reopen.push(tag);
+                openTags.stash(tag);
         }
 
         // reopen stacked tags
-        while (!reopen.isEmpty()) {
-            AnsiAttributeElement tag = reopen.pop();
+        reopenStashed();
+    }
+
+    private void reopenStashed() {
+        while (openTags.hasStashed()) {
+            AnsiAttributeElement tag = openTags.unstash();
             tag.emitOpen(emitter);
-            openTags.add(tag);
+            openTags.push(tag);
         }
     }
 
@@ -227,21 +263,15 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
         // the preamble is an ANSI escape sequence itself.
 
         if (state == State.INIT) {
-            List<AnsiAttributeElement> tagsToOpen = new ArrayList<>(openTags);
-            openTags.clear();
-
-            Integer defaultFg = colorMap.getDefaultForeground();
-            Integer defaultBg = colorMap.getDefaultBackground();
+            StyleState stateToOpen = this.stateToOpen;
+            this.stateToOpen = null;
 
-            if (defaultFg != null || defaultBg != null) {
-                openTag(new AnsiAttributeElement(AnsiAttrType.DEFAULT, "div", "style=\"" +
-                        (defaultBg != null ? "background-color: " + colorMap.getNormal(defaultBg) + ";" : "") +
-                        (defaultFg != null ? "color: " + colorMap.getNormal(defaultFg) + ";" : "") + "\""));
+            AnsiAttributeElement defaultColors = defaultColorsElement(colorMap, styleMode);
+            if (defaultColors != null) {
+                openTag(defaultColors);
             }
 
-            for (AnsiAttributeElement tag : tagsToOpen) {
-                openTag(tag);
-            }
+            openState(stateToOpen);
 
             state = State.DATA;
         }
@@ -303,16 +333,44 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
 
     @Override
     public void close() throws IOException {
+        closeTags();
+        super.close();
+    }
+
+    /**
+     * Closes the elements still open, like {@link #close} does, but leaves the stream open so it can be
+     * {@link #reset} for the next text.
+     */
+    /*package*/ void closeTags() {
         stopConcealing();
         closeOpenTags(null);
-        super.close();
     }
 
-    private String getDefaultForegroundColor() {
-        String color = null;
+    /**
+     * Prepares the stream for another text, as if it had just been created, so that one stream can render many short
+     * texts such as the lines of a log. The elements of the previous text are expected to be closed.
+     *
+     * @param stateToOpen The style to open before the first data of the text, see the constructor.
+     */
+    /*package*/ void reset(@NonNull StyleState stateToOpen) {
+        discardSequence();
+        while (!openTags.isEmpty()) {
+            openTags.pop();
+        }
+        state = State.INIT;
+        amblePos = 0;
+        currentForegroundColor = NO_COLOR;
+        currentBackgroundColor = NO_COLOR;
+        swapColors = false;
+        this.out = logOutput;
+        this.stateToOpen = stateToOpen;
+    }
+
+    static int getDefaultForegroundColor(AnsiColorMap colorMap) {
+        int color = NO_COLOR;
         Integer defaultFgIndex = colorMap.getDefaultForeground();
-        if (defaultFgIndex != null) color = colorMap.getNormal(defaultFgIndex);
-        if (color == null) {
+        if (defaultFgIndex != null) color = defaultFgIndex;
+        if (color == NO_COLOR) {
             // with no default foreground set, we need to guess about (currently happened in xterm and css themes)
             // possible approaches are:
             // • hardcoded black "#000000"
@@ -331,18 +389,18 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             // • It looks also the best alternative, if e.g. someone customizes Jenkins colors.
             // • Finally, the clause "only works, if all <span style="color: …"> are currently closed" is fulfilled for the negative / inverse case
 
-            // color = "#000000";              // hardcoded black
-            // color = colorMap.getNormal(0);  // hardcoded index 0
-            color = "currentColor";            // see http://stackoverflow.com/a/42586457/2880699
+            // color = rgbColor(0, 0, 0);      // hardcoded black
+            // color = 0;                      // hardcoded index 0
+            color = CURRENT_COLOR;             // see http://stackoverflow.com/a/42586457/2880699
         }
         return color;
     }
 
-    private String getDefaultBackgroundColor() {
-        String color = null;
+    static int getDefaultBackgroundColor(AnsiColorMap colorMap) {
+        int color = NO_COLOR;
         Integer defaultBgIndex = colorMap.getDefaultBackground();
-        if (defaultBgIndex != null) color = colorMap.getNormal(defaultBgIndex);
-        if (color == null) {
+        if (defaultBgIndex != null) color = defaultBgIndex;
+        if (color == NO_COLOR) {
             // with no default foreground set, we need to guess about (currently happened in xterm and css themes)
             // possible approaches are:
             // • hardcoded white "#FFFFFF"
@@ -350,48 +408,114 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             // • colorMap.getBright(7)
             // I finally decide for colorMap.getBright(7).
 
-            //color "#FFFFFF";                 // hardcoded white
-            //color = colorMap.getNormal(7);   // hardcoded normal index 7
-            color = colorMap.getBright(7);     // hardcoded bright index 7
+            //color = rgbColor(255, 255, 255); // hardcoded white
+            //color = 7;                       // hardcoded normal index 7
+            color = 8 + 7;                     // hardcoded bright index 7
         }
         return color;
     }
 
-    // @in  color  Html color value like e.g. "#AABBCC" or null for default color
-    private void setForegroundColor(String color) {
+    // @in  color  Color code like e.g. a palette index or NO_COLOR for default color
+    private void setForegroundColor(int color) {
         AnsiAttrType attrType = !swapColors ? AnsiAttrType.FG : AnsiAttrType.BG;
-        String attrName = !swapColors ? "color" : "background-color";
-        if (color == null && swapColors) color = getDefaultForegroundColor();
+        if (color == NO_COLOR && swapColors) color = getDefaultForegroundColor(colorMap);
         boolean restorebg = false;
-        if (swapColors && color.equals("currentColor")) {
+        if (swapColors && color == CURRENT_COLOR) {
             // need also to temporarily unwind textcolor, to having correct access to the "currentColor" value
             closeTagOfType(AnsiAttrType.FGBG);
             restorebg = true;
         } else {
             closeTagOfType(attrType);
         }
-        if (color != null)
-            openTag(new AnsiAttributeElement(attrType, "span", "style=\"" + attrName + ": " + color + ";\""));
+        if (color != NO_COLOR)
+            openTag(!swapColors ? foregroundTag(color) : backgroundTag(color));
         if (restorebg) {
             // Because of the "currentColor" trick, we always need to use two seperate <span> tags for this case.
-            String bg = currentBackgroundColor;
-            if (bg == null) bg = getDefaultBackgroundColor();
-            openTag(new AnsiAttributeElement(AnsiAttrType.FG, "span", "style=\"color: " + bg + ";\""));
+            int bg = currentBackgroundColor;
+            if (bg == NO_COLOR) bg = getDefaultBackgroundColor(colorMap);
+            openTag(foregroundTag(bg));
         }
         currentForegroundColor = color;
     }
 
-    // @in  color  Html color value like e.g. "#AABBCC" or null for default color
-    public void setBackgroundColor(String color) {
+    // @in  color  Color code like e.g. a palette index or NO_COLOR for default color
+    private void setBackgroundColor(int color) {
         AnsiAttrType attrType = !swapColors ? AnsiAttrType.BG : AnsiAttrType.FG;
-        String attrName = !swapColors ? "background-color" : "color";
-        if (color == null && swapColors) color = getDefaultBackgroundColor();
+        if (color == NO_COLOR && swapColors) color = getDefaultBackgroundColor(colorMap);
         closeTagOfType(attrType);
-        if (color != null)
-            openTag(new AnsiAttributeElement(attrType, "span", "style=\"" + attrName + ": " + color + ";\""));
+        if (color != NO_COLOR)
+            openTag(!swapColors ? backgroundTag(color) : foregroundTag(color));
         currentBackgroundColor = color;
     }
 
+    /**
+     * @return The element carrying the default foreground/background colors of the color map, {@code null} if it has
+     * none and the style mode does not need to scope the colors of the color map either.
+     */
+    static AnsiAttributeElement defaultColorsElement(AnsiColorMap colorMap, StyleMode styleMode) {
+        return ColorElements.of(colorMap, styleMode).defaultColors;
+    }
+
+    // Opens the elements for the current colors, taking negative mode into account.
+    private void openColorTags() {
+        int bg = currentBackgroundColor;
+        int fg = currentForegroundColor;
+        if (swapColors) {
+            if (bg == NO_COLOR) bg = getDefaultBackgroundColor(colorMap);
+            if (fg == NO_COLOR) fg = getDefaultForegroundColor(colorMap);
+            int tmp = fg;
+            fg = bg;
+            bg = tmp;
+        }
+        if (fg != NO_COLOR && bg != NO_COLOR && bg != CURRENT_COLOR) {
+            // In case of "currentColor" trick, we need to use two seperate <span> tags.
+            // But if not, then we can use one single <span> tag to set both background and foreground color.
+            openTag(colorElements().both(bg, fg));
+        } else {
+            if (bg != NO_COLOR) openTag(backgroundTag(bg));
+            if (fg != NO_COLOR) openTag(foregroundTag(fg));
+        }
+    }
+
+    private AnsiAttributeElement foregroundTag(int color) {
+        return colorElements().foreground(color);
+    }
+
+    private AnsiAttributeElement backgroundTag(int color) {
+        return colorElements().background(color);
+    }
+
+    private ColorElements colorElements() {
+        if (colorElements == null) {
+            colorElements = ColorElements.of(colorMap, styleMode);
+        }
+        return colorElements;
+    }
+
+    // Palette colors are expressed by classes in StyleMode.CLASSES, everything else always needs an inline style.
+    private static String colorAttributes(AnsiColorMap colorMap, StyleMode styleMode, int background, int foreground) {
+        StringBuilder classes = new StringBuilder();
+        StringBuilder style = new StringBuilder();
+        appendColor(colorMap, styleMode, classes, style, StyleMode.BACKGROUND_CLASS_PREFIX, "background-color", background);
+        appendColor(colorMap, styleMode, classes, style, StyleMode.FOREGROUND_CLASS_PREFIX, "color", foreground);
+        String classAttribute = classes.length() > 0 ? "class=\"" + classes + "\"" : "";
+        String styleAttribute = style.length() > 0 ? "style=\"" + style + "\"" : "";
+        return classAttribute.isEmpty() || styleAttribute.isEmpty() ? classAttribute + styleAttribute : classAttribute + " " + styleAttribute;
+    }
+
+    private static void appendColor(AnsiColorMap colorMap, StyleMode styleMode, StringBuilder classes, StringBuilder style, String classPrefix, String property, int color) {
+        if (color == NO_COLOR) {
+            return;
+        }
+        if (styleMode == StyleMode.CLASSES && color >= 0 && color < PALETTE_SIZE) {
+            if (classes.length() > 0) classes.append(' ');
+            classes.append(classPrefix).append(color);
+        } else {
+            if (style.length() > 0) style.append(' ');
+            style.append(property).append(": ").append(getColor(colorMap, styleMode, color)).append(';');
+        }
+    }
+
     // add attribute constants which are currently missing in jansi
     // see also <https://en.wikipedia.org/wiki/ANSI_escape_code#graphics>
     protected static final int ATTRIBUTE_STRIKEOUT       =  9;
@@ -430,7 +554,7 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             openTag(AnsiAttributeElement.bold());
             break;
         case ATTRIBUTE_INTENSITY_FAINT:
-            final AnsiAttributeElement faint = AnsiAttributeElement.faint();
+            final AnsiAttributeElement faint = AnsiAttributeElement.faint(styleMode);
             closeTagOfType(faint.ansiAttrType);
             openTag(faint);
             break;
@@ -454,7 +578,7 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             // instead of a u-element, but it's still of the same attribute type and previously opened elements of
             // either type are closed accordingly.
             closeTagOfType(AnsiAttrType.UNDERLINE);
-            openTag(AnsiAttributeElement.underlineDouble());
+            openTag(AnsiAttributeElement.underlineDouble(styleMode));
             break;
         case ATTRIBUTE_UNDERLINE_OFF:
             closeTagOfType(AnsiAttrType.UNDERLINE);
@@ -465,31 +589,15 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             boolean swapNow = attribute == ATTRIBUTE_NEGATIVE_ON;
             if (swapNow == swapColors) break; // nothing to do
             swapColors = swapNow;
-            String bg = currentBackgroundColor;
-            String fg = currentForegroundColor;
-            if (swapColors) {
-                if (bg == null) bg = getDefaultBackgroundColor();
-                if (fg == null) fg = getDefaultForegroundColor();
-                String tmp = fg;
-                fg = bg;
-                bg = tmp;
-            }
             closeTagOfType(AnsiAttrType.FGBG);
-            if (fg != null && bg != null && !bg.equals("currentColor")) {
-                // In case of "currentColor" trick, we need to use two seperate <span> tags.
-                // But if not, then we can use one single <span> tag to set both background and foreground color.
-                openTag(new AnsiAttributeElement(AnsiAttrType.FGBG, "span", "style=\"background-color: " + bg + "; color: " + fg + ";\""));
-            } else {
-                if (bg != null) openTag(new AnsiAttributeElement(AnsiAttrType.BG, "span", "style=\"background-color: " + bg + ";\""));
-                if (fg != null) openTag(new AnsiAttributeElement(AnsiAttrType.FG, "span", "style=\"color: " + fg + ";\""));
-            }
+            openColorTags();
             break;
         case ATTRIBUTE_STRIKEOUT:
             // <strike> is deprecated in HTML 4 and obsoleted in HTML5 (but still worked in my firefox 51.0.1)
             // alternatives are <del> <s> (both tested and successfully rendered in firefox 51.0.1)
             // but I finally decide for "text-decoration: line-through"
             closeTagOfType(AnsiAttrType.STRIKEOUT);
-            openTag(AnsiAttributeElement.strikeout());
+            openTag(AnsiAttributeElement.strikeout(styleMode));
             // openTag(new AnsiAttributeElement(AnsiAttrType.STRIKEOUT, "s", "")); // alternate approach
             break;
         case ATTRIBUTE_STRIKEOUT_OFF:
@@ -497,14 +605,14 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
             break;
         case ATTRIBUTE_FRAMED:
             closeTagOfType(AnsiAttrType.FRAMED);
-            openTag(AnsiAttributeElement.framed());
+            openTag(AnsiAttributeElement.framed(styleMode));
             break;
         case ATTRIBUTE_FRAMED_OFF:
             closeTagOfType(AnsiAttrType.FRAMED);
             break;
         case ATTRIBUTE_OVERLINE:
             closeTagOfType(AnsiAttrType.OVERLINE);
-            openTag(AnsiAttributeElement.overline());
+            openTag(AnsiAttributeElement.overline(styleMode));
             break;
         case ATTRIBUTE_OVERLINE_OFF:
             closeTagOfType(AnsiAttrType.OVERLINE);
@@ -514,13 +622,101 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
         }
     }
 
-    private String getRgbColor(int r, int g, int b) {
+    private static int rgbColor(int r, int g, int b) {
+        if (r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255)
+            throw new IllegalArgumentException();
+        return RGB_FLAG | r << 16 | g << 8 | b;
+    }
+
+    private static int paletteColor(int paletteIndex) {
+        if (paletteIndex < 0 || paletteIndex >= PALETTE_SIZE)
+            throw new IllegalArgumentException();
+        return paletteIndex;
+    }
+
+    private static String getRgbColor(int r, int g, int b) {
         if (r < 0 || r > 255 || g < 0 || g > 255 || b < 0 || b > 255)
             throw new IllegalArgumentException();
         return "#" + String.format("%02X", r) + String.format("%02X", g) + String.format("%02X", b);
     }
 
-    private String getPaletteColor(int paletteIndex) {
+    // @return  Html color value like e.g. "#AABBCC" for the given color code
+    private static String getColor(AnsiColorMap colorMap, StyleMode styleMode, int color) {
+        if (color == CURRENT_COLOR) {
+            return "currentColor";
+        } else if ((color & RGB_FLAG) != 0) {
+            return getRgbColor(color >> 16 & 0xFF, color >> 8 & 0xFF, color & 0xFF);
+        }
+        return styleMode.paletteColor(colorMap, color);
+    }
+
+    /**
+     * @return The HTML opening the elements of a style, and the HTML closing them again, without the default colors of
+     * the color map.
+     */
+    static String[] getStyleHtml(AnsiColorMap colorMap, StyleMode styleMode, StyleState state) {
+        final StringBuilder html = new StringBuilder();
+        final AnsiHtmlOutputStream stream = new AnsiHtmlOutputStream(CONCEALED, colorMap, styleMode, html::append, StyleState.DEFAULT);
+        stream.stateToOpen = null;
+        stream.state = State.DATA;
+        stream.openState(state);
+        final String open = html.toString();
+        html.setLength(0);
+        stream.closeOpenTags(null);
+        return new String[]{open, html.toString()};
+    }
+
+    /**
+     * @return The CSS values of the colors a style is rendered with, foreground first, negative mode applied and
+     * {@code null} standing for a default color.
+     */
+    static String[] getColors(AnsiColorMap colorMap, StyleState state) {
+        int fg = state.getForeground();
+        int bg = state.getBackground();
+        if (state.isSwapColors()) {
+            if (bg == NO_COLOR) bg = getDefaultBackgroundColor(colorMap);
+            if (fg == NO_COLOR) fg = getDefaultForegroundColor(colorMap);
+            int tmp = fg;
+            fg = bg;
+            bg = tmp;
+        }
+        return new String[] {getColor(colorMap, fg), getColor(colorMap, bg)};
+    }
+
+    /**
+     * @return A color code of a {@link StyleState} independently of any color map: the palette index, or the CSS value
+     * of colors outside of the palette. {@code null} stands for the default color.
+     */
+    static Object getColorReference(int color) {
+        if (color == NO_COLOR) {
+            return null;
+        } else if (color == CURRENT_COLOR) {
+            return "currentColor";
+        } else if ((color & RGB_FLAG) != 0) {
+            return getRgbColor(color >> 16 & 0xFF, color >> 8 & 0xFF, color & 0xFF);
+        }
+        return color;
+    }
+
+    private static String getColor(AnsiColorMap colorMap, int color) {
+        if (color == NO_COLOR) {
+            return null;
+        } else if (color == CURRENT_COLOR) {
+            return "currentColor";
+        } else if ((color & RGB_FLAG) != 0) {
+            return getRgbColor(color >> 16 & 0xFF, color >> 8 & 0xFF, color & 0xFF);
+        }
+        return getPaletteColor(colorMap, color);
+    }
+
+    /**
+     * @return Whether the value is a color code: a palette index, a 24 bit color or one of the special values.
+     */
+    static boolean isColor(int color) {
+        return color == NO_COLOR || color == CURRENT_COLOR || color >= 0 && color < PALETTE_SIZE || (color & ~0xFFFFFF) == RGB_FLAG;
+    }
+
+    static String getPaletteColor(AnsiColorMap colorMap, int paletteIndex) {
         // for xterm 256 colors see also https://upload.wikimedia.org/wikipedia/commons/1/15/Xterm_256color_chart.svg
         if (paletteIndex < 0 || paletteIndex > 255) {
             throw new IllegalArgumentException();
@@ -577,8 +773,8 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
 
     @Override
     protected void processAttributeRest() {
-        currentForegroundColor = null;
-        currentBackgroundColor = null;
+        currentForegroundColor = NO_COLOR;
+        currentBackgroundColor = NO_COLOR;
         swapColors = false;
         stopConcealing();
         closeOpenTags(AnsiAttrType.DEFAULT);
@@ -586,54 +782,54 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
 
     @Override
     protected void processSetForegroundColor(int color) {
-        setForegroundColor(colorMap.getNormal(color));
+        setForegroundColor(color);
     }
 
     // set foreground color to non standard ANSI colors (90 - 97)
     @Override
     protected void processSetForegroundColor(int color, boolean bright) {
-        setForegroundColor(colorMap.getBright(color));
+        setForegroundColor(8 + color);
     }
 
     @Override
     protected void processSetForegroundColorExt(int paletteIndex) {
-        setForegroundColor(getPaletteColor(paletteIndex));
+        setForegroundColor(paletteColor(paletteIndex));
     }
 
     @Override
     protected void processSetForegroundColorExt(int r, int g, int b) {
-        setForegroundColor(getRgbColor(r, g, b));
+        setForegroundColor(rgbColor(r, g, b));
     }
 
     @Override
     protected void processSetBackgroundColor(int color) {
-        setBackgroundColor(colorMap.getNormal(color));
+        setBackgroundColor(color);
     }
 
     // set background color to non standard ANSI colors (100 - 107)
     @Override
     protected void processSetBackgroundColor(int color, boolean bright) {
-        setBackgroundColor(colorMap.getBright(color));
+        setBackgroundColor(8 + color);
     }
 
     @Override
     protected void processSetBackgroundColorExt(int paletteIndex) {
-        setBackgroundColor(getPaletteColor(paletteIndex));
+        setBackgroundColor(paletteColor(paletteIndex));
     }
 
     @Override
     protected void processSetBackgroundColorExt(int r, int g, int b) {
-        setBackgroundColor(getRgbColor(r, g, b));
+        setBackgroundColor(rgbColor(r, g, b));
     }
 
     @Override
     protected void processDefaultTextColor() {
-        setForegroundColor(null);
+        setForegroundColor(NO_COLOR);
     }
 
     @Override
     protected void processDefaultBackgroundColor() {
-        setBackgroundColor(null);
+        setBackgroundColor(NO_COLOR);
     }
 
     @Override
@@ -730,4 +926,210 @@ public class AnsiHtmlOutputStream extends AnsiOutputStream {
     protected void processCharsetSelect(int set, char seq) {
         emitter.emitInvisibleSequence();
     }
+
+    /**
+     * The color elements of a color map in a style mode, built on first use and shared by all streams, so that only 24
+     * bit colors allocate elements while rendering.
+     */
+    private static final class ColorElements {
+        private static final int MAX_CACHED = 64;
+        private static final Map<AnsiColorMap, ColorElements[]> CACHE = new ConcurrentHashMap<>();
+        private static volatile ColorElements last;
+
+        // Palette colors followed by currentColor.
+        private static final int SLOTS = PALETTE_SIZE + 1;
+
+        private final AnsiColorMap colorMap;
+        private final StyleMode styleMode;
+        final AnsiAttributeElement defaultColors;
+        // Elements are immutable, so filling these arrays concurrently at worst builds an element twice.
+        private final AnsiAttributeElement[] foreground = new AnsiAttributeElement[SLOTS];
+        private final AnsiAttributeElement[] background = new AnsiAttributeElement[SLOTS];
+        private final AnsiAttributeElement[][] both = new AnsiAttributeElement[SLOTS][];
+
+        private ColorElements(AnsiColorMap colorMap, StyleMode styleMode) {
+            this.colorMap = colorMap;
+            this.styleMode = styleMode;
+            final String attributes = styleMode.defaultColorsAttributes(colorMap);
+            this.defaultColors = attributes != null ? new AnsiAttributeElement(AnsiAttrType.DEFAULT, "div", attributes) : null;
+        }
+
+        static ColorElements of(AnsiColorMap colorMap, StyleMode styleMode) {
+            ColorElements result = last;
+            if (result == null || result.colorMap != colorMap || result.styleMode != styleMode) {
+                if (CACHE.size() >= MAX_CACHED) {
+                    // Only edited custom color maps leave stale entries behind, start over.
+                    CACHE.clear();
+                }
+                final ColorElements[] byStyleMode = CACHE.computeIfAbsent(colorMap, m -> new ColorElements[StyleMode.values().length]);
+                result = byStyleMode[styleMode.ordinal()];
+                if (result == null) {
+                    byStyleMode[styleMode.ordinal()] = result = new ColorElements(colorMap, styleMode);
+                }
+                last = result;
+            }
+            return result;
+        }
+
+        AnsiAttributeElement foreground(int color) {
+            final int slot = slot(color);
+            if (slot == NO_COLOR) {
+                return new AnsiAttributeElement(AnsiAttrType.FG, "span", colorAttributes(colorMap, styleMode, NO_COLOR, color));
+            }
+            AnsiAttributeElement element = foreground[slot];
+            if (element == null) {
+                foreground[slot] = element = new AnsiAttributeElement(AnsiAttrType.FG, "span", colorAttributes(colorMap, styleMode, NO_COLOR, color));
+            }
+            return element;
+        }
+
+        AnsiAttributeElement background(int color) {
+            final int slot = slot(color);
+            if (slot == NO_COLOR) {
+                return new AnsiAttributeElement(AnsiAttrType.BG, "span", colorAttributes(colorMap, styleMode, color, NO_COLOR));
+            }
+            AnsiAttributeElement element = background[slot];
+            if (element == null) {
+                background[slot] = element = new AnsiAttributeElement(AnsiAttrType.BG, "span", colorAttributes(colorMap, styleMode, color, NO_COLOR));
+            }
+            return element;
+        }
+
+        AnsiAttributeElement both(int backgroundColor, int foregroundColor) {
+            final int backgroundSlot = slot(backgroundColor);
+            final int foregroundSlot = slot(foregroundColor);
+            if (backgroundSlot == NO_COLOR || foregroundSlot == NO_COLOR) {
+                return new AnsiAttributeElement(AnsiAttrType.FGBG, "span", colorAttributes(colorMap, styleMode, backgroundColor, foregroundColor));
+            }
+            AnsiAttributeElement[] foregrounds = both[backgroundSlot];
+            if (foregrounds == null) {
+                both[backgroundSlot] = foregrounds = new AnsiAttributeElement[SLOTS];
+            }
+            AnsiAttributeElement element = foregrounds[foregroundSlot];
+            if (element == null) {
+                foregrounds[foregroundSlot] = element = new AnsiAttributeElement(AnsiAttrType.FGBG, "span", colorAttributes(colorMap, styleMode, backgroundColor, foregroundColor));
+            }
+            return element;
+        }
+
+        // @return  The position of a palette color or currentColor in the arrays, NO_COLOR for 24 bit colors
+        private static int slot(int color) {
+            if (color >= 0 && color < PALETTE_SIZE) {
+                return color;
+            }
+            return color == CURRENT_COLOR ? PALETTE_SIZE : NO_COLOR;
+        }
+    }
+
+    /**
+     * Array-backed stack of the open elements, outermost first, along with a scratch area holding the elements which
+     * are unwound while closing an element further down and have to be reopened afterwards. Both arrays only grow up
+     * to the deepest nesting seen, so attribute changes do not allocate.
+     * <p>
+     * The elements of each {@link AnsiAttrType} are chained through their positions, which makes finding the innermost
+     * and the outermost element of a type constant time. The depth is capped at {@link #MAX_DEPTH}, so the cost of
+     * unwinding is bounded no matter what the input looks like.
+     */
+    private static final class TagStack {
+        /**
+         * Every attribute type is open at most once in well-formed state, so this leaves plenty of headroom while still
+         * bounding the work per attribute change.
+         */
+        static final int MAX_DEPTH = 64;
+
+        private static final int INITIAL_CAPACITY = 8;
+        private static final int NONE = -1;
+        private static final int TYPES = AnsiAttrType.values().length;
+
+        private AnsiAttributeElement[] tags = new AnsiAttributeElement[INITIAL_CAPACITY];
+        // Position of the next element of the same type further out, NONE for the outermost one.
+        private int[] outer = new int[INITIAL_CAPACITY];
+        private int size;
+        private final int[] innermost = new int[TYPES];
+        private final int[] outermost = new int[TYPES];
+        private AnsiAttributeElement[] stashed = new AnsiAttributeElement[INITIAL_CAPACITY];
+        private int stashedSize;
+
+        TagStack() {
+            Arrays.fill(innermost, NONE);
+            Arrays.fill(outermost, NONE);
+        }
+
+        int size() {
+            return size;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        boolean isFull() {
+            return size == MAX_DEPTH;
+        }
+
+        AnsiAttributeElement get(int index) {
+            return tags[index];
+        }
+
+        AnsiAttributeElement peek() {
+            return tags[size - 1];
+        }
+
+        /**
+         * @return The position of the innermost element of the given type, {@link #NONE} if there is none.
+         */
+        int lastIndexOf(AnsiAttrType type) {
+            return innermost[type.ordinal()];
+        }
+
+        /**
+         * @return The position of the outermost element of the given type, {@link #NONE} if there is none.
+         */
+        int indexOf(AnsiAttrType type) {
+            return outermost[type.ordinal()];
+        }
+
+        void push(AnsiAttributeElement tag) {
+            if (size == tags.length) {
+                tags = Arrays.copyOf(tags, size * 2);
+                outer = Arrays.copyOf(outer, size * 2);
+            }
+            final int type = tag.ansiAttrType.ordinal();
+            outer[size] = innermost[type];
+            if (innermost[type] == NONE) {
+                outermost[type] = size;
+            }
+            innermost[type] = size;
+            tags[size++] = tag;
+        }
+
+        AnsiAttributeElement pop() {
+            AnsiAttributeElement tag = tags[--size];
+            tags[size] = null;
+            final int type = tag.ansiAttrType.ordinal();
+            innermost[type] = outer[size];
+            if (innermost[type] == NONE) {
+                outermost[type] = NONE;
+            }
+            return tag;
+        }
+
+        void stash(AnsiAttributeElement tag) {
+            if (stashedSize == stashed.length) {
+                stashed = Arrays.copyOf(stashed, stashedSize * 2);
+            }
+            stashed[stashedSize++] = tag;
+        }
+
+        boolean hasStashed() {
+            return stashedSize > 0;
+        }
+
+        // Last in, first out, so unwound elements are reopened in their original order.
+        AnsiAttributeElement unstash() {
+            AnsiAttributeElement tag = stashed[--stashedSize];
+            stashed[stashedSize] = null;
+            return tag;
+        }
+    }
 }
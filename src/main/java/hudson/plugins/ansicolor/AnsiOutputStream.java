@@ -77,6 +77,13 @@ public class AnsiOutputStream extends FilterOutputStream {
 
     // TODO: implement to get perf boost: public void write(byte[] b, int off, int len)
 
+    /**
+     * @return Whether the stream is outside of any escape sequence, so the next bytes up to an ESC char are plain text.
+     */
+    boolean isInText() {
+        return state == LOOKING_FOR_FIRST_ESC_CHAR;
+    }
+
     public void write(int data) throws IOException {
         switch (state) {
             case LOOKING_FOR_FIRST_ESC_CHAR:
@@ -215,6 +222,16 @@ public class AnsiOutputStream extends FilterOutputStream {
         }
     }
 
+    /**
+     * Drops an escape sequence which has not been completed yet, so the stream can be reused for unrelated text.
+     */
+    void discardSequence() {
+        pos = 0;
+        startOfValue = 0;
+        options.clear();
+        state = LOOKING_FOR_FIRST_ESC_CHAR;
+    }
+
     /**
      * Resets all state to continue with regular parsing
      * @param skipBuffer if current buffer should be skipped or written to out
@@ -292,83 +309,7 @@ public class AnsiOutputStream extends FilterOutputStream {
                     processScrollDown(optionInt(options, 0, 1));
                     return true;
                 case 'm':
-                    // Validate all options are ints...
-                    for (Object next : options) {
-                        if (next != null && next.getClass() != Integer.class) {
-                            throw new IllegalArgumentException();
-                        }
-                    }
-
-                    int count = 0;
-                    Iterator<Object> optionsIterator = options.iterator();
-                    while (optionsIterator.hasNext()) {
-                        Object next = optionsIterator.next();
-                        if (next != null) {
-                            count++;
-                            int value = (Integer) next;
-                            if (30 <= value && value <= 37) {
-                                processSetForegroundColor(value - 30);
-                            } else if (40 <= value && value <= 47) {
-                                processSetBackgroundColor(value - 40);
-                            } else if (90 <= value && value <= 97) {
-                                processSetForegroundColor(value - 90, true);
-                            } else if (100 <= value && value <= 107) {
-                                processSetBackgroundColor(value - 100, true);
-                            } else if ((value == 38 || value == 48)) {
-                                if (!optionsIterator.hasNext()) {
-                                    continue;
-                                }
-                                // extended color like `esc[38;5;<index>m` or `esc[38;2;<r>;<g>;<b>m`
-                                int arg2or5 = getNextOptionInt(optionsIterator);
-                                if (arg2or5 == 2) {
-                                    // 24 bit color style like `esc[38;2;<r>;<g>;<b>m`
-                                    int r = getNextOptionInt(optionsIterator);
-                                    int g = getNextOptionInt(optionsIterator);
-                                    int b = getNextOptionInt(optionsIterator);
-                                    if (r >= 0 && r <= 255 && g >= 0 && g <= 255 && b >= 0 && b <= 255) {
-                                        if (value == 38)
-                                            processSetForegroundColorExt(r, g, b);
-                                        else
-                                            processSetBackgroundColorExt(r, g, b);
-                                    } else {
-                                        throw new IllegalArgumentException();
-                                    }
-                                }
-                                else if (arg2or5 == 5) {
-                                    // 256 color style like `esc[38;5;<index>m`
-                                    int paletteIndex = getNextOptionInt(optionsIterator);
-                                    if (paletteIndex >= 0 && paletteIndex <= 255) {
-                                        if (value == 38)
-                                            processSetForegroundColorExt(paletteIndex);
-                                        else
-                                            processSetBackgroundColorExt(paletteIndex);
-                                    } else {
-                                        throw new IllegalArgumentException();
-                                    }
-                                }
-                                else {
-                                    throw new IllegalArgumentException();
-                                }
-                            } else {
-                                switch (value) {
-                                    case 39:
-                                        processDefaultTextColor();
-                                        break;
-                                    case 49:
-                                        processDefaultBackgroundColor();
-                                        break;
-                                    case 0:
-                                        processAttributeRest();
-                                        break;
-                                    default:
-                                        processSetAttribute(value);
-                                }
-                            }
-                        }
-                    }
-                    if (count == 0) {
-                        processAttributeRest();
-                    }
+                    processGraphicRendition(options);
                     return true;
                 case 's':
                     processSaveCursorPosition();
@@ -393,6 +334,91 @@ public class AnsiOutputStream extends FilterOutputStream {
         return false;
     }
 
+    /**
+     * Processes the options of a Select Graphic Rendition sequence, {@code ESC[...m}.
+     *
+     * @throws IllegalArgumentException if the options are malformed, the sequence is then written out as is.
+     */
+    protected void processGraphicRendition(ArrayList<Object> options) throws IOException {
+        // Validate all options are ints...
+        for (Object next : options) {
+            if (next != null && next.getClass() != Integer.class) {
+                throw new IllegalArgumentException();
+            }
+        }
+
+        int count = 0;
+        Iterator<Object> optionsIterator = options.iterator();
+        while (optionsIterator.hasNext()) {
+            Object next = optionsIterator.next();
+            if (next != null) {
+                count++;
+                int value = (Integer) next;
+                if (30 <= value && value <= 37) {
+                    processSetForegroundColor(value - 30);
+                } else if (40 <= value && value <= 47) {
+                    processSetBackgroundColor(value - 40);
+                } else if (90 <= value && value <= 97) {
+                    processSetForegroundColor(value - 90, true);
+                } else if (100 <= value && value <= 107) {
+                    processSetBackgroundColor(value - 100, true);
+                } else if ((value == 38 || value == 48)) {
+                    if (!optionsIterator.hasNext()) {
+                        continue;
+                    }
+                    // extended color like `esc[38;5;<index>m` or `esc[38;2;<r>;<g>;<b>m`
+                    int arg2or5 = getNextOptionInt(optionsIterator);
+                    if (arg2or5 == 2) {
+                        // 24 bit color style like `esc[38;2;<r>;<g>;<b>m`
+                        int r = getNextOptionInt(optionsIterator);
+                        int g = getNextOptionInt(optionsIterator);
+                        int b = getNextOptionInt(optionsIterator);
+                        if (r >= 0 && r <= 255 && g >= 0 && g <= 255 && b >= 0 && b <= 255) {
+                            if (value == 38)
+                                processSetForegroundColorExt(r, g, b);
+                            else
+                                processSetBackgroundColorExt(r, g, b);
+                        } else {
+                            throw new IllegalArgumentException();
+                        }
+                    }
+                    else if (arg2or5 == 5) {
+                        // 256 color style like `esc[38;5;<index>m`
+                        int paletteIndex = getNextOptionInt(optionsIterator);
+                        if (paletteIndex >= 0 && paletteIndex <= 255) {
+                            if (value == 38)
+                                processSetForegroundColorExt(paletteIndex);
+                            else
+                                processSetBackgroundColorExt(paletteIndex);
+                        } else {
+                            throw new IllegalArgumentException();
+                        }
+                    }
+                    else {
+                        throw new IllegalArgumentException();
+                    }
+                } else {
+                    switch (value) {
+                        case 39:
+                            processDefaultTextColor();
+                            break;
+                        case 49:
+                            processDefaultBackgroundColor();
+                            break;
+                        case 0:
+                            processAttributeRest();
+                            break;
+                        default:
+                            processSetAttribute(value);
+                    }
+                }
+            }
+        }
+        if (count == 0) {
+            processAttributeRest();
+        }
+    }
+
     /**
      *
      * @param options
@@ -401,30 +427,35 @@ public class AnsiOutputStream extends FilterOutputStream {
     private boolean processOperatingSystemCommand(ArrayList<Object> options) throws IOException {
         int command = optionInt(options, 0);
         String label = (String) options.get(1);
-        // for command > 2 label could be composed (i.e. contain ';'), but we'll leave
-        // it to processUnknownOperatingSystemCommand implementations to handle that
         try {
-            switch (command) {
-                case 0:
-                    processChangeIconNameAndWindowTitle(label);
-                    return true;
-                case 1:
-                    processChangeIconName(label);
-                    return true;
-                case 2:
-                    processChangeWindowTitle(label);
-                    return true;
-
-                default:
-                    // not exactly unknown, but not supported through dedicated process methods:
-                    processUnknownOperatingSystemCommand(command, label);
-                    return true;
-            }
+            processOperatingSystemCommand(command, label);
+            return true;
         } catch (IllegalArgumentException ignore) {
         }
         return false;
     }
 
+    protected void processOperatingSystemCommand(int command, String label) throws IOException {
+        // for command > 2 label could be composed (i.e. contain ';'), but we'll leave
+        // it to processUnknownOperatingSystemCommand implementations to handle that
+        switch (command) {
+            case 0:
+                processChangeIconNameAndWindowTitle(label);
+                break;
+            case 1:
+                processChangeIconName(label);
+                break;
+            case 2:
+                processChangeWindowTitle(label);
+                break;
+
+            default:
+                // not exactly unknown, but not supported through dedicated process methods:
+                processUnknownOperatingSystemCommand(command, label);
+                break;
+        }
+    }
+
     protected void processRestoreCursorPosition() throws IOException {
     }
 
@@ -574,7 +605,7 @@ public class AnsiOutputStream extends FilterOutputStream {
         return true;
     }
 
-    protected void processCharsetSelect(int set, char seq) {
+    protected void processCharsetSelect(int set, char seq) throws IOException {
     }
 
     private int optionInt(ArrayList<Object> options, int index) {
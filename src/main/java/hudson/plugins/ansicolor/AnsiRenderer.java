@@ -0,0 +1,338 @@
+package hudson.plugins.ansicolor;
+
+import hudson.console.ConsoleNote;
+import jenkins.model.Jenkins;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Renders text containing ANSI escape sequences the way the console does, for other plugins showing build output
+ * outside of the console (test results, pipeline views, log parsers).
+ * <p>
+ * Text can be rendered to HTML or to {@link StyleRun}s, the plain text split wherever its style changes. Console notes
+ * embedded in the text are dropped. A renderer is immutable and can be shared by any number of threads, each call
+ * parses its input on its own.
+ */
+public final class AnsiRenderer {
+
+    private final AnsiColorMap colorMap;
+    private final StyleMode styleMode;
+
+    private AnsiRenderer(AnsiColorMap colorMap, StyleMode styleMode) {
+        this.colorMap = colorMap;
+        this.styleMode = styleMode;
+    }
+
+    /**
+     * @param colorMapName The name of one of the color maps configured globally. Unknown names and {@code null} fall
+     * back to the default color map, like they do in the console.
+     * @return A renderer for that color map, producing markup in the globally configured {@link StyleMode}.
+     */
+    @NonNull
+    public static AnsiRenderer forColorMap(@CheckForNull String colorMapName) {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        return new AnsiRenderer(descriptor.getColorMap(colorMapName), descriptor.getStyleMode());
+    }
+
+    @NonNull
+    public static AnsiRenderer of(@NonNull AnsiColorMap colorMap, @NonNull StyleMode styleMode) {
+        return new AnsiRenderer(colorMap, styleMode);
+    }
+
+    @NonNull
+    public AnsiColorMap getColorMap() {
+        return colorMap;
+    }
+
+    @NonNull
+    public StyleMode getStyleMode() {
+        return styleMode;
+    }
+
+    /**
+     * @return The stylesheet the HTML of this renderer relies on, empty if it is self-contained. The console pages
+     * already include it.
+     */
+    @NonNull
+    public String getStylesheet() {
+        return styleMode.stylesheet(colorMap);
+    }
+
+    /**
+     * @return The text as HTML, with its special characters escaped and all elements closed at its end.
+     */
+    @NonNull
+    public String toHtml(@NonNull CharSequence text) {
+        final ByteArrayOutputStream html = new ByteArrayOutputStream(text.length() + 256);
+        toHtml(text, StyleState.DEFAULT, html);
+        return new String(html.toByteArray(), UTF_8);
+    }
+
+    @NonNull
+    public String toHtml(@NonNull byte[] bytes, int offset, int length, @NonNull Charset charset) {
+        return toHtml(new String(bytes, offset, length, charset));
+    }
+
+    /**
+     * Renders a whole log to HTML, encoded in UTF-8. Long logs are split into pieces at line boundaries which are
+     * rendered in parallel, see {@link ParallelRenderer}.
+     *
+     * @param log The log, which is read to its end but not closed.
+     * @param charset The charset of the log.
+     * @param html Where to write the HTML to, in order.
+     */
+    public void toHtml(@NonNull InputStream log, @NonNull Charset charset, @NonNull OutputStream html) throws IOException {
+        ParallelRenderer.render(this, log, charset, html);
+    }
+
+    /**
+     * Renders a piece of a longer text to HTML.
+     *
+     * @param state The style carried over from the previous piece.
+     * @param html Where to add the HTML of this piece, encoded in UTF-8.
+     * @return The style to carry over to the next piece.
+     */
+    StyleState toHtml(CharSequence text, StyleState state, ByteArrayOutputStream html) {
+        return render(text, new AnsiHtmlOutputStream(new EscapingOutputStream(html), colorMap, styleMode, markup -> {
+            final byte[] bytes = markup.getBytes(UTF_8);
+            html.write(bytes, 0, bytes.length);
+        }, state));
+    }
+
+    /**
+     * @return The plain text split into runs of the same style, in order. Text which is concealed is left out.
+     */
+    @NonNull
+    public List<StyleRun> toStyleRuns(@NonNull CharSequence text) {
+        final List<StyleRun> runs = new ArrayList<>();
+        toStyleRuns(text, StyleState.DEFAULT, runs);
+        return Collections.unmodifiableList(runs);
+    }
+
+    @NonNull
+    public List<StyleRun> toStyleRuns(@NonNull byte[] bytes, int offset, int length, @NonNull Charset charset) {
+        return toStyleRuns(new String(bytes, offset, length, charset));
+    }
+
+    /**
+     * Renders a piece of a longer text to style runs.
+     *
+     * @param state The style carried over from the previous piece.
+     * @param runs Where to add the runs of this piece.
+     * @return The style to carry over to the next piece.
+     */
+    StyleState toStyleRuns(CharSequence text, StyleState state, List<StyleRun> runs) {
+        final StyleRunCollector collector = new StyleRunCollector(state, runs);
+        collector.stream = new AnsiHtmlOutputStream(collector, colorMap, styleMode, collector, state);
+        return render(text, collector.stream);
+    }
+
+    /**
+     * @return The style in effect at the end of the text.
+     */
+    private static StyleState render(CharSequence text, AnsiHtmlOutputStream stream) {
+        final byte[] bytes = ConsoleNote.removeNotes(text.toString()).getBytes(UTF_8);
+        try {
+            stream.write(bytes);
+            final StyleState state = stream.getState();
+            // Closes the elements still open.
+            stream.close();
+            return state;
+        } catch (IOException x) { // should be impossible
+            throw new RuntimeException(x);
+        }
+    }
+
+    /**
+     * A piece of plain text rendered in a single style.
+     */
+    public static final class StyleRun {
+        private final int start;
+        private final String text;
+        private final StyleState state;
+        @CheckForNull
+        private final String foreground;
+        @CheckForNull
+        private final String background;
+
+        StyleRun(int start, String text, StyleState state, AnsiColorMap colorMap) {
+            this.start = start;
+            this.text = text;
+            this.state = state;
+            final String[] colors = AnsiHtmlOutputStream.getColors(colorMap, state);
+            this.foreground = colors[0];
+            this.background = colors[1];
+        }
+
+        /**
+         * @return The offset of the run in the plain text.
+         */
+        public int getStart() {
+            return start;
+        }
+
+        @NonNull
+        public String getText() {
+            return text;
+        }
+
+        StyleState getState() {
+            return state;
+        }
+
+        /**
+         * @return The CSS value of the foreground color, {@code null} for the default one.
+         */
+        @CheckForNull
+        public String getForeground() {
+            return foreground;
+        }
+
+        /**
+         * @return The CSS value of the background color, {@code null} for the default one.
+         */
+        @CheckForNull
+        public String getBackground() {
+            return background;
+        }
+
+        public boolean isBold() {
+            return state.has(StyleState.BOLD);
+        }
+
+        public boolean isFaint() {
+            return state.has(StyleState.FAINT);
+        }
+
+        public boolean isItalic() {
+            return state.has(StyleState.ITALIC);
+        }
+
+        public boolean isUnderline() {
+            return state.has(StyleState.UNDERLINE);
+        }
+
+        public boolean isDoubleUnderline() {
+            return state.has(StyleState.UNDERLINE_DOUBLE);
+        }
+
+        public boolean isStrikeout() {
+            return state.has(StyleState.STRIKEOUT);
+        }
+
+        public boolean isFramed() {
+            return state.has(StyleState.FRAMED);
+        }
+
+        public boolean isOverline() {
+            return state.has(StyleState.OVERLINE);
+        }
+
+        @Override
+        public String toString() {
+            return "StyleRun{start=" + start + ", text=" + text + ", " + state + "}";
+        }
+    }
+
+    /**
+     * Escapes the text written by the stream, which is interleaved with the markup it emits.
+     */
+    private static final class EscapingOutputStream extends OutputStream {
+        private final ByteArrayOutputStream html;
+
+        EscapingOutputStream(ByteArrayOutputStream html) {
+            this.html = html;
+        }
+
+        @Override
+        public void write(int b) {
+            switch (b) {
+                case '&':
+                    write("&amp;");
+                    break;
+                case '<':
+                    write("&lt;");
+                    break;
+                case '>':
+                    write("&gt;");
+                    break;
+                case '"':
+                    write("&quot;");
+                    break;
+                case '\'':
+                    write("&#39;");
+                    break;
+                default:
+                    html.write(b);
+                    break;
+            }
+        }
+
+        private void write(String entity) {
+            for (int i = 0; i < entity.length(); i++) {
+                html.write(entity.charAt(i));
+            }
+        }
+    }
+
+    /**
+     * Collects the text written by the stream, starting a new run whenever the stream emitted markup and its style is
+     * no longer the one of the current run. Styles only change between escape sequences, so runs never split a char.
+     */
+    private final class StyleRunCollector extends OutputStream implements AnsiAttributeElement.Emitter {
+        private final List<StyleRun> runs;
+        private final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        private AnsiHtmlOutputStream stream;
+        private StyleState state;
+        private boolean changed;
+        private int start;
+
+        StyleRunCollector(StyleState state, List<StyleRun> runs) {
+            this.state = state;
+            this.runs = runs;
+        }
+
+        @Override
+        public void emitHtml(@NonNull String html) {
+            changed = true;
+        }
+
+        @Override
+        public void write(int b) {
+            if (changed) {
+                changed = false;
+                final StyleState next = stream.getState();
+                if (!next.equals(state)) {
+                    endRun();
+                    state = next;
+                }
+            }
+            text.write(b);
+        }
+
+        @Override
+        public void close() {
+            endRun();
+        }
+
+        private void endRun() {
+            if (text.size() > 0) {
+                final String run = new String(text.toByteArray(), UTF_8);
+                runs.add(new StyleRun(start, run, state, colorMap));
+                start += run.length();
+                text.reset();
+            }
+        }
+    }
+}
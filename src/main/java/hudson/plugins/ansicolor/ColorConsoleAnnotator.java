@@ -26,29 +26,43 @@ package hudson.plugins.ansicolor;
 
 import hudson.Extension;
 import hudson.MarkupText;
+import hudson.Util;
 import hudson.console.ConsoleAnnotator;
 import hudson.console.ConsoleAnnotatorFactory;
 import hudson.model.Queue;
 import hudson.model.Run;
 import hudson.plugins.ansicolor.action.ColorizedAction;
+import hudson.plugins.ansicolor.action.ColorizedActionTable;
 import hudson.plugins.ansicolor.action.LineIdentifier;
+import hudson.plugins.ansicolor.action.ShortlogActionCreator;
 import jenkins.model.Jenkins;
 import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.io.output.NullOutputStream;
 import org.apache.commons.lang.StringEscapeUtils;
+import org.kohsuke.stapler.Stapler;
+import org.kohsuke.stapler.StaplerRequest2;
 import org.jenkinsci.plugins.workflow.flow.FlowExecutionOwner;
+import org.jenkinsci.plugins.workflow.graph.BlockStartNode;
 import org.jenkinsci.plugins.workflow.graph.FlowNode;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.Externalizable;
 import java.io.IOException;
-import java.util.Collections;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * Applies ANSI coloration to log files where requested.
+ * <p>
+ * Annotators are serialized into every progressive console response, so they are written in the compact form of
+ * {@link Ser}. The default serial form of older versions can still be read.
  */
 final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
 
@@ -58,6 +72,10 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
 
     private static final Factory FACTORY = new Factory();
 
+    // Long lines are checked for time and markup density every chunk.
+    private static final int CHUNK_MASK = 0xFFFF;
+    private static final int MAX_HTML_PER_CHUNK = Integer.getInteger(ColorConsoleAnnotator.class.getName() + ".maxHtmlPerChunk", 8192);
+
     private final String defaultColorMapName;
 
     private final LineIdentifier lineIdentifier;
@@ -66,10 +84,54 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
     private String colorMapName;
 
     @NonNull
-    private List<AnsiAttributeElement> openTags = Collections.emptyList();
+    private StyleState state = StyleState.DEFAULT;
+
+    /**
+     * @deprecated Only set on annotators serialized by older versions, replaced by {@link #state} in
+     * {@link #readResolve}.
+     */
+    @Deprecated
+    private List<AnsiAttributeElement> openTags;
 
     private long lineNo;
 
+    /**
+     * The number of the first line annotated in the log, if its styles are kept in a {@link StyleSidecar}, otherwise
+     * {@code -1}.
+     */
+    private long lineBase = -1;
+
+    /**
+     * Set while the run has neither a color map nor a global one to fall back to, so nothing but the appearance of a
+     * {@link ColorizedActionTable} is checked per line.
+     */
+    private boolean detached;
+
+    // The run resolved for the last context, which is the same one for all the lines of a log.
+    private transient Object runContext;
+    @CheckForNull
+    private transient Run<?, ?> contextRun;
+    @CheckForNull
+    private transient List<String> contextBlockIds;
+
+    // The default colors element of the last color map and style mode used, so plain lines can be wrapped directly.
+    private transient AnsiColorMap defaultColorsMap;
+    private transient StyleMode defaultColorsStyleMode;
+    @CheckForNull
+    private transient AnsiAttributeElement defaultColors;
+
+    // Created for each request, annotators are serialized in between.
+    private transient RenderBudget budget;
+
+    // Renders the lines with escape sequences, built once per request rather than for each line.
+    @CheckForNull
+    private transient LineRenderer renderer;
+
+    @CheckForNull
+    private transient StyleSidecar.Index sidecar;
+    // The HTML of the styles of the sidecar, for the color map and style mode of the default colors element.
+    private transient Map<StyleState, String[]> styleHtml;
+
     private ColorConsoleAnnotator(String defaultColorMapName, LineIdentifier lineIdentifier, long startLineNo) {
         this.defaultColorMapName = defaultColorMapName;
         this.lineIdentifier = lineIdentifier;
@@ -79,20 +141,32 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
     @Override
     public ConsoleAnnotator<Object> annotate(@NonNull Object context, @NonNull MarkupText text) {
         lineNo++;
-        Run<?, ?> run = runOf(context);
+        Run<?, ?> run = getRun(context);
         if (run == null) {
             return this;
         }
+        if (detached) {
+            if (ColorizedActionTable.of(run) == null) {
+                return this;
+            }
+            // A step or build wrapper enabled colors since the annotator was created.
+            detached = false;
+        }
         final ColorizedAction colorizedAction = lineNo == 1
             ? ColorizedAction.parseAction(text.getText(), lineNo, run, lineIdentifier)
-            : ColorizedAction.parseAction(text, run);
+            : ColorizedAction.parseAction(text, run, contextBlockIds);
         switch (colorizedAction.getCommand()) {
             case START:
             case CURRENT:
                 colorMapName = colorizedAction.getColorMapName();
                 break;
             case STOP:
-                return FACTORY.newInstance(context, lineNo);
+                final ColorConsoleAnnotator next = (ColorConsoleAnnotator) FACTORY.newInstance(context, lineNo);
+                if (next != null) {
+                    next.budget = budget;
+                    next.lineBase = lineBase;
+                }
+                return next;
             case IGNORE:
                 return this;
             default:
@@ -104,65 +178,56 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
         if (colorMapName == null) {
             return this;
         }
+        if (lineBase >= 0) {
+            if (sidecar == null) {
+                sidecar = StyleSidecar.indexOf(run);
+            }
+            if (sidecar != null) {
+                applySidecar(text);
+                return this;
+            }
+        }
+        if (budget == null) {
+            budget = new RenderBudget();
+        }
+        if (budget.isExhausted()) {
+            markPassedThrough(text);
+            return this;
+        }
 
         String s = text.getText();
-        List<AnsiAttributeElement> nextOpenTags = openTags;
-        AnsiColorMap colorMap = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getColorMap(colorMapName);
-        if (s.indexOf('\u001B') != -1 || !openTags.isEmpty() || colorMap.getDefaultBackground() != null || colorMap.getDefaultForeground() != null) {
-            CountingOutputStream outgoing = new CountingOutputStream(new NullOutputStream());
-            class EmitterImpl implements AnsiAttributeElement.Emitter {
-                CountingOutputStream incoming;
-                int adjustment;
-                int lastPoint = -1; // multiple HTML tags may be emitted for one control sequence
-
-                @Override
-                public void emitHtml(@NonNull String html) {
-                    final int inCount = getIncomingCount();
-                    LOGGER.log(Level.FINEST, "emitting {0} @{1}/{2}", new Object[]{html, inCount, s.length()});
-                    text.addMarkup(inCount, html);
-                    hideIfNeeded(inCount, "");
-                }
-
-                /**
-                 * All ANSI escapes sequences contain at least 2 bytes on modern platforms, so any HTML emitted
-                 * directly after the first character is received is due to the initialization process of the stream and
-                 * belongs at position 0 (i.e. default background/foreground colors).
-                 *
-                 * @return Incoming chars count
-                 */
-                private int getIncomingCount() {
-                    final int inCount = incoming.getCount();
-                    return inCount == 1 ? 0 : inCount;
-                }
-
-                private void hideIfNeeded(int inCount, String msg) {
-                    if (inCount != lastPoint) {
-                        lastPoint = inCount;
-                        final int outCount = outgoing.getCount() + adjustment;
-                        final int hide = inCount - outCount;
-                        // If openTags is not empty, but there are no escape sequences directly on this line, or if we
-                        // are emitting closing tags when closing the stream, there is nothing to hide.
-                        if (hide != 0) {
-                            LOGGER.log(Level.FINEST, "hiding {0} @{1}{2}", new Object[]{hide, outCount, msg});
-                            text.addMarkup(outCount, outCount + hide, "<!--", "-->");
-                            adjustment += hide;
-                        }
-                    }
-                }
-
-                @Override
-                public void emitInvisibleSequence() {
-                    hideIfNeeded(getIncomingCount(), " (ANSI sequence with no corresponding HTML tags)");
-                }
+        StyleState nextState = state;
+        AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        AnsiColorMap colorMap = descriptor.getColorMap(colorMapName);
+        StyleMode styleMode = descriptor.getStyleMode();
+        LineMarkupCache.Key cacheKey;
+        LineMarkupCache.LineMarkup cached;
+        if (s.indexOf('\u001B') == -1 && state.isDefault()) {
+            final AnsiAttributeElement defaultColors = getDefaultColors(colorMap, styleMode);
+            if (defaultColors != null && !s.isEmpty() && (colorMap.getDefaultForeground() != null || colorMap.getDefaultBackground() != null)) {
+                // All the stream would do is to wrap the line in the default colors, without them there is nothing
+                // to scope the colors of the color map to.
+                text.addMarkup(0, defaultColors.getOpeningTag());
+                text.addMarkup(s.length(), defaultColors.getClosingTag());
+            }
+        } else if ((cached = LineMarkupCache.INSTANCE.get(cacheKey = new LineMarkupCache.Key(s, state, colorMap, styleMode))) != null) {
+            cached.applyTo(text);
+            nextState = cached.getOutgoingState();
+        } else if (!budget.startLine(s.length())) {
+            LOGGER.log(Level.FINE, "passing through line {0} of {1} chars", new Object[]{lineNo, s.length()});
+            markPassedThrough(text);
+            nextState = StyleState.DEFAULT;
+        } else {
+            if (!LineMarkupCache.INSTANCE.accepts(cacheKey)) {
+                // Too long to be cached, do not keep a copy of its markup.
+                cacheKey = null;
+            }
+            if (renderer == null || renderer.colorMap != colorMap || renderer.styleMode != styleMode) {
+                renderer = new LineRenderer(colorMap, styleMode);
             }
-            EmitterImpl emitter = new EmitterImpl();
-            // We need to reopen tags that were still open at the end of the previous line so the stream's state is
-            // correct in case those tags are closed in the middle of this line.
-            try (
-                AnsiHtmlOutputStream ansiOs = new AnsiHtmlOutputStream(outgoing, colorMap, emitter, openTags);
-                CountingOutputStream incoming = new CountingOutputStream(ansiOs)
-            ) {
-                emitter.incoming = incoming;
+            renderer.startLine(text, s, cacheKey != null, state);
+            try {
+                int chunkEmitted = 0;
                 /*
                  * We only use AnsiHtmlOutputStream for its calls to Emitter.emitHtml when it encounters ANSI escape
                  * sequences; the output of the stream will be discarded. To know where to insert HTML in the MarkupText,
@@ -180,25 +245,243 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
                     if (c >= 0x80) {
                         c = '?';
                     }
-                    incoming.write(c);
-                }
-                nextOpenTags = ansiOs.getOpenTags();
-                if (colorMap.getDefaultBackground() != null || colorMap.getDefaultForeground() != null) {
-                    // The default color scheme will be opened automatically at the beginning of the stream on the next
-                    // line, so we don't want to duplicate it.
-                    // AnsiHtmlOutputStream#getOpenTags makes a copy so calling `remove` is safe.
-                    nextOpenTags.remove(0);
+                    renderer.incoming.write(c);
+                    if ((i & CHUNK_MASK) == CHUNK_MASK) {
+                        // The markup of a line is held until it is written, so its density is capped as well.
+                        if (budget.isLineOverdue() || renderer.emitted - chunkEmitted > MAX_HTML_PER_CHUNK) {
+                            LOGGER.log(Level.FINE, "cutting line {0} short at {1}/{2}", new Object[]{lineNo, i, s.length()});
+                            markPassedThrough(text);
+                            cacheKey = null;
+                            break;
+                        }
+                        chunkEmitted = renderer.emitted;
+                    }
                 }
-                // Tags open at the end of the line are closed when the stream is closed by the try-with-resources block.
+                // The default color scheme is not part of the state, it is opened again on the next line anyway.
+                nextState = renderer.stream.getState();
             } catch (IOException x) {
                 LOGGER.log(Level.WARNING, null, x);
+                cacheKey = null;
+            } finally {
+                // Tags open at the end of the line are closed, the stream itself is reused for the next line.
+                renderer.stream.closeTags();
+                budget.endLine();
+            }
+            renderer.flush();
+            if (cacheKey != null) {
+                LineMarkupCache.INSTANCE.put(cacheKey, renderer.markup.toLineMarkup(nextState));
             }
             LOGGER.finer(() -> "\"" + StringEscapeUtils.escapeJava(s) + "\" → \"" + StringEscapeUtils.escapeJava(text.toString(true)) + "\"");
         }
-        openTags = nextOpenTags;
+        state = nextState;
         return this;
     }
 
+    /**
+     * Adds the markup of the styles recorded for the line, the text of which has no escape sequences.
+     */
+    private void applySidecar(MarkupText text) {
+        final String s = text.getText();
+        if (s.isEmpty()) {
+            return;
+        }
+        AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        AnsiColorMap colorMap = descriptor.getColorMap(colorMapName);
+        StyleMode styleMode = descriptor.getStyleMode();
+        final AnsiAttributeElement defaultColors = getDefaultColors(colorMap, styleMode);
+        if (defaultColors != null) {
+            text.addMarkup(0, defaultColors.getOpeningTag());
+            text.addMarkup(s.length(), defaultColors.getClosingTag());
+        }
+        final StyleSidecar.LineStyles styles = sidecar.getLineStyles(lineBase + lineNo - 1);
+        for (int i = 0; i < styles.size(); i++) {
+            final StyleState style = styles.getState(i);
+            final int start = Math.min(styles.getStart(i), s.length());
+            final int end = i + 1 < styles.size() ? Math.min(styles.getStart(i + 1), s.length()) : s.length();
+            if (style.has(StyleState.CONCEAL) && start < end) {
+                text.addMarkup(start, end, "<!--", "-->");
+            } else if (!style.isDefault() && start < end) {
+                final String[] html = styleHtml.computeIfAbsent(style, st -> AnsiHtmlOutputStream.getStyleHtml(colorMap, styleMode, st));
+                text.addMarkup(start, end, html[0], html[1]);
+            }
+        }
+    }
+
+    @CheckForNull
+    private Run<?, ?> getRun(Object context) {
+        if (context != runContext) {
+            contextRun = runOf(context);
+            contextBlockIds = blockIdsOf(context);
+            runContext = context;
+        }
+        return contextRun;
+    }
+
+    private void markPassedThrough(MarkupText text) {
+        if (budget.mark()) {
+            text.addMarkup(0, "<span class=\"ansicolor-passed-through\">" + Util.escape(Messages.ColorConsoleAnnotator_PassedThrough()) + "</span> ");
+        }
+    }
+
+    @CheckForNull
+    private AnsiAttributeElement getDefaultColors(AnsiColorMap colorMap, StyleMode styleMode) {
+        if (colorMap != defaultColorsMap || styleMode != defaultColorsStyleMode) {
+            defaultColors = AnsiHtmlOutputStream.defaultColorsElement(colorMap, styleMode);
+            styleHtml = new HashMap<>();
+            defaultColorsMap = colorMap;
+            defaultColorsStyleMode = styleMode;
+        }
+        return defaultColors;
+    }
+
+    /**
+     * The stream a line is written to and the emitter turning the HTML the stream emits into markup of the line, kept
+     * for the lines rendered with the same color map and style mode and reset for each of them.
+     */
+    private static final class LineRenderer implements AnsiAttributeElement.Emitter {
+        final AnsiColorMap colorMap;
+        final StyleMode styleMode;
+        final LineMarkupCache.Recorder markup = new LineMarkupCache.Recorder(null, false);
+        final CountingOutputStream outgoing = new CountingOutputStream(new NullOutputStream());
+        final AnsiHtmlOutputStream stream;
+        final CountingOutputStream incoming;
+        private String line;
+        int adjustment;
+        int lastPoint; // multiple HTML tags may be emitted for one control sequence
+        // Consecutive sequences are hidden by one comment, and all the HTML they emit is inserted at once at its
+        // end, each insertion goes into a sorted list.
+        int hideStart;
+        int hideEnd;
+        final StringBuilder pending = new StringBuilder();
+        int pendingPoint;
+        int emitted;
+
+        LineRenderer(AnsiColorMap colorMap, StyleMode styleMode) {
+            this.colorMap = colorMap;
+            this.styleMode = styleMode;
+            this.stream = new AnsiHtmlOutputStream(outgoing, colorMap, styleMode, this, StyleState.DEFAULT);
+            this.incoming = new CountingOutputStream(stream);
+        }
+
+        /**
+         * @param state The style still in effect at the end of the previous line, which is reopened so the state of
+         * the stream is correct in case it is changed in the middle of this line.
+         */
+        void startLine(MarkupText text, String line, boolean recording, StyleState state) {
+            markup.reset(text, recording);
+            this.line = line;
+            adjustment = 0;
+            lastPoint = -1;
+            hideStart = -1;
+            hideEnd = -1;
+            pending.setLength(0);
+            pendingPoint = -1;
+            emitted = 0;
+            outgoing.resetCount();
+            incoming.resetCount();
+            stream.reset(state);
+        }
+
+        @Override
+        public void emitHtml(@NonNull String html) {
+            final int inCount = getIncomingCount();
+            LOGGER.log(Level.FINEST, "emitting {0} @{1}/{2}", new Object[]{html, inCount, line.length()});
+            hideIfNeeded(inCount, "");
+            if (inCount != pendingPoint) {
+                flushHtml();
+                pendingPoint = inCount;
+            }
+            pending.append(html);
+            emitted++;
+        }
+
+        void flush() {
+            if (hideEnd != -1) {
+                markup.addMarkup(hideStart, hideEnd, "<!--", "-->");
+                hideEnd = -1;
+            }
+            flushHtml();
+        }
+
+        private void flushHtml() {
+            if (pending.length() > 0) {
+                markup.addMarkup(pendingPoint, pending.toString());
+                pending.setLength(0);
+            }
+        }
+
+        /**
+         * All ANSI escapes sequences contain at least 2 bytes on modern platforms, so any HTML emitted
+         * directly after the first character is received is due to the initialization process of the stream and
+         * belongs at position 0 (i.e. default background/foreground colors).
+         *
+         * @return Incoming chars count
+         */
+        private int getIncomingCount() {
+            final int inCount = incoming.getCount();
+            return inCount == 1 ? 0 : inCount;
+        }
+
+        private void hideIfNeeded(int inCount, String msg) {
+            if (inCount != lastPoint) {
+                lastPoint = inCount;
+                final int outCount = outgoing.getCount() + adjustment;
+                final int hide = inCount - outCount;
+                // If a style is carried over, but there are no escape sequences directly on this line, or if we
+                // are emitting closing tags when closing the stream, there is nothing to hide.
+                if (hide != 0) {
+                    LOGGER.log(Level.FINEST, "hiding {0} @{1}{2}", new Object[]{hide, outCount, msg});
+                    if (outCount != hideEnd) {
+                        flush();
+                        hideStart = outCount;
+                    } else if (pending.length() > 0) {
+                        // Only hidden chars separate the HTML of the previous sequence from this one.
+                        pendingPoint = inCount;
+                    }
+                    hideEnd = inCount;
+                    adjustment += hide;
+                }
+            }
+        }
+
+        @Override
+        public void emitInvisibleSequence() {
+            hideIfNeeded(getIncomingCount(), " (ANSI sequence with no corresponding HTML tags)");
+        }
+    }
+
+    private Object writeReplace() {
+        return new Ser(this);
+    }
+
+    private Object readResolve() {
+        // Only serialized by older versions, before the styles could be kept in a sidecar.
+        lineBase = -1;
+        if (state == null) {
+            // Serialized before the style was carried as a StyleState, only the attributes can be recovered.
+            state = openTags != null ? StyleState.ofElements(openTags) : StyleState.DEFAULT;
+            openTags = null;
+        }
+        return this;
+    }
+
+    /**
+     * @return The ids of the node and of its enclosing blocks, innermost first, if the context is a flow node.
+     */
+    @CheckForNull
+    private static List<String> blockIdsOf(Object context) {
+        if (Jenkins.get().getPlugin("workflow-api") != null && context instanceof FlowNode) {
+            final FlowNode node = (FlowNode) context;
+            final List<String> ids = new ArrayList<>();
+            ids.add(node.getId());
+            for (BlockStartNode block : node.getEnclosingBlocks()) {
+                ids.add(block.getId());
+            }
+            return ids;
+        }
+        return null;
+    }
+
     @CheckForNull
     private static Run<?, ?> runOf(Object context) {
         LOGGER.log(Level.FINE, "context={0}", context);
@@ -222,6 +505,90 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
         return null;
     }
 
+    /**
+     * Compact serial form of an annotator: the color map names, mostly just an index into the default color maps, the
+     * packed {@link StyleState} and the line numbers. The {@link LineIdentifier} is stateless and simply recreated.
+     */
+    private static final class Ser implements Externalizable {
+        private static final long serialVersionUID = 1;
+
+        private static final int VERSION = 3;
+        private static final int NO_COLOR_MAP = 0;
+        private static final int CUSTOM_COLOR_MAP = 0xFF;
+
+        private ColorConsoleAnnotator annotator;
+
+        @SuppressWarnings("unused") // for deserialization
+        public Ser() {
+        }
+
+        Ser(ColorConsoleAnnotator annotator) {
+            this.annotator = annotator;
+        }
+
+        @Override
+        public void writeExternal(ObjectOutput out) throws IOException {
+            out.writeByte(VERSION);
+            writeColorMapName(out, annotator.defaultColorMapName);
+            writeColorMapName(out, annotator.colorMapName);
+            annotator.state.writeTo(out);
+            out.writeLong(annotator.lineNo);
+            out.writeBoolean(annotator.detached);
+            out.writeLong(annotator.lineBase);
+        }
+
+        @Override
+        public void readExternal(ObjectInput in) throws IOException {
+            final int version = in.readUnsignedByte();
+            if (version < 1 || version > VERSION) {
+                throw new IOException("Unsupported serial form " + version);
+            }
+            final String defaultColorMapName = readColorMapName(in);
+            final String colorMapName = readColorMapName(in);
+            final StyleState state = StyleState.readFrom(in);
+            annotator = new ColorConsoleAnnotator(defaultColorMapName, new LineIdentifier(), in.readLong());
+            annotator.colorMapName = colorMapName;
+            annotator.state = state;
+            annotator.detached = version >= 2 && in.readBoolean();
+            annotator.lineBase = version >= 3 ? in.readLong() : -1;
+        }
+
+        private Object readResolve() {
+            return annotator;
+        }
+
+        private static void writeColorMapName(ObjectOutput out, @CheckForNull String name) throws IOException {
+            if (name == null) {
+                out.writeByte(NO_COLOR_MAP);
+                return;
+            }
+            final AnsiColorMap[] defaultColorMaps = AnsiColorMap.defaultColorMaps();
+            for (int i = 0; i < defaultColorMaps.length; i++) {
+                if (defaultColorMaps[i].getName().equals(name)) {
+                    out.writeByte(i + 1);
+                    return;
+                }
+            }
+            out.writeByte(CUSTOM_COLOR_MAP);
+            out.writeUTF(name);
+        }
+
+        @CheckForNull
+        private static String readColorMapName(ObjectInput in) throws IOException {
+            final int id = in.readUnsignedByte();
+            if (id == NO_COLOR_MAP) {
+                return null;
+            } else if (id == CUSTOM_COLOR_MAP) {
+                return in.readUTF();
+            }
+            final AnsiColorMap[] defaultColorMaps = AnsiColorMap.defaultColorMaps();
+            if (id > defaultColorMaps.length) {
+                throw new IOException("Unknown color map " + id);
+            }
+            return defaultColorMaps[id - 1].getName();
+        }
+    }
+
     @Extension
     public static final class Factory extends ConsoleAnnotatorFactory<Object> {
 
@@ -231,7 +598,65 @@ final class ColorConsoleAnnotator extends ConsoleAnnotator<Object> {
         }
 
         private ConsoleAnnotator<Object> newInstance(Object context, long startLineNo) {
-            return new ColorConsoleAnnotator(Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getGlobalColorMapName(), new LineIdentifier(), startLineNo);
+            final String globalColorMapName = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).getGlobalColorMapName();
+            final ColorConsoleAnnotator annotator = new ColorConsoleAnnotator(globalColorMapName, new LineIdentifier(), startLineNo);
+            final Run<?, ?> run = runOf(context);
+            if (startLineNo == 0 && run != null && context == run) {
+                annotator.lineBase = lineBaseOf(run);
+            }
+            if (globalColorMapName == null) {
+                if (run != null && ColorizedActionTable.of(run) == null) {
+                    if (!run.isBuilding()) {
+                        // Colors were never used, so there is nothing to annotate.
+                        return null;
+                    }
+                    // Actions are added before their notes are written, so the first line needing colors will notice.
+                    annotator.detached = true;
+                }
+            }
+            return annotator;
+        }
+
+        /**
+         * @return The number of the first line of the log rendered for the current request, if the run keeps its
+         * styles in a {@link StyleSidecar} and the request is for a part of the log which is known, otherwise
+         * {@code -1}.
+         */
+        private static long lineBaseOf(Run<?, ?> run) {
+            final StaplerRequest2 req = Stapler.getCurrentRequest2();
+            if (req == null) {
+                return -1;
+            }
+            final StyleSidecar.Index index = StyleSidecar.indexOf(run);
+            if (index == null) {
+                return -1;
+            }
+            final long offset;
+            final String start = req.getParameter("start");
+            final String uri = req.getRequestURI();
+            if (start != null) {
+                // The first progressive request of a log, which is also how the console page of a running build
+                // passes on the offset its tail starts at.
+                try {
+                    offset = Long.parseLong(start);
+                } catch (NumberFormatException x) {
+                    return -1;
+                }
+            } else if (uri.endsWith("/consoleFull")) {
+                offset = 0;
+            } else if (uri.endsWith("/console") && !run.isLogUpdated()) {
+                // The console page renders the tail of a finished log itself, from an offset which is not passed on,
+                // but the length of the log no longer changes.
+                offset = Math.max(0, run.getLogText().length() - ShortlogActionCreator.getConsoleTailKB() * 1024L);
+            } else {
+                return -1;
+            }
+            try {
+                return index.getLineAt(run.getLogInputStream(), offset, offset > 0 && ShortlogActionCreator.isKeepLinesWhole());
+            } catch (IOException x) {
+                LOGGER.log(Level.WARNING, "Cannot find line at " + offset + " of " + run, x);
+                return -1;
+            }
         }
     }
 }
@@ -0,0 +1,112 @@
+package hudson.plugins.ansicolor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Writes the text of an {@link AnsiEventStream} as HTML, with its special characters escaped and each run of the same
+ * style wrapped in the elements of that style. Concealed text and console notes are left out.
+ * <p>
+ * Unlike {@link AnsiHtmlOutputStream}, which keeps elements open across style changes, the elements of a style are
+ * closed and the ones of the next style opened wherever the style changes; the markup of each style is rendered once.
+ */
+final class HtmlSink implements AnsiEventListener {
+
+    private final OutputStream html;
+    private final AnsiColorMap colorMap;
+    private final StyleMode styleMode;
+    private final StyleTracker tracker;
+    private final Map<StyleState, byte[][]> styleHtml = new HashMap<>();
+    private StyleState openState = StyleState.DEFAULT;
+    private boolean started;
+
+    /**
+     * @param html Where to write the HTML to, in the charset of the text, flushed and closed along with the stream.
+     * @param tracker The tracker of the stream, which needs to come before the sink.
+     */
+    HtmlSink(OutputStream html, AnsiColorMap colorMap, StyleMode styleMode, StyleTracker tracker) {
+        this.html = html;
+        this.colorMap = colorMap;
+        this.styleMode = styleMode;
+        this.tracker = tracker;
+    }
+
+    @Override
+    public void onText(byte[] bytes, int offset, int length) throws IOException {
+        final StyleState state = tracker.getState();
+        if (state.has(StyleState.CONCEAL)) {
+            return;
+        }
+        if (!started) {
+            started = true;
+            final AnsiAttributeElement defaultColors = AnsiHtmlOutputStream.defaultColorsElement(colorMap, styleMode);
+            if (defaultColors != null) {
+                html.write(defaultColors.getOpeningTag().getBytes(UTF_8));
+            }
+        }
+        if (!state.equals(openState)) {
+            html.write(styleHtml(openState)[1]);
+            html.write(styleHtml(state)[0]);
+            openState = state;
+        }
+        int start = offset;
+        final int end = offset + length;
+        for (int i = offset; i < end; i++) {
+            final String entity = entity(bytes[i]);
+            if (entity != null) {
+                html.write(bytes, start, i - start);
+                html.write(entity.getBytes(UTF_8));
+                start = i + 1;
+            }
+        }
+        html.write(bytes, start, end - start);
+    }
+
+    private static String entity(byte b) {
+        switch (b) {
+            case '&':
+                return "&amp;";
+            case '<':
+                return "&lt;";
+            case '>':
+                return "&gt;";
+            case '"':
+                return "&quot;";
+            case '\'':
+                return "&#39;";
+            default:
+                return null;
+        }
+    }
+
+    private byte[][] styleHtml(StyleState state) {
+        return styleHtml.computeIfAbsent(state, s -> {
+            final String[] markup = AnsiHtmlOutputStream.getStyleHtml(colorMap, styleMode, s);
+            return new byte[][] {markup[0].getBytes(UTF_8), markup[1].getBytes(UTF_8)};
+        });
+    }
+
+    @Override
+    public void onFlush() throws IOException {
+        html.flush();
+    }
+
+    @Override
+    public void onClose() throws IOException {
+        try {
+            if (started) {
+                html.write(styleHtml(openState)[1]);
+                final AnsiAttributeElement defaultColors = AnsiHtmlOutputStream.defaultColorsElement(colorMap, styleMode);
+                if (defaultColors != null) {
+                    html.write(defaultColors.getClosingTag().getBytes(UTF_8));
+                }
+            }
+        } finally {
+            html.close();
+        }
+    }
+}
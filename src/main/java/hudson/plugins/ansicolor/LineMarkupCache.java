@@ -0,0 +1,326 @@
+package hudson.plugins.ansicolor;
+
+import hudson.Extension;
+import hudson.MarkupText;
+import hudson.model.PeriodicWork;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Remembers the markup {@link ColorConsoleAnnotator} added to recently rendered lines, so that repeated lines (progress
+ * output, log prefixes, test status lines) are replayed instead of being parsed again.
+ * <p>
+ * The markup of a line only depends on its text, the style carried over from the previous line, the color map and the
+ * style mode, which together make up the key. The cache is made of shards, each a least recently used map bounded by
+ * the total weight of its entries, which is roughly the number of chars held by keys and markup. Keys are spread over
+ * the shards by their hash, so that console requests rendered in parallel rarely wait for one another.
+ */
+final class LineMarkupCache {
+
+    private static final Logger LOGGER = Logger.getLogger(LineMarkupCache.class.getName());
+
+    static final LineMarkupCache INSTANCE = new LineMarkupCache(Integer.getInteger(LineMarkupCache.class.getName() + ".maxWeight", 4 * 1024 * 1024),
+        Integer.getInteger(LineMarkupCache.class.getName() + ".shards", 16));
+
+    private final long maxWeight;
+    private final long maxEntryWeight;
+    private final Shard[] shards;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    LineMarkupCache(long maxWeight) {
+        this(maxWeight, 1);
+    }
+
+    LineMarkupCache(long maxWeight, int shards) {
+        this.maxWeight = maxWeight;
+        this.shards = new Shard[Math.max(1, shards)];
+        for (int i = 0; i < this.shards.length; i++) {
+            this.shards[i] = new Shard(maxWeight / this.shards.length);
+        }
+        this.maxEntryWeight = maxWeight / this.shards.length / 16;
+    }
+
+    @CheckForNull
+    LineMarkup get(Key key) {
+        final LineMarkup markup = shardOf(key).get(key);
+        (markup != null ? hits : misses).increment();
+        return markup;
+    }
+
+    /**
+     * @return Whether markup for the given key could be cached at all, so it is worth recording.
+     */
+    boolean accepts(Key key) {
+        return key.weight() <= maxEntryWeight;
+    }
+
+    void put(Key key, LineMarkup markup) {
+        final long entryWeight = key.weight() + markup.weight();
+        if (entryWeight > maxEntryWeight) {
+            return;
+        }
+        shardOf(key).put(key, markup, entryWeight);
+    }
+
+    private Shard shardOf(Key key) {
+        final int hash = key.hashCode();
+        return shards[Math.floorMod(hash ^ hash >>> 16, shards.length)];
+    }
+
+    void clear() {
+        for (Shard shard : shards) {
+            shard.clear();
+        }
+    }
+
+    int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    long getWeight() {
+        long weight = 0;
+        for (Shard shard : shards) {
+            weight += shard.getWeight();
+        }
+        return weight;
+    }
+
+    long getHitCount() {
+        return hits.sum();
+    }
+
+    long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return The share of lookups answered from the cache, 0 before the first lookup.
+     */
+    double getHitRatio() {
+        final long h = hits.sum();
+        final long total = h + misses.sum();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    @Override
+    public String toString() {
+        return "LineMarkupCache{size=" + size() + ", weight=" + getWeight() + "/" + maxWeight + ", hits=" + getHitCount()
+            + ", misses=" + getMissCount() + ", hitRatio=" + getHitRatio() + "}";
+    }
+
+    private static final class Shard {
+        private final long maxWeight;
+        private long weight;
+        private final Map<Key, LineMarkup> entries = new LinkedHashMap<>(64, 0.75f, true);
+
+        Shard(long maxWeight) {
+            this.maxWeight = maxWeight;
+        }
+
+        synchronized LineMarkup get(Key key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(Key key, LineMarkup markup, long entryWeight) {
+            final LineMarkup previous = entries.put(key, markup);
+            weight += entryWeight;
+            if (previous != null) {
+                weight -= key.weight() + previous.weight();
+            }
+            for (Iterator<Map.Entry<Key, LineMarkup>> it = entries.entrySet().iterator(); weight > maxWeight && it.hasNext();) {
+                final Map.Entry<Key, LineMarkup> eldest = it.next();
+                weight -= eldest.getKey().weight() + eldest.getValue().weight();
+                it.remove();
+            }
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            weight = 0;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+
+        synchronized long getWeight() {
+            return weight;
+        }
+    }
+
+    /**
+     * Logs the use of the cache at {@link Level#FINE}, to tell whether its size suits the logs of the instance.
+     */
+    @Extension
+    public static final class StatisticsLogger extends PeriodicWork {
+        private long lastLookups;
+
+        @Override
+        public long getRecurrencePeriod() {
+            return TimeUnit.MINUTES.toMillis(10);
+        }
+
+        @Override
+        protected void doRun() {
+            final long lookups = INSTANCE.getHitCount() + INSTANCE.getMissCount();
+            if (lookups != lastLookups && LOGGER.isLoggable(Level.FINE)) {
+                LOGGER.log(Level.FINE, "{0}", INSTANCE);
+            }
+            lastLookups = lookups;
+        }
+    }
+
+    /**
+     * Color maps are compared by identity, edited maps are new instances and their entries simply age out.
+     */
+    static final class Key {
+        private final String line;
+        private final StyleState state;
+        private final AnsiColorMap colorMap;
+        private final StyleMode styleMode;
+        private final int hash;
+
+        Key(String line, StyleState state, AnsiColorMap colorMap, StyleMode styleMode) {
+            this.line = line;
+            this.state = state;
+            this.colorMap = colorMap;
+            this.styleMode = styleMode;
+            this.hash = 31 * Objects.hash(line, state, styleMode) + System.identityHashCode(colorMap);
+        }
+
+        long weight() {
+            return line.length();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key that = (Key) o;
+            return hash == that.hash && colorMap == that.colorMap && styleMode == that.styleMode && state.equals(that.state)
+                && line.equals(that.line);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * The markup added to a line, in the order of the {@link MarkupText} calls, along with the style at its end.
+     */
+    static final class LineMarkup {
+        private static final int[] NO_POSITIONS = new int[0];
+        private static final String[] NO_TAGS = new String[0];
+
+        // Pairs of start and end positions and tags; the end position of markup added at a single position is -1.
+        private final int[] positions;
+        private final String[] tags;
+        private final StyleState outgoingState;
+
+        private LineMarkup(int[] positions, String[] tags, StyleState outgoingState) {
+            this.positions = positions;
+            this.tags = tags;
+            this.outgoingState = outgoingState;
+        }
+
+        StyleState getOutgoingState() {
+            return outgoingState;
+        }
+
+        void applyTo(MarkupText text) {
+            for (int i = 0; i < positions.length; i += 2) {
+                if (positions[i + 1] < 0) {
+                    text.addMarkup(positions[i], tags[i]);
+                } else {
+                    text.addMarkup(positions[i], positions[i + 1], tags[i], tags[i + 1]);
+                }
+            }
+        }
+
+        long weight() {
+            long weight = positions.length;
+            for (String tag : tags) {
+                if (tag != null) {
+                    weight += tag.length();
+                }
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * Adds markup to a line while recording it, if asked to.
+     */
+    static final class Recorder {
+        private MarkupText text;
+        private boolean recording;
+        private int[] positions = LineMarkup.NO_POSITIONS;
+        private String[] tags = LineMarkup.NO_TAGS;
+        private int size;
+
+        Recorder(MarkupText text, boolean recording) {
+            this.text = text;
+            this.recording = recording;
+        }
+
+        /**
+         * Starts over with another line, keeping the arrays grown so far.
+         */
+        void reset(MarkupText text, boolean recording) {
+            this.text = text;
+            this.recording = recording;
+            Arrays.fill(tags, 0, size, null);
+            size = 0;
+        }
+
+        void addMarkup(int pos, String tag) {
+            text.addMarkup(pos, tag);
+            record(pos, -1, tag, null);
+        }
+
+        void addMarkup(int startPos, int endPos, String startTag, String endTag) {
+            text.addMarkup(startPos, endPos, startTag, endTag);
+            record(startPos, endPos, startTag, endTag);
+        }
+
+        private void record(int startPos, int endPos, String startTag, String endTag) {
+            if (!recording) {
+                return;
+            }
+            if (size == positions.length) {
+                positions = Arrays.copyOf(positions, Math.max(16, size * 2));
+                tags = Arrays.copyOf(tags, positions.length);
+            }
+            positions[size] = startPos;
+            positions[size + 1] = endPos;
+            tags[size] = startTag;
+            tags[size + 1] = endTag;
+            size += 2;
+        }
+
+        LineMarkup toLineMarkup(StyleState outgoingState) {
+            return new LineMarkup(Arrays.copyOf(positions, size), Arrays.copyOf(tags, size), outgoingState);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package hudson.plugins.ansicolor;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Renders long logs to HTML on all cores.
+ * <p>
+ * The log is read in pieces which end at a line boundary, preferably one where the style is known to be the default
+ * one: the style is followed from a reset near the end of the piece on, and the piece ends after the last line it is
+ * back to the default at. Lines longer than a few pieces are cut where no escape sequence or char is split. Each piece is rendered on a {@link ForkJoinPool} as if no style was carried into it, and the
+ * pieces are written in order. Where a style is carried over after all, the piece is rendered again with that style
+ * before it is written, so the result is always the same as rendering the pieces one after the other; logs which
+ * reset their styles at the end of lines, as most do, are rendered in parallel throughout.
+ * <p>
+ * Only a bounded number of pieces are read ahead, so the memory used does not grow with the log.
+ */
+final class ParallelRenderer {
+
+    private static final Logger LOGGER = Logger.getLogger(ParallelRenderer.class.getName());
+
+    private static final int PIECE_SIZE = Integer.getInteger(ParallelRenderer.class.getName() + ".pieceSize", 1024 * 1024);
+    private static final int PARALLELISM = Integer.getInteger(ParallelRenderer.class.getName() + ".parallelism", Runtime.getRuntime().availableProcessors());
+
+    // How far back from the end of a piece a line ending with a reset is looked for.
+    private static final int BOUNDARY_SEARCH = 64 * 1024;
+
+    private static final byte[][] RESETS = {"\033[0m".getBytes(StandardCharsets.US_ASCII), "\033[m".getBytes(StandardCharsets.US_ASCII)};
+
+    private static volatile ForkJoinPool pool;
+
+    private ParallelRenderer() {
+    }
+
+    static void render(AnsiRenderer renderer, InputStream log, Charset charset, OutputStream out) throws IOException {
+        render(renderer, log, charset, out, PIECE_SIZE, getPool());
+    }
+
+    static void render(AnsiRenderer renderer, InputStream log, Charset charset, OutputStream out, int pieceSize, ForkJoinPool pool) throws IOException {
+        final PieceReader reader = new PieceReader(log, pieceSize, StandardCharsets.UTF_8.equals(charset));
+        final Deque<Piece> pieces = new ArrayDeque<>();
+        final int readAhead = pool.getParallelism() + 2;
+        StyleState state = StyleState.DEFAULT;
+        int missed = 0;
+        try {
+            while (true) {
+                while (pieces.size() < readAhead) {
+                    final byte[] bytes = reader.next();
+                    if (bytes == null) {
+                        break;
+                    }
+                    final Piece piece = new Piece(new String(bytes, charset));
+                    piece.task = pool.submit(() -> {
+                        piece.state = renderer.toHtml(piece.text, StyleState.DEFAULT, piece.html);
+                    });
+                    pieces.add(piece);
+                }
+                final Piece piece = pieces.poll();
+                if (piece == null) {
+                    break;
+                }
+                piece.task.join();
+                if (!state.equals(StyleState.DEFAULT)) {
+                    // A style is carried into the piece, which was rendered without.
+                    missed++;
+                    piece.html.reset();
+                    piece.state = renderer.toHtml(piece.text, state, piece.html);
+                }
+                piece.html.writeTo(out);
+                state = piece.state;
+            }
+        } finally {
+            for (Piece piece : pieces) {
+                piece.task.cancel(false);
+            }
+        }
+        LOGGER.log(Level.FINE, "{0} pieces rendered again", missed);
+    }
+
+    private static ForkJoinPool getPool() {
+        ForkJoinPool result = pool;
+        if (result == null) {
+            synchronized (ParallelRenderer.class) {
+                result = pool;
+                if (result == null) {
+                    pool = result = new ForkJoinPool(Math.max(1, PARALLELISM));
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A piece of the log, rendered as if no style was carried into it.
+     */
+    private static final class Piece {
+        private final String text;
+        private final ByteArrayOutputStream html;
+        private StyleState state;
+        private ForkJoinTask<?> task;
+
+        Piece(String text) {
+            this.text = text;
+            this.html = new ByteArrayOutputStream(text.length() + text.length() / 4);
+        }
+    }
+
+    /**
+     * Reads a log in pieces of about the given size, which end at a line boundary unless a line is longer than
+     * {@link #MAX_PIECES_PER_LINE} pieces, or than the boundary search for small pieces.
+     */
+    static final class PieceReader {
+        static final int MAX_PIECES_PER_LINE = 4;
+
+        private final InputStream in;
+        private final int pieceSize;
+        private final int maxPieceSize;
+        private final boolean utf8;
+        private byte[] rest = new byte[0];
+        private boolean eof;
+
+        PieceReader(InputStream in, int pieceSize, boolean utf8) {
+            this.in = in;
+            this.pieceSize = pieceSize;
+            this.maxPieceSize = (int) Math.min(Integer.MAX_VALUE - 8, Math.max(BOUNDARY_SEARCH, (long) pieceSize * MAX_PIECES_PER_LINE));
+            this.utf8 = utf8;
+        }
+
+        /**
+         * @return The next piece, {@code null} at the end of the log.
+         */
+        @CheckForNull
+        byte[] next() throws IOException {
+            byte[] buffer = Arrays.copyOf(rest, Math.max(pieceSize, rest.length));
+            int size = rest.length;
+            int boundary;
+            while (true) {
+                size += fill(buffer, size);
+                if (eof) {
+                    boundary = size;
+                    break;
+                }
+                boundary = findBoundary(buffer, size);
+                if (boundary > 0) {
+                    break;
+                }
+                if (buffer.length >= maxPieceSize) {
+                    // A single line longer than the longest piece, its rest goes with the next one.
+                    boundary = StyleRunsAction.cutLength(buffer, size, utf8);
+                    break;
+                }
+                buffer = Arrays.copyOf(buffer, (int) Math.min(maxPieceSize, buffer.length * 2L));
+            }
+            if (boundary == 0) {
+                return null;
+            }
+            rest = Arrays.copyOfRange(buffer, boundary, size);
+            return boundary == buffer.length ? buffer : Arrays.copyOf(buffer, boundary);
+        }
+
+        private int fill(byte[] buffer, int from) throws IOException {
+            int size = from;
+            while (size < buffer.length) {
+                final int read = in.read(buffer, size, buffer.length - size);
+                if (read == -1) {
+                    eof = true;
+                    break;
+                }
+                size += read;
+            }
+            return size - from;
+        }
+
+        /**
+         * @return The offset after the last line near the end of the buffer at the end of which the style is known to be
+         * the default one, otherwise after the last line, 0 if there is none.
+         */
+        static int findBoundary(byte[] buffer, int size) {
+            int lastLine = size;
+            while (lastLine > 0 && buffer[lastLine - 1] != '\n') {
+                lastLine--;
+            }
+            if (lastLine == 0) {
+                return 0;
+            }
+            final int reset = indexOfReset(buffer, Math.max(0, size - BOUNDARY_SEARCH), lastLine);
+            if (reset < 0) {
+                return lastLine;
+            }
+            // The style is the default one after a reset, follow it to the last line it is the default one at.
+            final AnsiHtmlOutputStream stream = new AnsiHtmlOutputStream(new NullOutputStream(), AnsiColorMap.Default, html -> { });
+            int boundary = 0;
+            try {
+                for (int from = reset, eol; from < lastLine; from = eol) {
+                    eol = from;
+                    while (buffer[eol++] != '\n') {
+                        // The last line ends before lastLine.
+                    }
+                    stream.write(buffer, from, eol - from);
+                    if (stream.getState().isDefault()) {
+                        boundary = eol;
+                    }
+                }
+            } catch (IOException x) { // should be impossible
+                throw new RuntimeException(x);
+            }
+            return boundary > 0 ? boundary : lastLine;
+        }
+
+        // @return  The offset of the first reset between from and to, -1 if there is none
+        private static int indexOfReset(byte[] buffer, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buffer[i] != 0x1B) {
+                    continue;
+                }
+                for (byte[] reset : RESETS) {
+                    if (i + reset.length <= to && Arrays.equals(buffer, i, i + reset.length, reset, 0, reset.length)) {
+                        return i;
+                    }
+                }
+            }
+            return -1;
+        }
+    }
+}
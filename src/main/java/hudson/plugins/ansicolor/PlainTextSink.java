@@ -0,0 +1,45 @@
+package hudson.plugins.ansicolor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Writes the text of an {@link AnsiEventStream} without its escape sequences, for logs which are searched, archived or
+ * downloaded as plain text.
+ */
+final class PlainTextSink implements AnsiEventListener {
+
+    private final OutputStream out;
+    private final boolean keepNotes;
+
+    /**
+     * @param out Where to write the text to, flushed and closed along with the stream.
+     * @param keepNotes Whether console notes are written as well, as a log read by the console needs them.
+     */
+    PlainTextSink(OutputStream out, boolean keepNotes) {
+        this.out = out;
+        this.keepNotes = keepNotes;
+    }
+
+    @Override
+    public void onText(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    @Override
+    public void onNote(byte[] bytes, int offset, int length) throws IOException {
+        if (keepNotes) {
+            out.write(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public void onFlush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void onClose() throws IOException {
+        out.close();
+    }
+}
@@ -0,0 +1,149 @@
+package hudson.plugins.ansicolor;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the work {@link ColorConsoleAnnotator} spends on the lines of one request, so a runaway log (a huge single
+ * line, a fuzzed escape stream) cannot pin a request thread.
+ * <p>
+ * Lines longer than the line limit, or going over the chars or time allowed for the whole request, exhaust the budget:
+ * the rest of the request is passed through without colors. A line taking longer than the line time limit is cut short
+ * and exhausts the budget too. Besides, only a few heavy lines are rendered at the same time across all requests; a
+ * heavy line arriving while all of them are taken is passed through on its own.
+ * <p>
+ * Whole logs rendered at once, which keep all cores busy, are bounded separately, see {@link #tryStartLogRender()}.
+ * <p>
+ * The limits are set with system properties named after this class, e.g. {@code hudson.plugins.ansicolor.RenderBudget.maxLineLength}.
+ */
+final class RenderBudget {
+
+    private static final String PROPERTY_PREFIX = RenderBudget.class.getName();
+
+    private static final Semaphore HEAVY_RENDERS = new Semaphore(
+        Integer.getInteger(PROPERTY_PREFIX + ".maxHeavyRenders", Math.max(1, Runtime.getRuntime().availableProcessors() / 2))
+    );
+
+    private static final Semaphore LOG_RENDERS = new Semaphore(Integer.getInteger(PROPERTY_PREFIX + ".maxLogRenders", 1));
+
+    private static final long LOG_RENDER_WAIT_MILLIS = Long.getLong(PROPERTY_PREFIX + ".logRenderWaitMillis", 5000);
+
+    private final int maxLineLength;
+    private final long maxLineNanos;
+    private final long maxRequestChars;
+    private final long maxRequestNanos;
+    private final int heavyLineLength;
+    private final Semaphore heavyRenders;
+
+    private final long requestStart = System.nanoTime();
+    private long chars;
+    private long lineStart;
+    private boolean heavy;
+    private boolean exhausted;
+    private boolean marked;
+
+    RenderBudget() {
+        this(
+            Integer.getInteger(PROPERTY_PREFIX + ".maxLineLength", 4 * 1024 * 1024),
+            Long.getLong(PROPERTY_PREFIX + ".maxLineMillis", 2000),
+            Long.getLong(PROPERTY_PREFIX + ".maxRequestChars", 64L * 1024 * 1024),
+            Long.getLong(PROPERTY_PREFIX + ".maxRequestMillis", 20000),
+            Integer.getInteger(PROPERTY_PREFIX + ".heavyLineLength", 256 * 1024),
+            HEAVY_RENDERS
+        );
+    }
+
+    RenderBudget(int maxLineLength, long maxLineMillis, long maxRequestChars, long maxRequestMillis, int heavyLineLength, Semaphore heavyRenders) {
+        this.maxLineLength = maxLineLength;
+        this.maxLineNanos = TimeUnit.MILLISECONDS.toNanos(maxLineMillis);
+        this.maxRequestChars = maxRequestChars;
+        this.maxRequestNanos = TimeUnit.MILLISECONDS.toNanos(maxRequestMillis);
+        this.heavyLineLength = heavyLineLength;
+        this.heavyRenders = heavyRenders;
+    }
+
+    /**
+     * Waits a little for one of the few whole logs that may be rendered at the same time. Each call for which this
+     * returns {@code true} must be followed by a call to {@link #endLogRender}.
+     *
+     * @return Whether the log may be rendered.
+     */
+    static boolean tryStartLogRender() {
+        try {
+            return LOG_RENDERS.tryAcquire(LOG_RENDER_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    static void endLogRender() {
+        LOG_RENDERS.release();
+    }
+
+    /**
+     * @return Whether the rest of the request is to be passed through.
+     */
+    boolean isExhausted() {
+        if (!exhausted && System.nanoTime() - requestStart > maxRequestNanos) {
+            exhausted = true;
+        }
+        return exhausted;
+    }
+
+    /**
+     * Accounts for a line about to be rendered. Each line for which this returns {@code true} must be followed by a
+     * call to {@link #endLine}.
+     *
+     * @param length The length of the line.
+     * @return Whether the line may be rendered.
+     */
+    boolean startLine(int length) {
+        if (isExhausted()) {
+            return false;
+        }
+        if (length > maxLineLength || chars + length > maxRequestChars) {
+            exhausted = true;
+            return false;
+        }
+        chars += length;
+        if (length >= heavyLineLength) {
+            if (!heavyRenders.tryAcquire()) {
+                return false;
+            }
+            heavy = true;
+        }
+        lineStart = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Meant to be polled while rendering a long line.
+     *
+     * @return Whether the line has taken too long, in which case the budget is exhausted.
+     */
+    boolean isLineOverdue() {
+        if (System.nanoTime() - lineStart > maxLineNanos) {
+            exhausted = true;
+        }
+        return exhausted;
+    }
+
+    void endLine() {
+        if (heavy) {
+            heavy = false;
+            heavyRenders.release();
+        }
+    }
+
+    /**
+     * @return {@code true} the first time only, so output passed through is marked once per request.
+     */
+    boolean mark() {
+        if (marked) {
+            return false;
+        }
+        marked = true;
+        return true;
+    }
+}
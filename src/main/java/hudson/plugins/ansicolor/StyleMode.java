@@ -0,0 +1,187 @@
+package hudson.plugins.ansicolor;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Determines how {@link AnsiHtmlOutputStream} expresses colors and attributes in the HTML it emits.
+ * <p>
+ * {@link #INLINE} bakes the concrete values of the active {@link AnsiColorMap} into a {@code style} attribute of every
+ * element. {@link #CLASSES} refers to short CSS class names instead and {@link #VARIABLES} refers to CSS custom
+ * properties ({@code var(--ansi-red)}, {@code var(--ansi-p123)}), both leaving the actual values to a stylesheet which
+ * is served by {@link AnsiColorPageDecorator}. Colors which cannot be expressed that way (24 bit RGB colors and
+ * {@code currentColor}) are always emitted inline.
+ * <p>
+ * As output rendered with different color maps may be shown on the same page, the colors of a color map apply within an
+ * element of its {@link #colorMapClass class}, wrapping all the output rendered with it in these modes.
+ */
+public enum StyleMode {
+
+    INLINE("Inline styles"),
+
+    CLASSES("CSS classes") {
+        @Override
+        String attributes(String cssClass, String style) {
+            return "class=\"" + cssClass + "\"";
+        }
+
+        @Override
+        String defaultColorsAttributes(AnsiColorMap colorMap) {
+            return attributes(colorMapClass(colorMap), null);
+        }
+
+        @Override
+        String stylesheet(AnsiColorMap... colorMaps) {
+            final StringBuilder css = new StringBuilder(16 * 1024);
+            // The rest of the palette does not depend on the color map.
+            for (int i = 16; i < AnsiHtmlOutputStream.PALETTE_SIZE; i++) {
+                appendColorRules(css, "", i, AnsiHtmlOutputStream.getPaletteColor(AnsiColorMap.Default, i));
+            }
+            for (AnsiColorMap colorMap : colorMaps) {
+                final String colorMapClass = colorMapClass(colorMap);
+                final String defaultColors = defaultColorsStyle(colorMap);
+                if (!defaultColors.isEmpty()) {
+                    css.append('.').append(colorMapClass).append('{').append(defaultColors).append("}\n");
+                }
+                for (int i = 0; i < 16; i++) {
+                    appendColorRules(css, "." + colorMapClass + " ", i, paletteColor(colorMap, i));
+                }
+            }
+            css.append(".ac-faint{font-weight:lighter}\n");
+            css.append(".ac-u2{border-bottom:3px double}\n");
+            css.append(".ac-strike{text-decoration:line-through}\n");
+            css.append(".ac-framed{border:1px solid}\n");
+            css.append(".ac-overline{text-decoration:overline}\n");
+            return css.toString();
+        }
+
+        private void appendColorRules(StringBuilder css, String scope, int paletteIndex, String color) {
+            css.append(scope).append('.').append(FOREGROUND_CLASS_PREFIX).append(paletteIndex).append("{color:").append(color).append("}\n");
+            css.append(scope).append('.').append(BACKGROUND_CLASS_PREFIX).append(paletteIndex).append("{background-color:").append(color).append("}\n");
+        }
+    },
+
+    VARIABLES("CSS custom properties") {
+        @Override
+        String paletteColor(AnsiColorMap colorMap, int paletteIndex) {
+            return "var(--" + variable(paletteIndex) + ")";
+        }
+
+        @Override
+        String defaultColorsAttributes(AnsiColorMap colorMap) {
+            return CLASSES.defaultColorsAttributes(colorMap);
+        }
+
+        @Override
+        String stylesheet(AnsiColorMap... colorMaps) {
+            // The rest of the palette does not depend on the color map.
+            final StringBuilder css = new StringBuilder(8 * 1024).append(":root{\n");
+            for (int i = 16; i < AnsiHtmlOutputStream.PALETTE_SIZE; i++) {
+                appendVariable(css, i, AnsiHtmlOutputStream.getPaletteColor(AnsiColorMap.Default, i));
+            }
+            css.append("}\n");
+            for (AnsiColorMap colorMap : colorMaps) {
+                css.append('.').append(colorMapClass(colorMap)).append("{\n");
+                for (int i = 0; i < 16; i++) {
+                    appendVariable(css, i, AnsiHtmlOutputStream.getPaletteColor(colorMap, i));
+                }
+                css.append(defaultColorsStyle(colorMap)).append("}\n");
+            }
+            return css.toString();
+        }
+
+        private void appendVariable(StringBuilder css, int paletteIndex, String color) {
+            css.append("--").append(variable(paletteIndex)).append(':').append(color).append(";\n");
+        }
+    };
+
+    /**
+     * Prefix of the class of the element carrying the default foreground/background colors of a color map, followed by
+     * the name of the color map ({@code ac-m-vga}). The colors of the color map apply within that element.
+     */
+    static final String COLOR_MAP_CLASS_PREFIX = "ac-m-";
+    /** Prefix of the classes for palette foreground colors, followed by the palette index ({@code ac-f1}, {@code ac-f196}). */
+    static final String FOREGROUND_CLASS_PREFIX = "ac-f";
+    /** Prefix of the classes for palette background colors, followed by the palette index ({@code ac-b9}). */
+    static final String BACKGROUND_CLASS_PREFIX = "ac-b";
+
+    private static final Map<String, String> COLOR_MAP_CLASSES = new ConcurrentHashMap<>();
+
+    private final String displayName;
+
+    StyleMode(String displayName) {
+        this.displayName = displayName;
+    }
+
+    public String getDisplayName() {
+        return displayName;
+    }
+
+    /**
+     * @param cssClass The class expressing an attribute in {@link #CLASSES} mode.
+     * @param style The equivalent inline CSS declarations.
+     * @return The HTML attributes to put on the element for this mode.
+     */
+    String attributes(String cssClass, String style) {
+        return "style=\"" + style + "\"";
+    }
+
+    /**
+     * @return The HTML attributes of the element wrapping the output rendered with the given color map, {@code null}
+     * if none is needed.
+     */
+    String defaultColorsAttributes(AnsiColorMap colorMap) {
+        final String style = defaultColorsStyle(colorMap);
+        return style.isEmpty() ? null : attributes(null, style);
+    }
+
+    /**
+     * @return The CSS declarations of the default foreground/background colors of the color map, empty if it has none.
+     */
+    String defaultColorsStyle(AnsiColorMap colorMap) {
+        final Integer defaultFg = colorMap.getDefaultForeground();
+        final Integer defaultBg = colorMap.getDefaultBackground();
+        return (defaultBg != null ? "background-color: " + paletteColor(colorMap, defaultBg) + ";" : "") +
+            (defaultFg != null ? "color: " + paletteColor(colorMap, defaultFg) + ";" : "");
+    }
+
+    /**
+     * @return The class scoping the colors of a color map, its name being reduced to the chars allowed in class names.
+     */
+    static String colorMapClass(AnsiColorMap colorMap) {
+        return COLOR_MAP_CLASSES.computeIfAbsent(colorMap.getName(), name -> {
+            final String cssName = name.replaceAll("[^A-Za-z0-9_-]", "_");
+            // Names which had to be changed get a suffix telling them apart.
+            return COLOR_MAP_CLASS_PREFIX + (cssName.equals(name) ? name : cssName + "-" + Integer.toHexString(name.hashCode()));
+        });
+    }
+
+    /**
+     * @return The CSS value referring to the given palette color, see {@link AnsiHtmlOutputStream#getPaletteColor}.
+     */
+    String paletteColor(AnsiColorMap colorMap, int paletteIndex) {
+        return AnsiHtmlOutputStream.getPaletteColor(colorMap, paletteIndex);
+    }
+
+    /**
+     * @return The name of the custom property holding a palette color: {@code ansi-red} and {@code ansi-bright-red}
+     * for the colors of the color map, {@code ansi-p123} for the rest of the palette.
+     */
+    static String variable(int paletteIndex) {
+        if (paletteIndex < 8) {
+            return "ansi-" + AnsiColorMap.Color.values()[paletteIndex].name().toLowerCase(Locale.ENGLISH);
+        } else if (paletteIndex < 16) {
+            return "ansi-bright-" + AnsiColorMap.Color.values()[paletteIndex - 8].name().toLowerCase(Locale.ENGLISH);
+        }
+        return "ansi-p" + paletteIndex;
+    }
+
+    /**
+     * @return The stylesheet backing the markup of this mode for the given color maps, empty if the markup is
+     * self-contained.
+     */
+    String stylesheet(AnsiColorMap... colorMaps) {
+        return "";
+    }
+}
@@ -0,0 +1,348 @@
+package hudson.plugins.ansicolor;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.Action;
+import hudson.model.Run;
+import hudson.plugins.ansicolor.action.ColorizedActionTable;
+import jenkins.model.Jenkins;
+import jenkins.model.TransientActionFactory;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.apache.commons.io.IOUtils;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest2;
+import org.kohsuke.stapler.StaplerResponse2;
+import org.kohsuke.stapler.verb.GET;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves the log of a run as plain text and style runs, so that browsers can draw the console themselves instead of
+ * the controller rendering HTML for every viewer.
+ * <p>
+ * {@code ansiColor/styleRuns?start=N&state=S} returns the plain text of the complete lines from byte offset {@code N}
+ * of the log on, along with its runs of the same style as flat {@code offset, length, style} triples indexing into a
+ * table of styles. Like the progressive console, the offset to continue from is sent as {@code X-Text-Size} and
+ * {@code X-More-Data} is set while there is more to come; the style carried over to that offset is passed back as
+ * {@code state}. Colors are palette indices or CSS values of colors outside of the palette, which makes the response
+ * the same for every color map; {@code ansiColor/palette?map=name} serves the palette of a color map. This endpoint is
+ * experimental and not used by the console yet, its format is documented in the README.
+ * <p>
+ * {@code ansiColor/html?map=name} serves the whole log of a completed run as one HTML page, see
+ * {@link AnsiRenderer#toHtml(InputStream, java.nio.charset.Charset, OutputStream)}.
+ * <p>
+ * Both parse the escape sequences in the log, so they are not found for runs which keep their styles in a
+ * {@link StyleSidecar}.
+ */
+public final class StyleRunsAction implements Action {
+
+    private static final int MAX_CHUNK = Integer.getInteger(StyleRunsAction.class.getName() + ".maxChunk", 1024 * 1024);
+
+    // Runs are only made of color codes, the color map is not used.
+    private static final AnsiRenderer PARSER = AnsiRenderer.of(AnsiColorMap.Default, StyleMode.INLINE);
+
+    private final Run<?, ?> run;
+
+    StyleRunsAction(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public String getUrlName() {
+        return "ansiColor";
+    }
+
+    @GET
+    public void doStyleRuns(StaplerRequest2 req, StaplerResponse2 rsp, @QueryParameter long start, @QueryParameter String state) throws IOException {
+        if (StyleSidecar.isRecorded(run)) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        final StyleState initialState = decodeState(state);
+        if (start < 0 || initialState == null) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final boolean logging = run.isLogUpdated();
+        if (!logging) {
+            // The log of a completed run no longer changes.
+            final String etag = "\"" + Util.getDigestOf(run.getExternalizableId() + ":" + start + ":" + state) + "\"";
+            rsp.setHeader("ETag", etag);
+            if (etag.equals(req.getHeader("If-None-Match"))) {
+                rsp.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
+        }
+
+        final byte[] chunk = new byte[MAX_CHUNK];
+        final int read;
+        try (InputStream in = run.getLogInputStream()) {
+            read = IOUtils.skip(in, start) == start ? IOUtils.read(in, chunk) : 0;
+        }
+        int length = read;
+        if (logging || read == MAX_CHUNK) {
+            // Only complete lines, unless a single line does not even fit.
+            int end = read;
+            while (end > 0 && chunk[end - 1] != '\n') {
+                end--;
+            }
+            if (end > 0) {
+                length = end;
+            } else if (read == MAX_CHUNK) {
+                // The rest of the line comes with the next chunk, which must not start in the middle of a sequence.
+                length = cutLength(chunk, read, StandardCharsets.UTF_8.equals(run.getCharset()));
+            } else {
+                // The line is still being written.
+                length = 0;
+            }
+        }
+        final boolean more = logging || read == MAX_CHUNK;
+
+        final List<AnsiRenderer.StyleRun> runs = new ArrayList<>();
+        final StyleState outgoingState = PARSER.toStyleRuns(new String(chunk, 0, length, run.getCharset()), initialState, runs);
+        final StringBuilder text = new StringBuilder(length);
+        final JSONArray runArray = new JSONArray();
+        final JSONArray styles = new JSONArray();
+        final Map<StyleState, Integer> styleIds = new HashMap<>();
+        for (AnsiRenderer.StyleRun styleRun : runs) {
+            Integer styleId = styleIds.get(styleRun.getState());
+            if (styleId == null) {
+                styleId = styles.size();
+                styleIds.put(styleRun.getState(), styleId);
+                styles.add(toJson(styleRun.getState()));
+            }
+            runArray.element(styleRun.getStart()).element(styleRun.getText().length()).element(styleId.intValue());
+            text.append(styleRun.getText());
+        }
+
+        final JSONObject response = new JSONObject()
+            .element("start", start)
+            .element("end", start + length)
+            .element("more", more)
+            .element("state", encodeState(outgoingState))
+            .element("text", text.toString())
+            .element("styles", styles)
+            .element("runs", runArray);
+        rsp.setHeader("X-Text-Size", String.valueOf(start + length));
+        if (more) {
+            rsp.setHeader("X-More-Data", "true");
+        }
+        rsp.setContentType("application/json;charset=UTF-8");
+        response.write(rsp.getWriter());
+    }
+
+    /**
+     * Serves the whole log of a completed run as HTML, rendered on all cores. Console notes are left out. Only a few
+     * logs are rendered at the same time, further requests wait a little and are turned away if none is done by then.
+     */
+    @GET
+    public void doHtml(StaplerResponse2 rsp, @QueryParameter String map) throws IOException {
+        if (StyleSidecar.isRecorded(run)) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        if (run.isLogUpdated()) {
+            rsp.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+        final AnsiRenderer renderer = AnsiRenderer.forColorMap(map);
+        if (!RenderBudget.tryStartLogRender()) {
+            // Every core is already busy rendering another log.
+            rsp.setHeader("Retry-After", "10");
+            rsp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            rsp.setContentType("text/html;charset=UTF-8");
+            try (InputStream in = run.getLogInputStream(); OutputStream out = rsp.getOutputStream()) {
+                final String stylesheet = renderer.getStylesheet();
+                out.write(("<!DOCTYPE html><html><head>" + (stylesheet.isEmpty() ? "" : "<style>" + stylesheet + "</style>")
+                    + "</head><body><pre class=\"console-output\">").getBytes(StandardCharsets.UTF_8));
+                renderer.toHtml(in, run.getCharset(), out);
+                out.write("</pre></body></html>".getBytes(StandardCharsets.UTF_8));
+            }
+        } finally {
+            RenderBudget.endLogRender();
+        }
+    }
+
+    @GET
+    public void doPalette(StaplerResponse2 rsp, @QueryParameter String map) throws IOException {
+        final AnsiColorMap colorMap = getWrapperDescriptor().getColorMap(map);
+        final JSONArray colors = new JSONArray();
+        for (int i = 0; i < AnsiHtmlOutputStream.PALETTE_SIZE; i++) {
+            colors.add(AnsiHtmlOutputStream.getPaletteColor(colorMap, i));
+        }
+        final JSONObject response = new JSONObject()
+            .element("name", colorMap.getName())
+            .element("colors", colors)
+            .element("defaultForeground", colorMap.getDefaultForeground())
+            .element("defaultBackground", colorMap.getDefaultBackground());
+        rsp.setContentType("application/json;charset=UTF-8");
+        response.write(rsp.getWriter());
+    }
+
+    /**
+     * @return The length to cut a chunk at, before an escape sequence or UTF-8 encoded char it ends in the middle of.
+     * The chunk is cut as is if backing off would leave nothing.
+     */
+    static int cutLength(byte[] chunk, int length, boolean utf8) {
+        int cut = length;
+        for (int i = length - 1; i >= Math.max(0, length - MAX_SEQUENCE); i--) {
+            if (chunk[i] == ESC) {
+                if (!isCompleteSequence(chunk, i, length)) {
+                    cut = i;
+                }
+                break;
+            }
+        }
+        if (utf8) {
+            // Skip back over continuation bytes to the leading byte of the last char.
+            int lead = cut - 1;
+            while (lead >= 0 && lead > cut - 4 && (chunk[lead] & 0xC0) == 0x80) {
+                lead--;
+            }
+            if (lead >= 0) {
+                final int b = chunk[lead] & 0xFF;
+                final int charLength = b >= 0xF0 ? 4 : b >= 0xE0 ? 3 : b >= 0xC0 ? 2 : 1;
+                if (cut - lead < charLength) {
+                    cut = lead;
+                }
+            }
+        }
+        return cut > 0 ? cut : length;
+    }
+
+    // Longest escape sequence looked for at the end of a chunk, enough for colors and most hyperlinks.
+    private static final int MAX_SEQUENCE = 256;
+
+    private static final byte ESC = 0x1B;
+
+    // @return  Whether the escape sequence starting at from ends before the given position
+    private static boolean isCompleteSequence(byte[] chunk, int from, int end) {
+        if (from + 1 >= end) {
+            return false;
+        }
+        switch (chunk[from + 1]) {
+        case '[':
+            // Control sequence, ends with a byte from @ to ~.
+            for (int i = from + 2; i < end; i++) {
+                if (chunk[i] >= 0x40 && chunk[i] <= 0x7E) {
+                    return true;
+                }
+            }
+            return false;
+        case ']':
+            // Operating system command, ends with BEL or ESC \.
+            for (int i = from + 2; i < end; i++) {
+                if (chunk[i] == 0x07) {
+                    return true;
+                }
+            }
+            return false;
+        case '(':
+        case ')':
+            // Character set designation, one more byte.
+            return from + 2 < end;
+        default:
+            return true;
+        }
+    }
+
+    /**
+     * @return The style as a JSON object, leaving out what is at its default. {@code attributes} holds the bits of
+     * {@link StyleState}: bold 1, faint 2, italic 4, underline 8, double underline 16, strikeout 32, framed 64 and
+     * overline 128.
+     */
+    private static JSONObject toJson(StyleState state) {
+        final JSONObject style = new JSONObject();
+        if (state.getAttributes() != 0) {
+            style.element("attributes", state.getAttributes());
+        }
+        final Object foreground = AnsiHtmlOutputStream.getColorReference(state.getForeground());
+        if (foreground != null) {
+            style.element("foreground", foreground);
+        }
+        final Object background = AnsiHtmlOutputStream.getColorReference(state.getBackground());
+        if (background != null) {
+            style.element("background", background);
+        }
+        if (state.isSwapColors()) {
+            style.element("negative", true);
+        }
+        return style;
+    }
+
+    private static String encodeState(StyleState state) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        state.writeTo(new DataOutputStream(bytes));
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+    }
+
+    /**
+     * @return The style passed back by a client, {@code null} if it is malformed.
+     */
+    @CheckForNull
+    private static StyleState decodeState(@CheckForNull String state) {
+        if (state == null || state.isEmpty()) {
+            return StyleState.DEFAULT;
+        }
+        try {
+            return StyleState.readFrom(new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(state))));
+        } catch (IllegalArgumentException | IOException e) {
+            return null;
+        }
+    }
+
+    private static AnsiColorBuildWrapper.DescriptorImpl getWrapperDescriptor() {
+        return Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+    }
+
+    @Extension
+    @SuppressWarnings("rawtypes")
+    public static final class Factory extends TransientActionFactory<Run> {
+
+        @Override
+        public Class<Run> type() {
+            return Run.class;
+        }
+
+        @NonNull
+        @Override
+        public Collection<? extends Action> createFor(@NonNull Run target) {
+            if (ColorizedActionTable.of(target) == null && getWrapperDescriptor().getGlobalColorMapName() == null) {
+                // Colors are not used by this run.
+                return Collections.emptyList();
+            }
+            return Collections.singletonList(new StyleRunsAction(target));
+        }
+    }
+}
@@ -0,0 +1,487 @@
+package hudson.plugins.ansicolor;
+
+import hudson.model.Run;
+import org.apache.commons.io.IOUtils;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Styles of a log kept next to it, so that the log itself is plain text.
+ * <p>
+ * {@link Recorder} strips the escape sequences from the log as it is written and appends the style changes to the
+ * sidecar file of the run: the definition of each distinct {@link StyleState} once, and then for every line the style
+ * changes on, the line number and the byte offset the line starts at in the log, followed by the char offsets within
+ * the line (not counting notes) where the style changes and the id of the style from there on. The line records double
+ * as checkpoints, so where a line of the log is can be found from the nearest of them rather than from the start of the
+ * log; lines without changes get one as well where the last one is further back than the checkpoint interval.
+ * <p>
+ * Each recorder appending to the sidecar, such as one for a resumed build, starts a segment with a table of styles
+ * of its own.
+ * <p>
+ * Console annotators only get to see lines, not where they are in the log, so the changes are keyed by line number
+ * rather than by byte offset. {@link Index} looks up the styles of a line with a binary search.
+ */
+final class StyleSidecar {
+
+    private static final Logger LOGGER = Logger.getLogger(StyleSidecar.class.getName());
+
+    static final String FILE_NAME = "ansicolor-styles";
+
+    static final int MAGIC = 0x41435331; // ACS1
+
+    private static final int STYLE_RECORD = 'S';
+    private static final int LINE_RECORD = 'L';
+    private static final int CHANGE_RECORD = 'C';
+    private static final int SEGMENT_RECORD = 'T';
+
+    private static final int CHECKPOINT_INTERVAL = Integer.getInteger(StyleSidecar.class.getName() + ".checkpointInterval", 256 * 1024);
+
+    private static final int MAX_CACHED_INDEXES = 16;
+
+    // Sidecars of running builds grow, an index is only reused as long as the file has the same length.
+    private static final Map<File, Index> INDEXES = new LinkedHashMap<File, Index>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<File, Index> eldest) {
+            return size() > MAX_CACHED_INDEXES;
+        }
+    };
+
+    private StyleSidecar() {
+    }
+
+    static File fileOf(Run<?, ?> run) {
+        return new File(run.getRootDir(), FILE_NAME);
+    }
+
+    /**
+     * @return Whether the styles of the run are kept in a sidecar, so its log holds no escape sequences.
+     */
+    static boolean isRecorded(Run<?, ?> run) {
+        return fileOf(run).length() > 0;
+    }
+
+    /**
+     * @return The logger decorated to strip the escape sequences and record their styles in the sidecar of the run.
+     */
+    static OutputStream record(Run<?, ?> run, OutputStream logger) throws IOException {
+        final File logFile = new File(run.getRootDir(), "log");
+        long baseLine = 0;
+        long baseOffset = 0;
+        if (logFile.isFile()) {
+            // Normally nothing has been written yet, unless the log is appended to.
+            logger.flush();
+            try (InputStream in = new BufferedInputStream(new FileInputStream(logFile))) {
+                int b;
+                while ((b = in.read()) != -1) {
+                    baseOffset++;
+                    if (b == '\n') {
+                        baseLine++;
+                    }
+                }
+            }
+        }
+        final File file = fileOf(run);
+        final boolean empty = !file.isFile() || file.length() == 0;
+        final DataOutputStream sidecar = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+        startSegment(sidecar, empty);
+        return new Recorder(logger, sidecar, baseLine, baseOffset, StandardCharsets.UTF_8.equals(run.getCharset()));
+    }
+
+    /**
+     * Starts the records of a recorder, with the header of the file if it is empty, otherwise with a new segment, as the
+     * style ids of the recorder start over.
+     */
+    static void startSegment(DataOutputStream sidecar, boolean empty) throws IOException {
+        if (empty) {
+            sidecar.writeInt(MAGIC);
+        } else {
+            sidecar.writeByte(SEGMENT_RECORD);
+        }
+    }
+
+    /**
+     * @return The index of the sidecar of the run, {@code null} if the run has none.
+     */
+    @CheckForNull
+    static Index indexOf(Run<?, ?> run) {
+        final File file = fileOf(run);
+        final long length = file.length();
+        if (length == 0) {
+            return null;
+        }
+        synchronized (INDEXES) {
+            final Index index = INDEXES.get(file);
+            if (index != null && index.length == length) {
+                return index;
+            }
+        }
+        final Index index;
+        try (InputStream in = new FileInputStream(file)) {
+            index = Index.read(in, length);
+        } catch (IOException x) {
+            LOGGER.log(Level.WARNING, "Cannot read " + file, x);
+            return null;
+        }
+        synchronized (INDEXES) {
+            INDEXES.put(file, index);
+        }
+        return index;
+    }
+
+    /**
+     * Writes the text of the log through to the logger without escape sequences, keeping track of the line and char
+     * offset it is at, and records a change whenever text follows a different style than the last recorded one.
+     * Notes and concealed text are passed through as they are, notes do not count as chars.
+     */
+    static final class Recorder extends OutputStream {
+        private final AnsiEventStream stream;
+        private final DataOutputStream sidecar;
+        private final Map<StyleState, Integer> styleIds = new HashMap<>();
+        private boolean dirty;
+
+        Recorder(OutputStream logger, DataOutputStream sidecar, long baseLine, long baseOffset, boolean utf8) {
+            this.sidecar = sidecar;
+            final StyleTracker tracker = new StyleTracker(AnsiColorMap.Default, StyleState.DEFAULT);
+            this.stream = new AnsiEventStream(tracker, new PlainTextSink(logger, true), new Positions(tracker, baseLine, baseOffset, utf8));
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            stream.write(b);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            stream.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            stream.flush();
+            sidecar.flush();
+            dirty = false;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                stream.close();
+            } finally {
+                sidecar.close();
+            }
+        }
+
+        private void recordChange(long line, long lineOffset, int charOffset, StyleState state, boolean newLine) throws IOException {
+            Integer styleId = styleIds.get(state);
+            if (styleId == null) {
+                styleId = styleIds.size();
+                styleIds.put(state, styleId);
+                sidecar.writeByte(STYLE_RECORD);
+                state.writeTo(sidecar);
+            }
+            if (newLine) {
+                recordLine(line, lineOffset);
+            }
+            sidecar.writeByte(CHANGE_RECORD);
+            sidecar.writeInt(charOffset);
+            sidecar.writeInt(styleId);
+            dirty = true;
+        }
+
+        private void recordLine(long line, long lineOffset) throws IOException {
+            sidecar.writeByte(LINE_RECORD);
+            sidecar.writeLong(line);
+            sidecar.writeLong(lineOffset);
+            dirty = true;
+        }
+
+        /**
+         * Counts the lines, bytes and chars written to the log, and records the style of each run of text which differs
+         * from the last recorded one. Styles only change between runs.
+         */
+        private final class Positions implements AnsiEventListener {
+            private final StyleTracker tracker;
+            private final boolean utf8;
+            private long line;
+            private long lineOffset;
+            private long offset;
+            private int charOffset;
+            private long recordedLine = -1;
+            private long recordedLineOffset;
+            private StyleState recordedState = StyleState.DEFAULT;
+
+            Positions(StyleTracker tracker, long line, long offset, boolean utf8) {
+                this.tracker = tracker;
+                this.line = line;
+                this.lineOffset = offset;
+                this.offset = offset;
+                this.recordedLineOffset = offset;
+                this.utf8 = utf8;
+            }
+
+            @Override
+            public void onText(byte[] bytes, int off, int len) throws IOException {
+                final StyleState state = tracker.getState();
+                if (!state.equals(recordedState)) {
+                    recordChange(line, lineOffset, charOffset, state, line != recordedLine);
+                    recordedState = state;
+                    recordedLine = line;
+                    recordedLineOffset = lineOffset;
+                }
+                boolean newLine = false;
+                for (int i = off; i < off + len; i++) {
+                    final int b = bytes[i];
+                    offset++;
+                    if (b == '\n') {
+                        newLine = true;
+                        line++;
+                        lineOffset = offset;
+                        charOffset = 0;
+                        if (lineOffset - recordedLineOffset >= CHECKPOINT_INTERVAL) {
+                            recordLine(line, lineOffset);
+                            recordedLine = line;
+                            recordedLineOffset = lineOffset;
+                        }
+                    } else if (!utf8 || (b & 0xC0) != 0x80) {
+                        // Chars outside of the basic multilingual plane take two UTF-16 code units.
+                        charOffset += utf8 && (b & 0xF8) == 0xF0 ? 2 : 1;
+                    }
+                }
+                if (dirty && newLine) {
+                    // Let viewers of the running build see the styles of the lines written so far.
+                    sidecar.flush();
+                    dirty = false;
+                }
+            }
+
+            @Override
+            public void onNote(byte[] bytes, int off, int len) {
+                offset += len;
+            }
+        }
+    }
+
+    /**
+     * The style changes of a sidecar, loaded into sorted arrays.
+     */
+    static final class Index {
+        private final long length;
+        private final StyleState[] styles;
+        // Lines with changes or checkpoints, ascending, with the offsets they start at and the index of their first change.
+        private final long[] lines;
+        private final long[] lineOffsets;
+        private final int[] firstChanges;
+        private final int[] changeOffsets;
+        private final int[] changeStyles;
+
+        private Index(long length, StyleState[] styles, long[] lines, long[] lineOffsets, int[] firstChanges, int[] changeOffsets, int[] changeStyles) {
+            this.length = length;
+            this.styles = styles;
+            this.lines = lines;
+            this.lineOffsets = lineOffsets;
+            this.firstChanges = firstChanges;
+            this.changeOffsets = changeOffsets;
+            this.changeStyles = changeStyles;
+        }
+
+        /**
+         * Reads a sidecar, which may still be written to. A record cut short at its end is left out.
+         */
+        static Index read(InputStream stream, long length) throws IOException {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a style sidecar");
+            }
+            final List<StyleState> styles = new ArrayList<>();
+            long[] lines = new long[64];
+            long[] lineOffsets = new long[64];
+            int[] firstChanges = new int[64];
+            int[] changeOffsets = new int[256];
+            int[] changeStyles = new int[256];
+            int lineCount = 0;
+            int changeCount = 0;
+            // Where the style table of the current segment starts.
+            int styleBase = 0;
+            try {
+                int type;
+                while ((type = in.read()) != -1) {
+                    switch (type) {
+                        case STYLE_RECORD:
+                            styles.add(StyleState.readFrom(in));
+                            break;
+                        case LINE_RECORD:
+                            final long line = in.readLong();
+                            final long lineOffset = in.readLong();
+                            if (lineCount > 0 && lines[lineCount - 1] == line) {
+                                // A segment going on with the line the last one ended in.
+                                break;
+                            }
+                            if (lineCount == lines.length) {
+                                lines = Arrays.copyOf(lines, lineCount * 2);
+                                lineOffsets = Arrays.copyOf(lineOffsets, lineCount * 2);
+                                firstChanges = Arrays.copyOf(firstChanges, lineCount * 2);
+                            }
+                            lines[lineCount] = line;
+                            lineOffsets[lineCount] = lineOffset;
+                            firstChanges[lineCount] = changeCount;
+                            lineCount++;
+                            break;
+                        case SEGMENT_RECORD:
+                            styleBase = styles.size();
+                            break;
+                        case CHANGE_RECORD:
+                            final int changeOffset = in.readInt();
+                            final int changeStyle = styleBase + in.readInt();
+                            if (lineCount == 0 || changeStyle >= styles.size()) {
+                                throw new IOException("Malformed style sidecar");
+                            }
+                            if (changeCount == changeOffsets.length) {
+                                changeOffsets = Arrays.copyOf(changeOffsets, changeCount * 2);
+                                changeStyles = Arrays.copyOf(changeStyles, changeCount * 2);
+                            }
+                            changeOffsets[changeCount] = changeOffset;
+                            changeStyles[changeCount] = changeStyle;
+                            changeCount++;
+                            break;
+                        default:
+                            throw new IOException("Malformed style sidecar");
+                    }
+                }
+            } catch (EOFException x) {
+                // Still being written.
+            }
+            return new Index(length, styles.toArray(new StyleState[0]), Arrays.copyOf(lines, lineCount),
+                Arrays.copyOf(lineOffsets, lineCount), Arrays.copyOf(firstChanges, lineCount),
+                Arrays.copyOf(changeOffsets, changeCount), Arrays.copyOf(changeStyles, changeCount));
+        }
+
+        /**
+         * @param line The number of the line in the log, from 0.
+         * @return The styles of the line: the char offsets they start at, the first one at 0, and the styles.
+         */
+        @NonNull
+        LineStyles getLineStyles(long line) {
+            final int found = Arrays.binarySearch(lines, line);
+            final int lineIndex = found >= 0 ? found : -found - 1;
+            // The style carried over from the last change before the line.
+            final int carried = lineIndex < lines.length ? firstChanges[lineIndex] - 1 : changeOffsets.length - 1;
+            final StyleState carriedState = carried >= 0 ? styles[changeStyles[carried]] : StyleState.DEFAULT;
+            if (found < 0) {
+                return new LineStyles(new int[]{0}, new StyleState[]{carriedState});
+            }
+            final int first = firstChanges[found];
+            final int end = found + 1 < lines.length ? firstChanges[found + 1] : changeOffsets.length;
+            final boolean fromStart = first < end && changeOffsets[first] == 0;
+            final int count = end - first + (fromStart ? 0 : 1);
+            final int[] offsets = new int[count];
+            final StyleState[] states = new StyleState[count];
+            int i = 0;
+            if (!fromStart) {
+                states[i++] = carriedState;
+            }
+            for (int change = first; change < end; change++, i++) {
+                offsets[i] = changeOffsets[change];
+                states[i] = styles[changeStyles[change]];
+            }
+            return new LineStyles(offsets, states);
+        }
+
+        /**
+         * @param log The log, read from its start.
+         * @param offset A byte offset into the log.
+         * @param keepLinesWhole Whether a line the offset is in the middle of is skipped.
+         * @return The number of the first line of the log shown from the offset on, {@code -1} if the nearest line
+         * recorded before the offset does not start where it was recorded to, as when loggers decorated below the
+         * recorder changed the log.
+         */
+        long getLineAt(InputStream log, long offset, boolean keepLinesWhole) throws IOException {
+            if (offset <= 0) {
+                return 0;
+            }
+            // Count the lines from the nearest line recorded before the offset on.
+            final int checkpoint = getCheckpoint(offset);
+            long line = checkpoint >= 0 ? lines[checkpoint] : 0;
+            final long from = checkpoint >= 0 ? lineOffsets[checkpoint] : 0;
+            try (InputStream in = new BufferedInputStream(log)) {
+                if (from > 0) {
+                    if (IOUtils.skip(in, from - 1) != from - 1) {
+                        throw new EOFException();
+                    }
+                    if (in.read() != '\n') {
+                        return -1;
+                    }
+                }
+                int last = '\n';
+                for (long i = from; i < offset; i++) {
+                    last = in.read();
+                    if (last == -1) {
+                        throw new EOFException();
+                    }
+                    if (last == '\n') {
+                        line++;
+                    }
+                }
+                return keepLinesWhole && last != '\n' ? line + 1 : line;
+            }
+        }
+
+        /**
+         * @return The byte offset of the nearest line recorded at or before the given one, 0 if there is none.
+         */
+        long getCheckpointOffset(long offset) {
+            final int checkpoint = getCheckpoint(offset);
+            return checkpoint >= 0 ? lineOffsets[checkpoint] : 0;
+        }
+
+        private int getCheckpoint(long offset) {
+            final int found = Arrays.binarySearch(lineOffsets, offset);
+            return found >= 0 ? found : -found - 2;
+        }
+    }
+
+    /**
+     * The runs of the same style of a line.
+     */
+    static final class LineStyles {
+        private final int[] offsets;
+        private final StyleState[] states;
+
+        LineStyles(int[] offsets, StyleState[] states) {
+            this.offsets = offsets;
+            this.states = states;
+        }
+
+        int size() {
+            return offsets.length;
+        }
+
+        int getStart(int run) {
+            return offsets[run];
+        }
+
+        StyleState getState(int run) {
+            return states[run];
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package hudson.plugins.ansicolor;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+
+/**
+ * The ANSI style in effect at some point of a stream: the attributes which are on, the foreground and background colors
+ * and whether those are swapped (negative mode).
+ * <p>
+ * This is what {@link ColorConsoleAnnotator} carries from one line to the next. It is an immutable value with cheap
+ * equality, holding color codes rather than HTML; {@link AnsiHtmlOutputStream} renders it only when it reopens the
+ * style at the start of a line.
+ */
+final class StyleState implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    // Attribute bits, in the order the elements are reopened.
+    static final int BOLD = 1;
+    static final int FAINT = 1 << 1;
+    static final int ITALIC = 1 << 2;
+    static final int UNDERLINE = 1 << 3;
+    static final int UNDERLINE_DOUBLE = 1 << 4;
+    static final int STRIKEOUT = 1 << 5;
+    static final int FRAMED = 1 << 6;
+    static final int OVERLINE = 1 << 7;
+    // Not an element, only set where concealed text is kept, see StyleTracker.
+    static final int CONCEAL = 1 << 8;
+
+    // Flags of the compact form, above the attribute bits of elements.
+    private static final int ELEMENT_ATTRIBUTES = 0xFF;
+    private static final int SWAP_COLORS_FLAG = 1 << 8;
+    private static final int FOREGROUND_FLAG = 1 << 9;
+    private static final int BACKGROUND_FLAG = 1 << 10;
+    private static final int CONCEAL_FLAG = 1 << 11;
+
+    /** No attributes, default colors. */
+    static final StyleState DEFAULT = new StyleState(0, AnsiHtmlOutputStream.NO_COLOR, AnsiHtmlOutputStream.NO_COLOR, false);
+
+    private final int attributes;
+    private final int foreground;
+    private final int background;
+    private final boolean swapColors;
+
+    private StyleState(int attributes, int foreground, int background, boolean swapColors) {
+        this.attributes = attributes;
+        this.foreground = foreground;
+        this.background = background;
+        this.swapColors = swapColors;
+    }
+
+    /**
+     * @param attributes The attribute bits which are on.
+     * @param foreground The color code of the foreground, see {@link AnsiHtmlOutputStream}.
+     * @param background The color code of the background.
+     * @param swapColors Whether negative mode is on.
+     */
+    static StyleState of(int attributes, int foreground, int background, boolean swapColors) {
+        if (attributes == 0 && foreground == AnsiHtmlOutputStream.NO_COLOR && background == AnsiHtmlOutputStream.NO_COLOR && !swapColors) {
+            return DEFAULT;
+        }
+        return new StyleState(attributes, foreground, background, swapColors);
+    }
+
+    int getAttributes() {
+        return attributes;
+    }
+
+    boolean has(int attribute) {
+        return (attributes & attribute) != 0;
+    }
+
+    int getForeground() {
+        return foreground;
+    }
+
+    int getBackground() {
+        return background;
+    }
+
+    boolean isSwapColors() {
+        return swapColors;
+    }
+
+    boolean isDefault() {
+        return equals(DEFAULT);
+    }
+
+    /**
+     * Writes the compact form: two bytes of flags, followed by the colors which are set. The default state takes just
+     * the two bytes.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        int flags = attributes & ELEMENT_ATTRIBUTES;
+        if (has(CONCEAL)) flags |= CONCEAL_FLAG;
+        if (swapColors) flags |= SWAP_COLORS_FLAG;
+        if (foreground != AnsiHtmlOutputStream.NO_COLOR) flags |= FOREGROUND_FLAG;
+        if (background != AnsiHtmlOutputStream.NO_COLOR) flags |= BACKGROUND_FLAG;
+        out.writeShort(flags);
+        if (foreground != AnsiHtmlOutputStream.NO_COLOR) out.writeInt(foreground);
+        if (background != AnsiHtmlOutputStream.NO_COLOR) out.writeInt(background);
+    }
+
+    /**
+     * Reads the form written by {@link #writeTo}.
+     *
+     * @throws IOException If the colors read are not valid color codes, as the form may come from clients.
+     */
+    static StyleState readFrom(DataInput in) throws IOException {
+        final int flags = in.readUnsignedShort();
+        final int foreground = (flags & FOREGROUND_FLAG) != 0 ? in.readInt() : AnsiHtmlOutputStream.NO_COLOR;
+        final int background = (flags & BACKGROUND_FLAG) != 0 ? in.readInt() : AnsiHtmlOutputStream.NO_COLOR;
+        if (!AnsiHtmlOutputStream.isColor(foreground) || !AnsiHtmlOutputStream.isColor(background)) {
+            throw new IOException("Invalid color in style");
+        }
+        final int attributes = flags & ELEMENT_ATTRIBUTES | ((flags & CONCEAL_FLAG) != 0 ? CONCEAL : 0);
+        return of(attributes, foreground, background, (flags & SWAP_COLORS_FLAG) != 0);
+    }
+
+    /**
+     * @return The attributes of the given elements. Colors cannot be recovered from rendered elements, so they are
+     * left at their defaults.
+     */
+    static StyleState ofElements(Iterable<AnsiAttributeElement> elements) {
+        int attributes = 0;
+        for (AnsiAttributeElement element : elements) {
+            switch (element.ansiAttrType) {
+                case BOLD:
+                    attributes |= BOLD;
+                    break;
+                case FAINT:
+                    attributes |= FAINT;
+                    break;
+                case ITALIC:
+                    attributes |= ITALIC;
+                    break;
+                case UNDERLINE:
+                    attributes |= "u".equals(element.name) ? UNDERLINE : UNDERLINE_DOUBLE;
+                    break;
+                case STRIKEOUT:
+                    attributes |= STRIKEOUT;
+                    break;
+                case FRAMED:
+                    attributes |= FRAMED;
+                    break;
+                case OVERLINE:
+                    attributes |= OVERLINE;
+                    break;
+                default:
+                    break;
+            }
+        }
+        return of(attributes, AnsiHtmlOutputStream.NO_COLOR, AnsiHtmlOutputStream.NO_COLOR, false);
+    }
+
+    private Object readResolve() {
+        return of(attributes, foreground, background, swapColors);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof StyleState)) {
+            return false;
+        }
+        StyleState that = (StyleState) o;
+        return attributes == that.attributes && foreground == that.foreground && background == that.background && swapColors == that.swapColors;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = attributes;
+        result = 31 * result + foreground;
+        result = 31 * result + background;
+        return 31 * result + (swapColors ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "StyleState{attributes=0x" + Integer.toHexString(attributes) + ", foreground=" + foreground +
+            ", background=" + background + ", swapColors=" + swapColors + "}";
+    }
+}
@@ -0,0 +1,156 @@
+package hudson.plugins.ansicolor;
+
+/**
+ * Follows the Select Graphic Rendition sequences of an {@link AnsiEventStream} and keeps the {@link StyleState} in
+ * effect, the way {@link AnsiHtmlOutputStream} does but without rendering anything. Unlike the HTML, the state also
+ * tells whether text is concealed, by {@link StyleState#CONCEAL}.
+ * <p>
+ * Listeners after the tracker in the stream see the state which applies to the text they are passed.
+ */
+final class StyleTracker implements AnsiEventListener {
+
+    private final AnsiColorMap colorMap;
+    private int attributes;
+    private int foreground;
+    private int background;
+    private boolean swapColors;
+    private StyleState state;
+
+    /**
+     * @param colorMap The color map, whose default colors are taken for colors reset in negative mode.
+     * @param state The style to start from.
+     */
+    StyleTracker(AnsiColorMap colorMap, StyleState state) {
+        this.colorMap = colorMap;
+        this.attributes = state.getAttributes();
+        this.foreground = state.getForeground();
+        this.background = state.getBackground();
+        this.swapColors = state.isSwapColors();
+        this.state = state;
+    }
+
+    StyleState getState() {
+        if (state == null) {
+            state = StyleState.of(attributes, foreground, background, swapColors);
+        }
+        return state;
+    }
+
+    @Override
+    public void onSgr(int[] params, int count) {
+        state = null;
+        for (int i = 0; i < count; i++) {
+            final int value = params[i];
+            if (value >= 30 && value <= 37) {
+                setForeground(value - 30);
+            } else if (value >= 40 && value <= 47) {
+                setBackground(value - 40);
+            } else if (value >= 90 && value <= 97) {
+                setForeground(8 + value - 90);
+            } else if (value >= 100 && value <= 107) {
+                setBackground(8 + value - 100);
+            } else if (value == 38 || value == 48) {
+                // Validated by the stream.
+                if (i + 1 >= count) {
+                    continue;
+                }
+                final int color;
+                if (params[i + 1] == 5) {
+                    color = params[i + 2];
+                    i += 2;
+                } else {
+                    color = AnsiHtmlOutputStream.RGB_FLAG | params[i + 2] << 16 | params[i + 3] << 8 | params[i + 4];
+                    i += 4;
+                }
+                if (value == 38) {
+                    setForeground(color);
+                } else {
+                    setBackground(color);
+                }
+            } else {
+                setAttribute(value);
+            }
+        }
+    }
+
+    private void setAttribute(int value) {
+        switch (value) {
+            case 0:
+                attributes = 0;
+                foreground = AnsiHtmlOutputStream.NO_COLOR;
+                background = AnsiHtmlOutputStream.NO_COLOR;
+                swapColors = false;
+                break;
+            case 39:
+                setForeground(AnsiHtmlOutputStream.NO_COLOR);
+                break;
+            case 49:
+                setBackground(AnsiHtmlOutputStream.NO_COLOR);
+                break;
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_BOLD:
+                attributes |= StyleState.BOLD;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_FAINT:
+                attributes |= StyleState.FAINT;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_INTENSITY_NORMAL:
+                attributes &= ~(StyleState.BOLD | StyleState.FAINT);
+                break;
+            case AnsiOutputStream.ATTRIBUTE_ITALIC:
+                attributes |= StyleState.ITALIC;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_ITALIC_OFF:
+                attributes &= ~StyleState.ITALIC;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE:
+                attributes = attributes & ~StyleState.UNDERLINE_DOUBLE | StyleState.UNDERLINE;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE_DOUBLE:
+                attributes = attributes & ~StyleState.UNDERLINE | StyleState.UNDERLINE_DOUBLE;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_UNDERLINE_OFF:
+                attributes &= ~(StyleState.UNDERLINE | StyleState.UNDERLINE_DOUBLE);
+                break;
+            case AnsiOutputStream.ATTRIBUTE_NEGATIVE_ON:
+                swapColors = true;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_NEGATIVE_Off:
+                swapColors = false;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_CONCEAL_ON:
+                attributes |= StyleState.CONCEAL;
+                break;
+            case AnsiOutputStream.ATTRIBUTE_CONCEAL_OFF:
+                attributes &= ~StyleState.CONCEAL;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_STRIKEOUT:
+                attributes |= StyleState.STRIKEOUT;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_STRIKEOUT_OFF:
+                attributes &= ~StyleState.STRIKEOUT;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_FRAMED:
+                attributes |= StyleState.FRAMED;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_FRAMED_OFF:
+                attributes &= ~StyleState.FRAMED;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_OVERLINE:
+                attributes |= StyleState.OVERLINE;
+                break;
+            case AnsiHtmlOutputStream.ATTRIBUTE_OVERLINE_OFF:
+                attributes &= ~StyleState.OVERLINE;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void setForeground(int color) {
+        foreground = color == AnsiHtmlOutputStream.NO_COLOR && swapColors ? AnsiHtmlOutputStream.getDefaultForegroundColor(colorMap) : color;
+    }
+
+    private void setBackground(int color) {
+        background = color == AnsiHtmlOutputStream.NO_COLOR && swapColors ? AnsiHtmlOutputStream.getDefaultBackgroundColor(colorMap) : color;
+    }
+}
@@ -28,17 +28,24 @@ import hudson.MarkupText;
 import hudson.model.InvisibleAction;
 import hudson.model.Run;
 import hudson.plugins.ansicolor.AnsiColorMap;
+import jenkins.model.RunAction2;
 
-import java.util.Optional;
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.util.List;
+import java.util.Objects;
 import java.util.UUID;
 import java.util.logging.Logger;
 
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_BEGIN;
+import static hudson.plugins.ansicolor.action.CommandNote.TAG_COMMAND_BEGIN;
 
 /**
  * Action for issuing commands to ColorConsoleAnnotator
+ * <p>
+ * Commands are kept by the {@link ColorizedActionTable} of the run. Runs saved by older versions have one action per
+ * command, they are moved to the table when loaded.
  */
-public class ColorizedAction extends InvisibleAction {
+public class ColorizedAction extends InvisibleAction implements RunAction2 {
     private static final Logger LOGGER = Logger.getLogger(ColorizedAction.class.getName());
     private static final String TAG_PIPELINE_INTERNAL = "<span class=\"pipeline-new-node\"";
     static final ColorizedAction CONTINUE = new ColorizedAction("", Command.CONTINUE);
@@ -69,9 +76,13 @@ public class ColorizedAction extends InvisibleAction {
     }
 
     public ColorizedAction(String id, ColorizedAction other) {
+        this(id, other.colorMapName, other.command);
+    }
+
+    ColorizedAction(String id, String colorMapName, Command command) {
         this.id = id;
-        colorMapName = other.colorMapName;
-        command = other.command;
+        this.colorMapName = colorMapName;
+        this.command = command;
     }
 
     public String getId() {
@@ -86,14 +97,56 @@ public class ColorizedAction extends InvisibleAction {
         return command;
     }
 
+    @Override
+    public void onAttached(Run<?, ?> r) {
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> r) {
+        ColorizedActionTable.getOrCreate(r).migrate(r, this);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ColorizedAction)) {
+            return false;
+        }
+        ColorizedAction that = (ColorizedAction) o;
+        return id.equals(that.id) && colorMapName.equals(that.colorMapName) && command == that.command;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(id, colorMapName, command);
+    }
+
     public static ColorizedAction parseAction(MarkupText text, Run<?, ?> run) {
+        return parseAction(text, run, null);
+    }
+
+    /**
+     * @param blockIds The ids of the blocks enclosing the line, innermost first, if it is rendered for a single flow node.
+     */
+    public static ColorizedAction parseAction(MarkupText text, Run<?, ?> run, @CheckForNull List<String> blockIds) {
         final String line = text.toString(false);
+        final int commandOffset = line.indexOf(TAG_COMMAND_BEGIN);
+        if (commandOffset != -1) {
+            final int from = commandOffset + TAG_COMMAND_BEGIN.length() + 1;
+            final int to = line.indexOf("\"", from);
+            final ColorizedAction action = CommandNote.parse(line.substring(from, to));
+            return action != null ? action : CONTINUE;
+        }
         final int actionIdOffset = line.indexOf(TAG_ACTION_BEGIN);
         if (actionIdOffset != -1) {
             final int from = actionIdOffset + TAG_ACTION_BEGIN.length() + 1;
             final int to = line.indexOf("\"", from);
             final String id = line.substring(from, to);
-            return run.getActions(ColorizedAction.class).stream().filter(a -> id.equals(a.getId())).findAny().orElse(CONTINUE);
+            final ColorizedActionTable table = ColorizedActionTable.of(run);
+            final ColorizedAction action = table != null ? table.getById(id) : null;
+            return action != null ? action : CONTINUE;
         }
         if (line.contains(TAG_PIPELINE_INTERNAL)) {
             return IGNORE;
@@ -101,17 +154,18 @@ public class ColorizedAction extends InvisibleAction {
         final boolean isBuilding = run.isBuilding();
         LOGGER.fine("Run is building: " + isBuilding);
         if (isBuilding) {
-            Optional<ColorizedAction> currentAction = run.getActions(ColorizedAction.class).stream()
-                .filter(a -> Command.CURRENT.equals(a.getCommand()))
-                .findFirst();
-            if (currentAction.isPresent()) {
-                return currentAction.get();
+            final ColorizedActionTable table = ColorizedActionTable.of(run);
+            final ColorizedAction currentAction = table == null ? null : blockIds != null ? table.getCurrent(blockIds) : table.getCurrent();
+            if (currentAction != null) {
+                return currentAction;
             }
         }
         return CONTINUE;
     }
 
     public static ColorizedAction parseAction(String lineContent, long lineNo, Run<?, ?> run, LineIdentifier lineIdentifier) {
-        return run.getActions(ColorizedAction.class).stream().filter(a -> lineIdentifier.isEqual(lineContent, lineNo, a.id)).findAny().orElse(CONTINUE);
+        final ColorizedActionTable table = ColorizedActionTable.of(run);
+        final ColorizedAction action = table != null ? table.getById(lineIdentifier.hash(lineContent, lineNo)) : null;
+        return action != null ? action : CONTINUE;
     }
 }
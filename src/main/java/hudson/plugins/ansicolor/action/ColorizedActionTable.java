@@ -0,0 +1,337 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+import jenkins.util.Timer;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The {@link ColorizedAction}s of a run, held by one action instead of one action per command.
+ * <p>
+ * Commands are appended to a table of packed entries, each made of the command and the index of its color map in the
+ * list of distinct color map names. Appending is lock free, so parallel branches issuing commands neither wait on each
+ * other nor on the list of actions of the run. Only the entries which are looked up by id keep one: commands issued
+ * before this table existed, whose {@link ActionNote}s refer to them, and the action created for the shortlog. The
+ * table is saved as a single Base64 string.
+ * <p>
+ * The color map in effect is tracked per block: commands issued by a pipeline step carry the id of its block, so the
+ * output of parallel branches each finds the color map of its own enclosing block.
+ */
+public class ColorizedActionTable extends InvisibleAction {
+    private static final Logger LOGGER = Logger.getLogger(ColorizedActionTable.class.getName());
+
+    private static final int CHUNK_SIZE = 256;
+    private static final int COMMAND_BITS = 3;
+    private static final int COMMAND_MASK = (1 << COMMAND_BITS) - 1;
+    private static final ColorizedAction.Command[] COMMANDS = ColorizedAction.Command.values();
+
+    // The saved form, only set on the copy made by writeReplace and on a table being loaded.
+    private List<String> colorMapNames;
+    private String entries;
+    private Map<String, Integer> ids;
+    private Map<String, String> blocks;
+
+    private transient List<String> names;
+    private transient Chunk head;
+    private transient AtomicReference<Chunk> tail;
+    private transient Map<String, Integer> idIndex;
+    private transient Map<String, ColorizedAction> currentByBlock;
+    // The color maps of the blocks started and not stopped yet, innermost first.
+    private transient Deque<ColorizedAction> started;
+    @CheckForNull
+    private transient volatile ColorizedAction current;
+    private transient boolean saveScheduled;
+
+    public ColorizedActionTable() {
+        init();
+    }
+
+    private void init() {
+        names = new CopyOnWriteArrayList<>();
+        head = new Chunk(0);
+        tail = new AtomicReference<>(head);
+        idIndex = new ConcurrentHashMap<>();
+        currentByBlock = new ConcurrentHashMap<>();
+        started = new ArrayDeque<>();
+    }
+
+    @CheckForNull
+    public static ColorizedActionTable of(@NonNull Run<?, ?> run) {
+        return run.getAction(ColorizedActionTable.class);
+    }
+
+    @NonNull
+    public static ColorizedActionTable getOrCreate(@NonNull Run<?, ?> run) {
+        ColorizedActionTable table = of(run);
+        if (table == null) {
+            synchronized (ColorizedActionTable.class) {
+                table = of(run);
+                if (table == null) {
+                    table = new ColorizedActionTable();
+                    run.addAction(table);
+                }
+            }
+        }
+        return table;
+    }
+
+    /**
+     * Appends a command, its id is not kept.
+     */
+    public void add(@NonNull ColorizedAction action) {
+        append(action.getCommand(), action.getColorMapName());
+    }
+
+    /**
+     * Appends a command issued by a block, usually a pipeline step, which starts or stops coloring its own output.
+     *
+     * @param blockId The id of the block, the same for its START and STOP commands.
+     */
+    public void add(@NonNull ColorizedAction action, @NonNull String blockId) {
+        add(action);
+        if (action.getCommand() == ColorizedAction.Command.START) {
+            currentByBlock.put(blockId, new ColorizedAction("", action.getColorMapName(), ColorizedAction.Command.CURRENT));
+        } else if (action.getCommand() == ColorizedAction.Command.STOP) {
+            currentByBlock.remove(blockId);
+        }
+    }
+
+    /**
+     * Appends a command which can then be found by its id.
+     */
+    public void addWithId(@NonNull ColorizedAction action) {
+        idIndex.put(action.getId(), append(action.getCommand(), action.getColorMapName()));
+    }
+
+    @CheckForNull
+    public ColorizedAction getById(@NonNull String id) {
+        final Integer index = idIndex.get(id);
+        if (index == null) {
+            return null;
+        }
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next.get()) {
+            if (index < chunk.base + CHUNK_SIZE) {
+                final int value = chunk.values.get(index - chunk.base);
+                return value != 0 ? toAction(id, value) : null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return The command holding the color map of the innermost block still running, if any.
+     */
+    @CheckForNull
+    public ColorizedAction getCurrent() {
+        return current;
+    }
+
+    /**
+     * @param blockIds The ids of the blocks enclosing some output, innermost first.
+     * @return The command holding the color map of the innermost of these blocks still running, if any.
+     */
+    @CheckForNull
+    public ColorizedAction getCurrent(@NonNull List<String> blockIds) {
+        for (String blockId : blockIds) {
+            final ColorizedAction action = currentByBlock.get(blockId);
+            if (action != null) {
+                return action;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return All the commands in the order they were issued, with an empty id unless they keep one.
+     */
+    @NonNull
+    public List<ColorizedAction> getActions() {
+        final Map<Integer, String> idsByIndex = new HashMap<>();
+        idIndex.forEach((id, index) -> idsByIndex.put(index, id));
+        final List<ColorizedAction> actions = new ArrayList<>();
+        forEachEntry((index, value) -> actions.add(toAction(idsByIndex.getOrDefault(index, ""), value)));
+        return actions;
+    }
+
+    /**
+     * Moves an action saved by an older version, one action per command, to this table.
+     */
+    void migrate(@NonNull Run<?, ?> run, @NonNull ColorizedAction action) {
+        if (action.getCommand() == ColorizedAction.Command.CURRENT) {
+            // These were never removed, the first one was the one in use.
+            if (current == null && run.isBuilding()) {
+                current = action;
+            }
+        } else {
+            addWithId(action);
+        }
+        run.removeAction(action);
+        if (!saveScheduled) {
+            saveScheduled = true;
+            // Runs are being loaded, save the compacted form once that is over.
+            Timer.get().submit(() -> {
+                try {
+                    run.save();
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not save the migrated actions of " + run, e);
+                }
+            });
+        }
+    }
+
+    private int append(ColorizedAction.Command command, String colorMapName) {
+        int mapIndex = names.indexOf(colorMapName);
+        if (mapIndex == -1) {
+            names.add(colorMapName);
+            mapIndex = names.indexOf(colorMapName);
+        }
+        final int value = ((mapIndex << COMMAND_BITS) | command.ordinal()) + 1;
+        final int index = appendValue(value);
+        track(value);
+        return index;
+    }
+
+    private int appendValue(int value) {
+        for (;;) {
+            final Chunk last = tail.get();
+            final int slot = last.claimed.getAndIncrement();
+            if (slot < CHUNK_SIZE) {
+                last.values.set(slot, value);
+                return last.base + slot;
+            }
+            Chunk next = last.next.get();
+            if (next == null) {
+                last.next.compareAndSet(null, new Chunk(last.base + CHUNK_SIZE));
+                next = last.next.get();
+            }
+            tail.compareAndSet(last, next);
+        }
+    }
+
+    private void track(int value) {
+        final ColorizedAction.Command command = COMMANDS[(value - 1) & COMMAND_MASK];
+        if (command != ColorizedAction.Command.START && command != ColorizedAction.Command.STOP) {
+            return;
+        }
+        synchronized (started) {
+            if (command == ColorizedAction.Command.START) {
+                started.push(new ColorizedAction("", names.get((value - 1) >>> COMMAND_BITS), ColorizedAction.Command.CURRENT));
+            } else {
+                // A stop without a start is ignored.
+                started.poll();
+            }
+            // The enclosing block is in effect again once an inner one stops.
+            current = started.peek();
+        }
+    }
+
+    private ColorizedAction toAction(String id, int value) {
+        return new ColorizedAction(id, names.get((value - 1) >>> COMMAND_BITS), COMMANDS[(value - 1) & COMMAND_MASK]);
+    }
+
+    private void forEachEntry(EntryVisitor visitor) {
+        for (Chunk chunk = head; chunk != null; chunk = chunk.next.get()) {
+            final int claimed = Math.min(chunk.claimed.get(), CHUNK_SIZE);
+            for (int slot = 0; slot < claimed; slot++) {
+                int value;
+                // A slot is claimed right before it is written, skipping it would shift the entries after it.
+                while ((value = chunk.values.get(slot)) == 0) {
+                    Thread.onSpinWait();
+                }
+                visitor.visit(chunk.base + slot, value);
+            }
+        }
+    }
+
+    private Object writeReplace() {
+        final ColorizedActionTable form = new ColorizedActionTable();
+        // Ids are put once their entry is appended, so the entries written below include all the ones of these ids.
+        form.ids = idIndex.isEmpty() ? null : new HashMap<>(idIndex);
+        form.colorMapNames = new ArrayList<>(names);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        // Entries are written as variable length quantities, mostly a single byte.
+        forEachEntry((index, value) -> {
+            int v = value;
+            while (v >= 0x80) {
+                bytes.write(v & 0x7F | 0x80);
+                v >>>= 7;
+            }
+            bytes.write(v);
+        });
+        form.entries = Base64.getEncoder().encodeToString(bytes.toByteArray());
+        if (!currentByBlock.isEmpty()) {
+            form.blocks = new HashMap<>();
+            currentByBlock.forEach((blockId, action) -> form.blocks.put(blockId, action.getColorMapName()));
+        }
+        return form;
+    }
+
+    private Object readResolve() {
+        init();
+        if (colorMapNames != null) {
+            names.addAll(colorMapNames);
+        }
+        if (entries != null) {
+            final byte[] bytes = Base64.getDecoder().decode(entries);
+            int value = 0;
+            int shift = 0;
+            for (byte b : bytes) {
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) != 0) {
+                    shift += 7;
+                    continue;
+                }
+                appendValue(value);
+                track(value);
+                value = 0;
+                shift = 0;
+            }
+        }
+        if (ids != null) {
+            idIndex.putAll(ids);
+        }
+        if (blocks != null) {
+            blocks.forEach((blockId, colorMapName) ->
+                currentByBlock.put(blockId, new ColorizedAction("", colorMapName, ColorizedAction.Command.CURRENT)));
+        }
+        colorMapNames = null;
+        entries = null;
+        ids = null;
+        blocks = null;
+        return this;
+    }
+
+    @FunctionalInterface
+    private interface EntryVisitor {
+        void visit(int index, int value);
+    }
+
+    private static final class Chunk {
+        final int base;
+        final AtomicIntegerArray values = new AtomicIntegerArray(CHUNK_SIZE);
+        final AtomicInteger claimed = new AtomicInteger();
+        final AtomicReference<Chunk> next = new AtomicReference<>();
+
+        Chunk(int base) {
+            this.base = base;
+        }
+    }
+}
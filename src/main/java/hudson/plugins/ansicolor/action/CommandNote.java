@@ -0,0 +1,84 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.MarkupText;
+import hudson.console.ConsoleAnnotator;
+import hudson.console.ConsoleNote;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Marker note carrying a command and its color map name inline, so rendering it needs no lookup of the
+ * {@link ColorizedAction} it accompanies. It replaces {@link ActionNote}, which is still rendered in older logs.
+ * <p>
+ * Notes are serialized into the log, so this one only writes the command and the color map name.
+ */
+public class CommandNote extends ConsoleNote<Object> implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    static final String TAG_COMMAND_BEGIN = "<div style=\"display:none\" data-ansicolor-command=";
+    static final String TAG_COMMAND_END = "></div>";
+
+    private ColorizedAction.Command command;
+    private String colorMapName;
+
+    @SuppressWarnings("unused") // for deserialization
+    public CommandNote() {
+    }
+
+    public CommandNote(ColorizedAction action) {
+        command = action.getCommand();
+        colorMapName = action.getColorMapName();
+    }
+
+    @Override
+    public ConsoleAnnotator<Object> annotate(Object context, MarkupText text, int charPos) {
+        text.addMarkup(charPos, TAG_COMMAND_BEGIN + "\"" + command + ":" + URLEncoder.encode(colorMapName, UTF_8) + "\"" + TAG_COMMAND_END);
+        return null;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        out.writeByte(command.ordinal());
+        out.writeUTF(colorMapName);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        final int ordinal = in.readUnsignedByte();
+        final ColorizedAction.Command[] commands = ColorizedAction.Command.values();
+        if (ordinal >= commands.length) {
+            throw new IOException("Unknown command " + ordinal);
+        }
+        command = commands[ordinal];
+        colorMapName = in.readUTF();
+    }
+
+    /**
+     * @param value The value of the attribute added by {@link #annotate}, without quotes.
+     * @return The command it stands for, or {@code null} if it is malformed.
+     */
+    @CheckForNull
+    static ColorizedAction parse(String value) {
+        final int separator = value.indexOf(':');
+        if (separator == -1) {
+            return null;
+        }
+        try {
+            return new ColorizedAction(
+                "",
+                URLDecoder.decode(value.substring(separator + 1), UTF_8),
+                ColorizedAction.Command.valueOf(value.substring(0, separator))
+            );
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,430 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.console.AnnotatedLargeText;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Reads the bytes of a log at any offset, so that its tail can be searched without reading it from the start.
+ * <p>
+ * Compressed logs ({@code log.gz}) are read through an index of their blocks if they are made of blocks recording their
+ * own size, as written by {@code bgzip}. Other compressed logs can only be read from their start, they are not
+ * {@link #isSeekable() seekable}. Logs which are not kept in a file are read through the log API of their run.
+ */
+abstract class LogReader implements Closeable {
+
+    private static final int GZIP_MAGIC = 0x8b1f;
+
+    /**
+     * @return A reader of the log, {@code .gz} files being decompressed.
+     */
+    static LogReader open(File file) throws IOException {
+        if (!file.getName().endsWith(".gz")) {
+            return new FileLogReader(file);
+        }
+        final BlockGzipLogReader blocks = BlockGzipLogReader.open(file);
+        return blocks != null ? blocks : new GzipLogReader(file);
+    }
+
+    /**
+     * @return A reader of a log through the log API, for logs kept elsewhere than in the build directory.
+     */
+    static LogReader of(AnnotatedLargeText<?> text) {
+        return new LargeTextLogReader(text);
+    }
+
+    /**
+     * @return The length of the log. For logs which are not {@link #isSeekable() seekable} this may be an estimate,
+     * see {@link #getVerifiedLength()}.
+     */
+    abstract long length() throws IOException;
+
+    /**
+     * @return The number of bytes read, less than requested only at the end of the log.
+     */
+    abstract int read(long position, byte[] b, int off, int len) throws IOException;
+
+    /**
+     * @return Whether reading at decreasing offsets is cheap.
+     */
+    boolean isSeekable() {
+        return true;
+    }
+
+    /**
+     * @return The actual length of the log, which may mean reading it to its end.
+     */
+    long getVerifiedLength() throws IOException {
+        return length();
+    }
+
+    private static final class FileLogReader extends LogReader {
+        private final RandomAccessFile file;
+
+        FileLogReader(File file) throws IOException {
+            this.file = new RandomAccessFile(file, "r");
+        }
+
+        @Override
+        long length() throws IOException {
+            return file.length();
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            file.seek(position);
+            int total = 0;
+            while (total < len) {
+                final int read = file.read(b, off + total, len - total);
+                if (read == -1) {
+                    break;
+                }
+                total += read;
+            }
+            return total;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a log from the position it is asked for, as its storage serves it, and stops reading as soon as enough was
+     * read, so that reading at the tail of the log does not transfer all of it.
+     */
+    private static final class LargeTextLogReader extends LogReader {
+        private final AnnotatedLargeText<?> text;
+
+        LargeTextLogReader(AnnotatedLargeText<?> text) {
+            this.text = text;
+        }
+
+        @Override
+        long length() {
+            return text.length();
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            final BoundedOutputStream out = new BoundedOutputStream(b, off, len);
+            if (len > 0 && position < length()) {
+                try {
+                    text.writeRawLogTo(position, out);
+                } catch (BufferFullException x) {
+                    // as much as asked for was read
+                }
+            }
+            return out.count;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Writes into an array and fails once it is full, to stop whoever writes to it.
+     */
+    private static final class BoundedOutputStream extends OutputStream {
+        private final byte[] b;
+        private final int off;
+        private final int len;
+        private int count;
+
+        BoundedOutputStream(byte[] b, int off, int len) {
+            this.b = b;
+            this.off = off;
+            this.len = len;
+        }
+
+        @Override
+        public void write(int value) throws IOException {
+            write(new byte[]{(byte) value}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int from, int length) throws IOException {
+            final int copied = Math.min(length, len - count);
+            System.arraycopy(bytes, from, b, off + count, copied);
+            count += copied;
+            if (count == len) {
+                throw new BufferFullException();
+            }
+        }
+    }
+
+    private static final class BufferFullException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Reads a gzip file made of members which record their size in a {@code BC} extra field (BGZF). The offsets of the
+     * members are indexed from their headers and trailers, without decompressing anything, and only the member holding
+     * the requested offset is decompressed.
+     */
+    private static final class BlockGzipLogReader extends LogReader {
+        private final RandomAccessFile file;
+        // Offsets of the members in the file and of their data in the log, one more than there are members.
+        private final long[] offsets;
+        private final long[] logOffsets;
+        private final Inflater inflater = new Inflater(true);
+        private int cachedBlock = -1;
+        private byte[] cached;
+
+        private BlockGzipLogReader(RandomAccessFile file, long[] offsets, long[] logOffsets) {
+            this.file = file;
+            this.offsets = offsets;
+            this.logOffsets = logOffsets;
+        }
+
+        /**
+         * @return The reader, {@code null} if not all members of the file record their size.
+         */
+        static BlockGzipLogReader open(File f) throws IOException {
+            final RandomAccessFile file = new RandomAccessFile(f, "r");
+            boolean indexed = false;
+            try {
+                final long length = file.length();
+                long[] offsets = new long[64];
+                long[] logOffsets = new long[64];
+                int count = 0;
+                long offset = 0;
+                long logOffset = 0;
+                final byte[] header = new byte[12];
+                while (offset < length) {
+                    file.seek(offset);
+                    file.readFully(header);
+                    if (readShort(header, 0) != GZIP_MAGIC || header[2] != 8 || (header[3] & 4) == 0) {
+                        return null;
+                    }
+                    final byte[] extra = new byte[readShort(header, 10)];
+                    file.readFully(extra);
+                    final int size = blockSize(extra);
+                    if (size < 0 || offset + size > length) {
+                        return null;
+                    }
+                    file.seek(offset + size - 4);
+                    final long logSize = Integer.toUnsignedLong(Integer.reverseBytes(file.readInt()));
+                    if (count + 1 == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        logOffsets = Arrays.copyOf(logOffsets, logOffsets.length * 2);
+                    }
+                    offsets[count] = offset;
+                    logOffsets[count] = logOffset;
+                    count++;
+                    offset += size;
+                    logOffset += logSize;
+                }
+                offsets[count] = offset;
+                logOffsets[count] = logOffset;
+                indexed = true;
+                return new BlockGzipLogReader(file, Arrays.copyOf(offsets, count + 1), Arrays.copyOf(logOffsets, count + 1));
+            } catch (EOFException x) {
+                return null;
+            } finally {
+                if (!indexed) {
+                    file.close();
+                }
+            }
+        }
+
+        /**
+         * @return The size of the member, from the {@code BC} subfield of its extra field, -1 if there is none.
+         */
+        private static int blockSize(byte[] extra) {
+            for (int i = 0; i + 4 <= extra.length; ) {
+                final int length = readShort(extra, i + 2);
+                if (extra[i] == 'B' && extra[i + 1] == 'C' && length == 2 && i + 6 <= extra.length) {
+                    return readShort(extra, i + 4) + 1;
+                }
+                i += 4 + length;
+            }
+            return -1;
+        }
+
+        private static int readShort(byte[] b, int off) {
+            return (b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8;
+        }
+
+        @Override
+        long length() {
+            return logOffsets[logOffsets.length - 1];
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            int total = 0;
+            while (total < len && position < length()) {
+                final int found = Arrays.binarySearch(logOffsets, position);
+                // Members holding no data share their offset with the next one.
+                int block = found >= 0 ? found : -found - 2;
+                while (logOffsets[block + 1] == logOffsets[block]) {
+                    block++;
+                }
+                final byte[] data = inflate(block);
+                final int from = (int) (position - logOffsets[block]);
+                final int count = Math.min(len - total, data.length - from);
+                System.arraycopy(data, from, b, off + total, count);
+                total += count;
+                position += count;
+            }
+            return total;
+        }
+
+        private byte[] inflate(int block) throws IOException {
+            if (block != cachedBlock) {
+                final byte[] member = new byte[(int) (offsets[block + 1] - offsets[block])];
+                file.seek(offsets[block]);
+                file.readFully(member);
+                final int dataStart = 12 + readShort(member, 10);
+                final byte[] data = new byte[(int) (logOffsets[block + 1] - logOffsets[block])];
+                inflater.reset();
+                inflater.setInput(member, dataStart, member.length - dataStart - 8);
+                try {
+                    int inflated = 0;
+                    while (inflated < data.length) {
+                        final int n = inflater.inflate(data, inflated, data.length - inflated);
+                        if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                            throw new EOFException("Truncated block at " + offsets[block]);
+                        }
+                        inflated += n;
+                    }
+                } catch (DataFormatException x) {
+                    throw new IOException(x);
+                }
+                cached = data;
+                cachedBlock = block;
+            }
+            return cached;
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            file.close();
+        }
+    }
+
+    /**
+     * Reads a gzip file from its start, keeping a window of what was read last so that overlapping reads do not
+     * start over. Its length is taken from the trailer of its last member until it has been read to its end, which is
+     * only right for files of a single member of less than 4 GB.
+     */
+    private static final class GzipLogReader extends LogReader {
+        private final File file;
+        private long estimatedLength;
+        private InputStream in;
+        private long inPosition;
+        private byte[] window = new byte[0];
+        private long windowStart;
+        private int windowSize;
+
+        GzipLogReader(File file) throws IOException {
+            this.file = file;
+            try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+                if (raf.length() < 18) {
+                    throw new EOFException("Not a gzip file: " + file);
+                }
+                raf.seek(raf.length() - 4);
+                estimatedLength = Integer.toUnsignedLong(Integer.reverseBytes(raf.readInt()));
+            }
+        }
+
+        @Override
+        boolean isSeekable() {
+            return false;
+        }
+
+        @Override
+        long length() {
+            return estimatedLength;
+        }
+
+        @Override
+        long getVerifiedLength() throws IOException {
+            final byte[] skipped = new byte[8192];
+            long end = Math.max(inPosition, windowStart + windowSize);
+            while (read(end, skipped, 0, skipped.length) > 0) {
+                end = windowStart + windowSize;
+            }
+            estimatedLength = end;
+            return end;
+        }
+
+        @Override
+        int read(long position, byte[] b, int off, int len) throws IOException {
+            if (in == null || position < windowStart) {
+                reopen();
+            }
+            // Drop what is before the position, and fill the window up to its end.
+            final int keep = (int) Math.max(0, Math.min(windowSize, windowStart + windowSize - position));
+            if (keep < windowSize) {
+                System.arraycopy(window, windowSize - keep, window, 0, keep);
+                windowStart += windowSize - keep;
+                windowSize = keep;
+            }
+            if (windowSize == 0) {
+                windowStart = position;
+                skipTo(position);
+            }
+            if (window.length < len) {
+                window = Arrays.copyOf(window, len);
+            }
+            while (windowSize < len) {
+                final int read = in.read(window, windowSize, len - windowSize);
+                if (read == -1) {
+                    break;
+                }
+                windowSize += read;
+                inPosition += read;
+            }
+            final int count = Math.min(len, windowSize);
+            System.arraycopy(window, 0, b, off, count);
+            return count;
+        }
+
+        private void skipTo(long position) throws IOException {
+            while (inPosition < position) {
+                final long skipped = in.skip(position - inPosition);
+                if (skipped <= 0) {
+                    if (in.read() == -1) {
+                        return;
+                    }
+                    inPosition++;
+                } else {
+                    inPosition += skipped;
+                }
+            }
+        }
+
+        private void reopen() throws IOException {
+            close();
+            in = new GZIPInputStream(new BufferedInputStream(new FileInputStream(file)), 64 * 1024);
+            inPosition = 0;
+            windowStart = 0;
+            windowSize = 0;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (in != null) {
+                in.close();
+                in = null;
+            }
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package hudson.plugins.ansicolor.action;
 
 import hudson.Extension;
+import hudson.console.AnnotatedLargeText;
 import hudson.console.ConsoleNote;
 import hudson.model.Run;
 import hudson.model.TaskListener;
@@ -9,14 +10,10 @@ import hudson.util.VersionNumber;
 import jenkins.model.Jenkins;
 
 import edu.umd.cs.findbugs.annotations.NonNull;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.util.*;
-import java.util.function.Function;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 
@@ -36,7 +33,34 @@ public class ShortlogActionCreator {
     }
 
     public ColorizedAction createActionForShortlog(File logFile, Map<String, ColorizedAction> actions, int shortlogLimit, boolean keepLinesWhole, long reservedBytes) {
-        final ActionContext lastAction = findLastActionBefore(logFile, actions.keySet(), shortlogLimit, keepLinesWhole, reservedBytes);
+        try (LogReader reader = LogReader.open(logFile)) {
+            return createActionForShortlog(reader, actions, shortlogLimit, keepLinesWhole, reservedBytes);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot search log for actions: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Searches a log through the log API, for logs which are not kept in a file, as with log storage plugins.
+     */
+    public ColorizedAction createActionForShortlog(AnnotatedLargeText<?> logText, Map<String, ColorizedAction> actions, int shortlogLimit, boolean keepLinesWhole, long reservedBytes) {
+        try (LogReader reader = LogReader.of(logText)) {
+            return createActionForShortlog(reader, actions, shortlogLimit, keepLinesWhole, reservedBytes);
+        } catch (IOException e) {
+            LOGGER.warning("Cannot search log for actions: " + e.getMessage());
+            return null;
+        }
+    }
+
+    private ColorizedAction createActionForShortlog(LogReader reader, Map<String, ColorizedAction> actions, int shortlogLimit, boolean keepLinesWhole, long reservedBytes) throws IOException {
+        final long length = reader.length();
+        ActionContext lastAction = findLastActionBefore(reader, length, actions.keySet(), shortlogLimit, keepLinesWhole, reservedBytes);
+        final long verifiedLength = reader.getVerifiedLength();
+        if (verifiedLength != length) {
+            // The length of a compressed log could only be estimated from its trailer.
+            lastAction = findLastActionBefore(reader, verifiedLength, actions.keySet(), shortlogLimit, keepLinesWhole, reservedBytes);
+        }
         if (!lastAction.isEmpty()) {
             final ColorizedAction colorizedAction = actions.get(lastAction.serializedAction);
             if (ColorizedAction.Command.START.equals(colorizedAction.getCommand())) {
@@ -46,68 +70,140 @@ public class ShortlogActionCreator {
         return null;
     }
 
-    private ActionContext findLastActionBefore(File logFile, Collection<String> serializedActions, int shortlogLimit, boolean keepLinesWhole, long reservedBytes) {
-        try (BufferedInputStream inputStream = new BufferedInputStream(new FileInputStream(logFile))) {
-            final long shortlogStart = logFile.length() + reservedBytes - shortlogLimit * 1024L;
-            if (shortlogStart > 0) {
-                final byte[] buf = new byte[BUFFER_SIZE];
-                int read;
-                int totalRead = 0;
-                String lastAction = "";
-                String partialLine = "";
-                while ((read = inputStream.read(buf)) != -1) {
-                    final int startInBuff = shortlogStart > totalRead ? (int) (shortlogStart - totalRead) : 0;
-                    final String action = findLastAction(serializedActions, buf, startInBuff);
-                    if (!action.isEmpty()) {
-                        lastAction = action;
-                    }
-                    if (totalRead + read >= shortlogStart) {
-                        final int eolPos = indexOfEol(buf, startInBuff);
-                        final int[] beginLength = calculateBeginLength(buf, startInBuff, eolPos, partialLine.isEmpty() && keepLinesWhole);
-                        final int begin = beginLength[0];
-                        final int length = beginLength[1];
-                        if (length != -1 && !lastAction.isEmpty()) {
-                            return new ActionContext(lastAction, partialLine + new String(buf, begin, length, UTF_8));
-                        } else {
-                            // line extends to the next buffer
-                            partialLine = new String(Arrays.copyOfRange(buf, begin, buf.length), UTF_8);
-                        }
-                    }
-                    totalRead += read;
+    private ActionContext findLastActionBefore(LogReader reader, long length, Collection<String> serializedActions, int shortlogLimit, boolean keepLinesWhole, long reservedBytes) throws IOException {
+        final long shortlogStart = length + reservedBytes - shortlogLimit * 1024L;
+        if (shortlogStart > 0 && !serializedActions.isEmpty()) {
+            final String lastAction = reader.isSeekable()
+                ? findLastActionBackwards(reader, serializedActions, shortlogStart)
+                : findLastActionForwards(reader, serializedActions, shortlogStart);
+            if (!lastAction.isEmpty()) {
+                final String line = findFirstLine(reader, shortlogStart, keepLinesWhole);
+                if (line != null) {
+                    return new ActionContext(lastAction, line);
                 }
             }
-        } catch (IOException e) {
-            LOGGER.warning("Cannot search log for actions: " + e.getMessage());
         }
         return new ActionContext();
     }
 
-    private String findLastAction(Collection<String> serializedActions, byte[] buf, int maxPos) {
+    /**
+     * Searches the log from the start of the shortlog back to its start, one buffer at a time, so that only the part
+     * of the log after the last action is read.
+     */
+    private String findLastActionBackwards(LogReader reader, Collection<String> serializedActions, long shortlogStart) throws IOException {
+        final int overlap = maxLength(serializedActions);
+        final byte[] buf = new byte[BUFFER_SIZE + overlap];
+        for (long end = shortlogStart; end > 0; end -= BUFFER_SIZE) {
+            final long from = Math.max(0, end - BUFFER_SIZE);
+            // Actions starting before the end may extend beyond it.
+            final int read = reader.read(from, buf, 0, (int) (end - from) + overlap);
+            final String action = findLastAction(serializedActions, buf, read, (int) (end - from));
+            if (!action.isEmpty()) {
+                return action;
+            }
+        }
+        return "";
+    }
+
+    /**
+     * Searches the log from its start up to the start of the shortlog, for logs which cannot be read backwards.
+     */
+    private String findLastActionForwards(LogReader reader, Collection<String> serializedActions, long shortlogStart) throws IOException {
+        final int overlap = maxLength(serializedActions);
+        final byte[] buf = new byte[BUFFER_SIZE + overlap];
+        String lastAction = "";
+        for (long from = 0; from < shortlogStart; from += BUFFER_SIZE) {
+            final int maxPos = (int) Math.min(BUFFER_SIZE, shortlogStart - from);
+            final int read = reader.read(from, buf, 0, maxPos + overlap);
+            final String action = findLastAction(serializedActions, buf, read, maxPos);
+            if (!action.isEmpty()) {
+                lastAction = action;
+            }
+            if (read < maxPos) {
+                break;
+            }
+        }
+        return lastAction;
+    }
+
+    /**
+     * @return The first line shown in the shortlog, {@code null} if there is none. The buffer the shortlog starts in
+     * is aligned to the buffer size, as it is when reading the log from its start.
+     */
+    private String findFirstLine(LogReader reader, long shortlogStart, boolean keepLinesWhole) throws IOException {
+        final byte[] buf = new byte[BUFFER_SIZE];
+        long position = shortlogStart - shortlogStart % BUFFER_SIZE;
+        int startInBuff = (int) (shortlogStart - position);
+        String partialLine = "";
+        int read;
+        while ((read = reader.read(position, buf, 0, buf.length)) > 0) {
+            final int eolPos = indexOfEol(buf, read, startInBuff + 1);
+            final int[] beginLength = calculateBeginLength(buf, read, startInBuff, eolPos, partialLine.isEmpty() && keepLinesWhole);
+            final int begin = beginLength[0];
+            final int length = beginLength[1];
+            if (length != -1) {
+                return partialLine + new String(buf, begin, length, UTF_8);
+            }
+            // line extends to the next buffer
+            partialLine += new String(buf, begin, read - begin, UTF_8);
+            position += read;
+            startInBuff = -1;
+        }
+        return null;
+    }
+
+    private static int maxLength(Collection<String> serializedActions) {
+        return serializedActions.stream().mapToInt(sa -> sa.getBytes(UTF_8).length).max().orElse(0);
+    }
+
+    /**
+     * @return The last of the actions a preamble before {@code maxPos} starts.
+     */
+    private String findLastAction(Collection<String> serializedActions, byte[] buf, int size, int maxPos) {
         String lastAction = "";
         int preamblePos = 0;
-        while (preamblePos < maxPos && (preamblePos = ConsoleNote.findPreamble(buf, preamblePos, buf.length - preamblePos)) != -1) {
+        while (preamblePos < maxPos && (preamblePos = ConsoleNote.findPreamble(buf, preamblePos, size - preamblePos)) != -1 && preamblePos < maxPos) {
             final int begin = preamblePos;
-            lastAction = serializedActions.stream().filter(sa -> buf.length - begin > sa.length() && sa.equals(new String(buf, begin, sa.length(), UTF_8))).findFirst().orElse(lastAction);
+            lastAction = serializedActions.stream().filter(sa -> size - begin >= sa.length() && sa.equals(new String(buf, begin, sa.length(), UTF_8))).findFirst().orElse(lastAction);
             preamblePos++;
         }
         return lastAction;
     }
 
-    private int indexOfEol(byte[] buf, int after) {
-        for (int i = after + 1; i < buf.length; i++) {
-            if (Arrays.equals(Arrays.copyOfRange(buf, i, i + eol.length), eol)) {
+    private int indexOfEol(byte[] buf, int size, int from) {
+        for (int i = Math.max(from, 0); i + eol.length <= size; i++) {
+            if (Arrays.equals(buf, i, i + eol.length, eol, 0, eol.length)) {
                 return i;
             }
         }
         return -1;
     }
 
-    private int[] calculateBeginLength(byte[] buf, int startInBuff, int eolPos, boolean keepLinesWhole) {
+    private int[] calculateBeginLength(byte[] buf, int size, int startInBuff, int eolPos, boolean keepLinesWhole) {
+        final int start = Math.max(startInBuff, 0);
         if (keepLinesWhole) {
-            final int begin = eolPos != -1 ? eolPos + eol.length : startInBuff;
-            return new int[]{begin, eolPos != -1 ? indexOfEol(buf, eolPos) - begin + eol.length : -1};
+            final int begin = eolPos != -1 ? eolPos + eol.length : start;
+            final int nextEol = eolPos != -1 ? indexOfEol(buf, size, begin) : -1;
+            return new int[]{begin, nextEol != -1 ? nextEol - begin + eol.length : -1};
         }
-        return new int[]{startInBuff, eolPos != -1 ? eolPos - startInBuff + eol.length : -1};
+        return new int[]{start, eolPos != -1 ? eolPos - start + eol.length : -1};
+    }
+
+    /**
+     * @return The size in KB of the tail of the log shown on the console page.
+     */
+    public static int getConsoleTailKB() {
+        final String consoleTail = System.getProperty("hudson.consoleTailKB");
+        return consoleTail != null ? Integer.parseInt(consoleTail) : CONSOLE_TAIL_DEFAULT;
+    }
+
+    /**
+     * @return Whether the console page skips the line its tail starts in the middle of.
+     */
+    public static boolean isKeepLinesWhole() {
+        return Optional.ofNullable(System.getProperty(PROP_LINES_WHOLE))
+            .map(Boolean::parseBoolean)
+            .orElseGet(() -> Optional.ofNullable(Jenkins.getVersion()).orElse(LINES_WHOLE_SINCE_VERSION).isNewerThan(LINES_WHOLE_SINCE_VERSION));
     }
 
     @Extension
@@ -116,41 +212,56 @@ public class ShortlogActionCreator {
         @Override
         public void onCompleted(Run<?, ?> run, @NonNull TaskListener listener) {
             super.onCompleted(run, listener);
+            final ColorizedActionTable table = ColorizedActionTable.of(run);
+            if (table == null) {
+                return;
+            }
             final List<ColorizedAction.Command> commands = Arrays.asList(ColorizedAction.Command.START, ColorizedAction.Command.STOP);
-            final Map<String, ColorizedAction> actions = run.getActions(ColorizedAction.class).stream()
+            // Notes of actions issued before an upgrade, which kept their ids, are still looked for, notes with the same
+            // command and color map are interchangeable.
+            final Map<String, ColorizedAction> actions = new HashMap<>();
+            table.getActions().stream()
                 .filter(a -> commands.contains(a.getCommand()))
-                .collect(Collectors.toMap(a -> {
+                .forEach(a -> {
                     try {
-                        return new ActionNote(a).encode();
+                        if (!a.getId().isEmpty()) {
+                            actions.put(new ActionNote(a).encode(), a);
+                        }
+                        actions.putIfAbsent(new CommandNote(a).encode(), a);
                     } catch (IOException e) {
                         LOGGER.warning("Will not be able to identify all ColorizedActions: " + e.getMessage());
                     }
-                    return "";
-                }, Function.identity()));
+                });
             if (!actions.isEmpty()) {
-                final File logFile = new File(run.getRootDir(), "log");
-                if (logFile.isFile()) {
-                    final String nl = System.lineSeparator();
-                    final ShortlogActionCreator shortlogActionCreator = new ShortlogActionCreator(new LineIdentifier(), nl);
-                    final String consoleTail = System.getProperty("hudson.consoleTailKB");
-                    final boolean keepLinesWhole = Optional.ofNullable(System.getProperty(PROP_LINES_WHOLE))
-                        .map(Boolean::parseBoolean)
-                        .orElseGet(() -> Optional.ofNullable(Jenkins.getVersion()).orElse(LINES_WHOLE_SINCE_VERSION).isNewerThan(LINES_WHOLE_SINCE_VERSION));
-                    // ensure all log entries are in log file
-                    listener.getLogger().flush();
-                    final ColorizedAction action = shortlogActionCreator.createActionForShortlog(
-                        logFile,
-                        actions,
-                        consoleTail != null ? Integer.parseInt(consoleTail) : CONSOLE_TAIL_DEFAULT,
-                        keepLinesWhole,
-                        Optional.ofNullable(run.getResult()).map(r -> 10 + r.toString().length() + nl.getBytes(UTF_8).length).orElse(0) // "Finished: " + result + new line
-                    );
-                    if (action != null) {
-                        run.addAction(action);
-                    }
+                final String nl = System.lineSeparator();
+                final ShortlogActionCreator shortlogActionCreator = new ShortlogActionCreator(new LineIdentifier(), nl);
+                // ensure all log entries are in log file
+                listener.getLogger().flush();
+                final int shortlogLimit = getConsoleTailKB();
+                final boolean keepLinesWhole = isKeepLinesWhole();
+                final long reservedBytes = Optional.ofNullable(run.getResult()).map(r -> 10 + r.toString().length() + nl.getBytes(UTF_8).length).orElse(0); // "Finished: " + result + new line
+                // A log in the build directory can be read at any offset, other logs are read through their storage.
+                final File logFile = logFileOf(run);
+                final ColorizedAction action = logFile != null
+                    ? shortlogActionCreator.createActionForShortlog(logFile, actions, shortlogLimit, keepLinesWhole, reservedBytes)
+                    : shortlogActionCreator.createActionForShortlog(run.getLogText(), actions, shortlogLimit, keepLinesWhole, reservedBytes);
+                if (action != null) {
+                    table.addWithId(action);
                 }
             }
         }
+
+        /**
+         * @return The log of the run, which may have been compressed, {@code null} if there is none.
+         */
+        private static File logFileOf(Run<?, ?> run) {
+            final File logFile = new File(run.getRootDir(), "log");
+            if (logFile.isFile()) {
+                return logFile;
+            }
+            final File compressedLogFile = new File(run.getRootDir(), "log.gz");
+            return compressedLogFile.isFile() ? compressedLogFile : null;
+        }
     }
 
     private static class ActionContext {
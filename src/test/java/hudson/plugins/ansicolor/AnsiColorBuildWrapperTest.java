@@ -166,6 +166,42 @@ class AnsiColorBuildWrapperTest {
         );
     }
 
+    @Test
+    void testSeparateStyles(JenkinsRule jenkinsRule) throws Exception {
+        jenkinsRule.jenkins.getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class).setSeparateStyles(true);
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+        p.getBuildWrappersList().add(new AnsiColorBuildWrapper(null));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                listener.getLogger().println("\u001B[1;34mThis text should be bold and blue");
+                listener.getLogger().println("Still bold and blue");
+                listener.getLogger().println("\u001B[mThis text should be normal, \u001B[31monly this red\u001B[m");
+                return true;
+            }
+        });
+        FreeStyleBuild b = jenkinsRule.buildAndAssertSuccess(p);
+        jenkinsRule.assertLogContains("This text should be bold and blue", b);
+        jenkinsRule.assertLogNotContains("\u001B[1;34m", b);
+        assertTrue(StyleSidecar.fileOf(b).isFile());
+
+        JenkinsRule.WebClient wc = jenkinsRule.createWebClient();
+        String html = wc.goTo(b.getUrl() + "consoleFull").getWebResponse().getContentAsString();
+        String nl = System.lineSeparator();
+        assertThat(
+            html,
+            allOf(
+                containsString("<b><span style=\"color: #1E90FF;\">This text should be bold and blue" + nl + "</span></b>"),
+                containsString("<b><span style=\"color: #1E90FF;\">Still bold and blue" + nl + "</span></b>"),
+                containsString("This text should be normal, <span style=\"color: #CD0000;\">only this red</span>")
+            )
+        );
+
+        // The endpoints parsing escape sequences would find none.
+        wc.assertFails(b.getUrl() + "ansiColor/styleRuns", 404);
+        wc.assertFails(b.getUrl() + "ansiColor/html", 404);
+    }
+
     @Test
     void testDefaultForegroundBackground(JenkinsRule jenkinsRule) throws Exception {
         FreeStyleProject p = jenkinsRule.createFreeStyleProject();
@@ -311,6 +347,18 @@ class AnsiColorBuildWrapperTest {
         );
     }
 
+    @Test
+    void testConsecutiveSequencesHiddenTogether(JenkinsRule jenkinsRule) throws Exception {
+        final String html = runBuildWithPlugin(jenkinsRule, logger -> logger.println("[info] \033[0m\033[1m\033[32mgreen\033[0m\033[0m done"));
+        assertThat(
+            html,
+            allOf(
+                containsString("[info] <!--\033[0m\033[1m\033[32m--><b><span style=\"color: #00CD00;\">green<!--\033[0m\033[0m--></span></b> done"),
+                not(containsString("--><!--"))
+            )
+        );
+    }
+
     @Test
     void canWorkWithMovingSequences(JenkinsRule jenkinsRule) throws Exception {
         final String op1 = "Creating container_1";
@@ -0,0 +1,133 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AnsiEventStreamTest {
+
+    @Test
+    void testOnePassFeedsAllListeners() throws IOException {
+        final ByteArrayOutputStream stripped = new ByteArrayOutputStream();
+        final List<String> sgrs = new ArrayList<>();
+        final int[] textRuns = new int[1];
+        try (AnsiEventStream stream = new AnsiEventStream(
+            new AnsiEventListener() {
+                @Override
+                public void onText(byte[] bytes, int offset, int length) {
+                    stripped.write(bytes, offset, length);
+                }
+            },
+            new AnsiEventListener() {
+                @Override
+                public void onText(byte[] bytes, int offset, int length) {
+                    textRuns[0]++;
+                }
+
+                @Override
+                public void onSgr(int[] params, int count) {
+                    sgrs.add(Arrays.toString(Arrays.copyOf(params, count)));
+                }
+            }
+        )) {
+            stream.write("plain \033[1;38;5;196mred\033[m \033[;4mü\033[0m".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("plain red ü", new String(stripped.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals(Arrays.asList("[1, 38, 5, 196]", "[0]", "[4]", "[0]"), sgrs);
+        assertEquals(4, textRuns[0]);
+    }
+
+    @Test
+    void testOtherSequences() throws IOException {
+        final List<String> events = new ArrayList<>();
+        try (AnsiEventStream stream = new AnsiEventStream(new AnsiEventListener() {
+            @Override
+            public void onText(byte[] bytes, int offset, int length) {
+                events.add(new String(bytes, offset, length, StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public void onCursor(char command, int first, int second) {
+                events.add(command + ":" + first + ":" + second);
+            }
+
+            @Override
+            public void onOsc(int command, String param) {
+                events.add("osc:" + command + ":" + param);
+            }
+
+            @Override
+            public void onCharset(int set, char seq) {
+                events.add("charset:" + (char) set + ":" + seq);
+            }
+        })) {
+            // Sequences split across writes are parsed all the same.
+            for (byte b : "a\033[2Kb\033[3;7Hc\033]0;title\007d\033(Be\033[Ef".getBytes(StandardCharsets.UTF_8)) {
+                stream.write(b);
+            }
+        }
+        assertEquals(Arrays.asList("a", "K:2:0", "b", "H:3:7", "c", "osc:0:title", "d", "charset:0:B", "e", "E:1:0", "f"), events);
+    }
+
+    @Test
+    void testLongTextIsPassedInRuns() throws IOException {
+        final ByteArrayOutputStream stripped = new ByteArrayOutputStream();
+        final String longText = String.join("", Collections.nCopies(10000, "abc"));
+        try (AnsiEventStream stream = new AnsiEventStream(new AnsiEventListener() {
+            @Override
+            public void onText(byte[] bytes, int offset, int length) {
+                stripped.write(bytes, offset, length);
+            }
+        })) {
+            stream.write(("x\033[31m" + longText + "\033[0m").getBytes(StandardCharsets.UTF_8));
+            stream.write('y');
+        }
+        assertEquals("x" + longText + "y", stripped.toString("UTF-8"));
+    }
+
+    @Test
+    void testNotesArePassedOnAsTheyAre() throws IOException {
+        final String note = "\033[8mha:AAAA\033[1m\033[0m";
+        final ByteArrayOutputStream withNotes = new ByteArrayOutputStream();
+        final ByteArrayOutputStream withoutNotes = new ByteArrayOutputStream();
+        final List<String> sgrs = new ArrayList<>();
+        try (AnsiEventStream stream = new AnsiEventStream(new PlainTextSink(withNotes, true), new PlainTextSink(withoutNotes, false),
+            new AnsiEventListener() {
+                @Override
+                public void onSgr(int[] params, int count) {
+                    sgrs.add(Arrays.toString(Arrays.copyOf(params, count)));
+                }
+            })) {
+            // A partial preamble is text and escape sequences after all, notes split across writes are recognized.
+            stream.write(("a" + note.substring(0, 5)).getBytes(StandardCharsets.UTF_8));
+            stream.write((note.substring(5) + "\033[8mb\033[m c").getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("a" + note + "b c", withNotes.toString("UTF-8"));
+        assertEquals("ab c", withoutNotes.toString("UTF-8"));
+        assertEquals(Arrays.asList("[8]", "[0]"), sgrs);
+    }
+
+    @Test
+    void testMalformedSequencesArePassedOnAsText() throws IOException {
+        final ByteArrayOutputStream stripped = new ByteArrayOutputStream();
+        final List<String> sgrs = new ArrayList<>();
+        try (AnsiEventStream stream = new AnsiEventStream(new PlainTextSink(stripped, false), new AnsiEventListener() {
+            @Override
+            public void onSgr(int[] params, int count) {
+                sgrs.add(Arrays.toString(Arrays.copyOf(params, count)));
+            }
+        })) {
+            stream.write("a\033[1;38;5;300mb\033[38;2;1;2mc\033[38;5;1md".getBytes(StandardCharsets.UTF_8));
+        }
+        assertEquals("a\033[1;38;5;300mb\033[38;2;1;2mcd", stripped.toString("UTF-8"));
+        assertEquals(Arrays.asList("[38, 5, 1]"), sgrs);
+    }
+}
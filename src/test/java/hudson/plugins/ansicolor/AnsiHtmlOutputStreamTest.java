@@ -30,7 +30,10 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.CoreMatchers.startsWith;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 class AnsiHtmlOutputStreamTest {
@@ -297,6 +300,17 @@ class AnsiHtmlOutputStreamTest {
                 "<span style=\"background-color: #FFFF00; color: #000000;\">[27m → black on yellow</span>");
     }
 
+    @Test
+    void testCloseOutermostOfDeeplyNestedTags() throws IOException {
+        assertThatAnnotateIs("\033[1;3;4;9;51;53;32;42mdeep\033[22mer",
+            "<b><i><u><span style=\"text-decoration: line-through;\"><span style=\"border: 1px solid;\">" +
+                "<span style=\"text-decoration: overline;\"><span style=\"color: #00CD00;\">" +
+                "<span style=\"background-color: #00CD00;\">deep</span></span></span></span></span></u></i></b>" +
+                "<i><u><span style=\"text-decoration: line-through;\"><span style=\"border: 1px solid;\">" +
+                "<span style=\"text-decoration: overline;\"><span style=\"color: #00CD00;\">" +
+                "<span style=\"background-color: #00CD00;\">er</span></span></span></span></span></u></i>");
+    }
+
     @Test
     void testStrikeout() throws IOException {
         assertThatAnnotateIs("\033[9mhello world\033[29mnormal", "<span style=\"text-decoration: line-through;\">hello world</span>normal");
@@ -603,6 +617,166 @@ class AnsiHtmlOutputStreamTest {
         assertThatAnnotateIs("(\033[10m)", "()");
     }
 
+    @Test
+    void testCssClasses() throws IOException {
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[31mred\033[0m", "<div class=\"ac-m-xterm\"><span class=\"ac-f1\">red</span></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[101mbright\033[0m", "<div class=\"ac-m-xterm\"><span class=\"ac-b9\">bright</span></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[38;5;196mpalette\033[0m", "<div class=\"ac-m-xterm\"><span class=\"ac-f196\">palette</span></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[38;2;1;2;3mrgb\033[0m", "<div class=\"ac-m-xterm\"><span style=\"color: #010203;\">rgb</span></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[1;9mbold\033[0m", "<div class=\"ac-m-xterm\"><b><span class=\"ac-strike\">bold</span></b></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[33;41;7mon",
+            "<div class=\"ac-m-xterm\"><span class=\"ac-f3\"><span class=\"ac-b1\"></span></span><span class=\"ac-b3 ac-f1\">on</span></div>");
+        assertThatAnnotateIs(StyleMode.CLASSES, "\033[7mon",
+            "<div class=\"ac-m-xterm\"><span style=\"background-color: currentColor;\"><span class=\"ac-f15\">on</span></span></div>");
+    }
+
+    @Test
+    void testCssClassesWithDefaultColors() throws IOException {
+        assertThat(annotate("\033[32mgreen", AnsiColorMap.VGA, StyleMode.CLASSES),
+            is("<div class=\"ac-m-vga\"><span class=\"ac-f2\">green</span></div>"));
+    }
+
+    @Test
+    void testCssClassesStylesheet() {
+        final String css = StyleMode.CLASSES.stylesheet(AnsiColorMap.VGA, AnsiColorMap.GnomeTerminal);
+        assertThat(css, containsString(".ac-m-vga{background-color: #000000;color: #AAAAAA;}"));
+        assertThat(css, containsString(".ac-m-vga .ac-f1{color:#AA0000}"));
+        assertThat(css, containsString(".ac-m-vga .ac-b9{background-color:#FF5555}"));
+        assertThat(css, containsString(".ac-m-gnome-terminal .ac-f1{color:" + AnsiColorMap.GnomeTerminal.getNormal(1) + "}"));
+        assertThat(css, containsString(".ac-f196{color:#FF0000}"));
+        assertThat(StyleMode.INLINE.stylesheet(AnsiColorMap.VGA), is(""));
+    }
+
+    @Test
+    void testCssClassesOfColorMapWithUnusualName() {
+        final String colorMapClass = StyleMode.colorMapClass(new AnsiColorMap("my map", null, null, null, null, null, null, null, null,
+            null, null, null, null, null, null, null, null, null, null));
+        assertThat(colorMapClass, startsWith("ac-m-my_map-"));
+        assertThat(colorMapClass.matches("[A-Za-z0-9_-]+"), is(true));
+    }
+
+    @Test
+    void testColorElementsAreShared() throws IOException {
+        assertThat(AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.VGA, StyleMode.CLASSES),
+            sameInstance(AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.VGA, StyleMode.CLASSES)));
+        // Combinations of palette colors and currentColor are shared as well, and rendered as before.
+        final String ansi = "\033[33;41mboth\033[7mswapped\033[0m\033[7mcurrent\033[0m";
+        assertThat(annotate(ansi, AnsiColorMap.Default), is(annotate(ansi, AnsiColorMap.Default)));
+        assertThat(annotate("\033[38;2;1;2;3;48;5;1mrgb", AnsiColorMap.Default),
+            is("<span style=\"color: #010203;\"><span style=\"background-color: #CD0000;\">rgb</span></span>"));
+    }
+
+    @Test
+    void testCssVariables() throws IOException {
+        assertThatAnnotateIs(StyleMode.VARIABLES, "\033[31mred\033[0m", "<div class=\"ac-m-xterm\"><span style=\"color: var(--ansi-red);\">red</span></div>");
+        assertThatAnnotateIs(StyleMode.VARIABLES, "\033[101mbright\033[0m", "<div class=\"ac-m-xterm\"><span style=\"background-color: var(--ansi-bright-red);\">bright</span></div>");
+        assertThatAnnotateIs(StyleMode.VARIABLES, "\033[38;5;123mpalette\033[0m", "<div class=\"ac-m-xterm\"><span style=\"color: var(--ansi-p123);\">palette</span></div>");
+        assertThatAnnotateIs(StyleMode.VARIABLES, "\033[38;2;1;2;3mrgb\033[0m", "<div class=\"ac-m-xterm\"><span style=\"color: #010203;\">rgb</span></div>");
+        assertThat(annotate("\033[32mgreen", AnsiColorMap.VGA, StyleMode.VARIABLES),
+            is("<div class=\"ac-m-vga\"><span style=\"color: var(--ansi-green);\">green</span></div>"));
+    }
+
+    @Test
+    void testCssVariablesIndependentOfColorMap() throws IOException {
+        final String ansi = "\033[1;33;44mbold\033[22;7mswapped\033[38;5;200mpalette\033[0m";
+        assertThat(annotate(ansi, AnsiColorMap.VGA, StyleMode.VARIABLES).replace("ac-m-vga", "ac-m-gnome-terminal"),
+            is(annotate(ansi, AnsiColorMap.GnomeTerminal, StyleMode.VARIABLES)));
+    }
+
+    @Test
+    void testCssVariablesStylesheet() {
+        final String css = StyleMode.VARIABLES.stylesheet(AnsiColorMap.XTerm, AnsiColorMap.VGA);
+        assertThat(css, containsString(".ac-m-xterm{\n--ansi-black:#000000;\n--ansi-red:#CD0000;"));
+        assertThat(css, containsString("--ansi-bright-white:#FFFFFF;"));
+        assertThat(css, containsString(".ac-m-vga{\n--ansi-black:#000000;\n--ansi-red:#AA0000;"));
+        assertThat(css, containsString("background-color: var(--ansi-black);color: var(--ansi-white);}"));
+        assertThat(css, containsString(":root{\n--ansi-p16:"));
+        assertThat(css, containsString("--ansi-p196:#FF0000;"));
+    }
+
+    @Test
+    void testManyOverlappingAttributes() throws IOException {
+        final StringBuilder ansi = new StringBuilder();
+        final StringBuilder html = new StringBuilder();
+        for (int i = 0; i < 10000; i++) {
+            ansi.append("\033[1;3mx\033[22my\033[23m");
+            html.append("<b><i>x</i></b><i>y</i>");
+        }
+        assertThatAnnotateIs(ansi.toString(), html.toString());
+    }
+
+    @Test
+    void testStateCarriedToNextLine() throws IOException {
+        final StyleState state = stateAfter("\033[3;34m\033[1mbold blue italic", AnsiColorMap.Default);
+        assertThat(state, is(StyleState.of(StyleState.BOLD | StyleState.ITALIC, 4, -1, false)));
+        assertThat(annotate("still", AnsiColorMap.Default, StyleMode.INLINE, state),
+            is("<b><i><span style=\"color: #1E90FF;\">still</span></i></b>"));
+    }
+
+    @Test
+    void testNegativeCarriedToNextLine() throws IOException {
+        final StyleState state = stateAfter("\033[31;7mnegative", AnsiColorMap.Default);
+        assertThat(annotate("still\033[27mpositive", AnsiColorMap.Default, StyleMode.INLINE, state),
+            is("<span style=\"background-color: #CD0000; color: #FFFFFF;\">still</span>" +
+                "<span style=\"color: #CD0000;\">positive</span>"));
+    }
+
+    @Test
+    void testStateExcludesDefaultColors() throws IOException {
+        assertThat(stateAfter("\033[1mbold\033[0m", AnsiColorMap.VGA), is(StyleState.DEFAULT));
+        assertThat(stateAfter("\033[4mbold", AnsiColorMap.VGA).isDefault(), is(false));
+        assertThat(stateAfter("\033[21mdouble", AnsiColorMap.VGA), is(StyleState.of(StyleState.UNDERLINE_DOUBLE, -1, -1, false)));
+    }
+
+    @Test
+    void testDefaultColorsElementMatchesStream() throws IOException {
+        for (StyleMode styleMode : StyleMode.values()) {
+            final AnsiAttributeElement defaultColors = AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.VGA, styleMode);
+            assertThat(annotate("plain", AnsiColorMap.VGA, styleMode),
+                is(defaultColors.getOpeningTag() + "plain" + defaultColors.getClosingTag()));
+        }
+        assertThat(AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.XTerm, StyleMode.INLINE), is((AnsiAttributeElement) null));
+    }
+
+    @Test
+    void testStyleHtmlMatchesStream() throws IOException {
+        final StyleState state = StyleState.of(StyleState.BOLD, 1, AnsiHtmlOutputStream.NO_COLOR, false);
+        final String[] html = AnsiHtmlOutputStream.getStyleHtml(AnsiColorMap.VGA, StyleMode.INLINE, state);
+        final AnsiAttributeElement defaultColors = AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.VGA, StyleMode.INLINE);
+        assertThat(annotate("\033[1;31mx", AnsiColorMap.VGA),
+            is(defaultColors.getOpeningTag() + html[0] + "x" + html[1] + defaultColors.getClosingTag()));
+    }
+
+    @Test
+    void testResetStreamRendersLikeNewOne() throws IOException {
+        final StyleState bold = StyleState.of(StyleState.BOLD, AnsiHtmlOutputStream.NO_COLOR, AnsiHtmlOutputStream.NO_COLOR, false);
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        final AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(bos, AnsiColorMap.VGA, StyleMode.INLINE, html -> {
+            try {
+                bos.write(html.getBytes(UTF_8));
+            } catch (IOException e) {
+                throw new RuntimeException("error emitting HTML", e);
+            }
+        }, StyleState.DEFAULT);
+        // Left concealed, with tags open and in the middle of a sequence.
+        ansi.write("\033[7;31;8mhidden\033[3".getBytes(UTF_8));
+        ansi.closeTags();
+        ansi.reset(bold);
+        bos.reset();
+        assertThat(ansi.getState(), sameInstance(bold));
+        ansi.write("\033[32mgreen\033[0m plain".getBytes(UTF_8));
+        ansi.closeTags();
+        assertThat(bos.toString(UTF_8.displayName()), is(annotate("\033[32mgreen\033[0m plain", AnsiColorMap.VGA, StyleMode.INLINE, bold)));
+    }
+
+    private StyleState stateAfter(String text, AnsiColorMap colorMap) throws IOException {
+        final AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(new ByteArrayOutputStream(), colorMap, StyleMode.INLINE, html -> { }, StyleState.DEFAULT);
+        ansi.write(text.getBytes(UTF_8));
+        final StyleState state = ansi.getState();
+        ansi.close();
+        return state;
+    }
+
     private void assertThatAnnotateIs(String ansi, String html) throws IOException {
         assertThat(annotate(ansi), is(html));
     }
@@ -611,15 +785,27 @@ class AnsiHtmlOutputStreamTest {
         assertThat(annotate(ansi, colorMap), is(html));
     }
 
+    private void assertThatAnnotateIs(StyleMode styleMode, String ansi, String html) throws IOException {
+        assertThat(annotate(ansi, AnsiColorMap.Default, styleMode), is(html));
+    }
+
     private String annotate(String text, AnsiColorMap colorMap) throws IOException {
+        return annotate(text, colorMap, StyleMode.INLINE);
+    }
+
+    private String annotate(String text, AnsiColorMap colorMap, StyleMode styleMode) throws IOException {
+        return annotate(text, colorMap, styleMode, StyleState.DEFAULT);
+    }
+
+    private String annotate(String text, AnsiColorMap colorMap, StyleMode styleMode, StyleState stateToOpen) throws IOException {
         final ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(bos, colorMap, html -> {
+        AnsiHtmlOutputStream ansi = new AnsiHtmlOutputStream(bos, colorMap, styleMode, html -> {
             try {
                 bos.write(html.getBytes(UTF_8));
             } catch (IOException e) {
                 throw new RuntimeException("error emitting HTML", e);
             }
-        });
+        }, stateToOpen);
         ansi.write(text.getBytes(UTF_8));
         ansi.close();
         return bos.toString(UTF_8.displayName());
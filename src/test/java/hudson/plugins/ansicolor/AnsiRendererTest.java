@@ -0,0 +1,77 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class AnsiRendererTest {
+
+    private static final AnsiRenderer RENDERER = AnsiRenderer.of(AnsiColorMap.XTerm, StyleMode.INLINE);
+
+    @Test
+    void testHtmlIsEscapedAndClosed() {
+        assertEquals("a&lt;b&gt; <b>&amp;&quot;ü</b>", RENDERER.toHtml("a<b> \033[1m&\"ü"));
+        assertEquals("<span style=\"color: #CD0000;\">red</span> plain", RENDERER.toHtml("\033[31mred\033[0m plain"));
+    }
+
+    @Test
+    void testHtmlOfByteRange() {
+        final byte[] bytes = "xx\033[1mbold\033[0myy".getBytes(StandardCharsets.UTF_8);
+        assertEquals("<b>bold</b>", RENDERER.toHtml(bytes, 2, bytes.length - 4, StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void testStyleRuns() {
+        final List<AnsiRenderer.StyleRun> runs = RENDERER.toStyleRuns("plain \033[1;31mred\033[22m dim\033[0m \033[4m\033[0mend");
+        assertEquals(4, runs.size(), runs.toString());
+        assertEquals("plain ", runs.get(0).getText());
+        assertNull(runs.get(0).getForeground());
+        assertFalse(runs.get(0).isBold());
+        assertEquals(6, runs.get(1).getStart());
+        assertEquals("red", runs.get(1).getText());
+        assertEquals("#CD0000", runs.get(1).getForeground());
+        assertTrue(runs.get(1).isBold());
+        assertEquals(" dim", runs.get(2).getText());
+        assertFalse(runs.get(2).isBold());
+        assertEquals("#CD0000", runs.get(2).getForeground());
+        // Styles without any text in between do not make runs.
+        assertEquals(" end", runs.get(3).getText());
+        assertEquals(13, runs.get(3).getStart());
+    }
+
+    @Test
+    void testStyleRunsOfNegativeText() {
+        final List<AnsiRenderer.StyleRun> runs = RENDERER.toStyleRuns("\033[7;34mx");
+        assertEquals(1, runs.size());
+        assertEquals(AnsiColorMap.XTerm.getBright(7), runs.get(0).getForeground());
+        assertEquals(AnsiColorMap.XTerm.getNormal(4), runs.get(0).getBackground());
+    }
+
+    @Test
+    void testConcealedTextIsLeftOut() {
+        final List<AnsiRenderer.StyleRun> runs = RENDERER.toStyleRuns("a\033[8mhidden\033[28mb");
+        assertEquals("ab", runs.stream().map(AnsiRenderer.StyleRun::getText).reduce("", String::concat));
+    }
+
+    @Test
+    void testStyleIsCarriedOverBetweenPieces() {
+        final List<AnsiRenderer.StyleRun> runs = new ArrayList<>();
+        final StyleState state = RENDERER.toStyleRuns("a\033[1mb\033[32m", StyleState.DEFAULT, runs);
+        assertEquals(2, runs.size());
+        runs.clear();
+        assertEquals(StyleState.DEFAULT, RENDERER.toStyleRuns("c\033[0md", state, runs));
+        assertEquals(2, runs.size());
+        assertEquals(0, runs.get(0).getStart());
+        assertEquals("c", runs.get(0).getText());
+        assertTrue(runs.get(0).isBold());
+        assertEquals("#00CD00", runs.get(0).getForeground());
+        assertFalse(runs.get(1).isBold());
+    }
+}
@@ -10,6 +10,8 @@ import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
 import java.io.StringWriter;
 
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @WithJenkins
@@ -44,4 +46,22 @@ class ColorConsoleAnnotatorTest {
             "Color attribute was applied in following HTML log output even though the color map was not globally enabled:\n" + html
         );
     }
+
+    @Test
+    void testDetachedFromCompletedRunWithoutColors(JenkinsRule jenkinsRule) throws Exception {
+        final AnsiColorBuildWrapper.DescriptorImpl descriptor = Jenkins.get().getDescriptorByType(AnsiColorBuildWrapper.DescriptorImpl.class);
+        descriptor.setGlobalColorMapName(null);
+        WorkflowJob p = jenkinsRule.jenkins.createProject(WorkflowJob.class, "p");
+        p.setDefinition(new CpsFlowDefinition("echo 'no colors here'", true));
+        jenkinsRule.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        final ColorConsoleAnnotator.Factory factory = new ColorConsoleAnnotator.Factory();
+        assertNull(factory.newInstance(p.getLastBuild()));
+
+        p.setDefinition(new CpsFlowDefinition("ansiColor('xterm') { echo 'colors here' }", true));
+        jenkinsRule.assertBuildStatusSuccess(p.scheduleBuild2(0));
+        assertNotNull(factory.newInstance(p.getLastBuild()));
+
+        descriptor.setGlobalColorMapName("xterm");
+        assertNotNull(factory.newInstance(p.getBuildByNumber(1)));
+    }
 }
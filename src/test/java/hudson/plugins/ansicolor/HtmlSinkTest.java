@@ -0,0 +1,34 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class HtmlSinkTest {
+
+    @Test
+    void testRunsAreWrappedInTheirStyle() throws IOException {
+        assertEquals("a &lt;b&gt; <b>bold </b><b><span style=\"color: #CD0000;\">red</span></b>, plain",
+            render(AnsiColorMap.XTerm, "a <b> \033[1mbold \033[31mred\033[0m, " + "\033[8mha:AAAA\033[0m" + "plain\033[8mhidden"));
+    }
+
+    @Test
+    void testDefaultColorsWrapEverything() throws IOException {
+        final String html = render(AnsiColorMap.VGA, "plain \033[1mbold");
+        final AnsiAttributeElement defaultColors = AnsiHtmlOutputStream.defaultColorsElement(AnsiColorMap.VGA, StyleMode.INLINE);
+        assertEquals(defaultColors.getOpeningTag() + "plain <b>bold</b>" + defaultColors.getClosingTag(), html);
+    }
+
+    private static String render(AnsiColorMap colorMap, String text) throws IOException {
+        final ByteArrayOutputStream html = new ByteArrayOutputStream();
+        final StyleTracker tracker = new StyleTracker(colorMap, StyleState.DEFAULT);
+        try (AnsiEventStream stream = new AnsiEventStream(tracker, new HtmlSink(html, colorMap, StyleMode.INLINE, tracker))) {
+            stream.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return html.toString("UTF-8");
+    }
+}
@@ -0,0 +1,99 @@
+package hudson.plugins.ansicolor;
+
+import hudson.MarkupText;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineMarkupCacheTest {
+
+    @Test
+    void testHitRatio() {
+        final LineMarkupCache cache = new LineMarkupCache(1024 * 1024);
+        assertEquals(0.0, cache.getHitRatio());
+        assertNull(cache.get(key("line")));
+        cache.put(key("line"), markup("line"));
+        assertNotNull(cache.get(key("line")));
+        assertNotNull(cache.get(key("line")));
+        assertNull(cache.get(new LineMarkupCache.Key("line", StyleState.of(StyleState.BOLD, -1, -1, false), AnsiColorMap.XTerm, StyleMode.INLINE)));
+        assertNull(cache.get(new LineMarkupCache.Key("line", StyleState.DEFAULT, AnsiColorMap.VGA, StyleMode.INLINE)));
+        assertNull(cache.get(new LineMarkupCache.Key("line", StyleState.DEFAULT, AnsiColorMap.XTerm, StyleMode.CLASSES)));
+        assertEquals(2, cache.getHitCount());
+        assertEquals(4, cache.getMissCount());
+        assertEquals(1.0 / 3, cache.getHitRatio(), 1e-9);
+    }
+
+    @Test
+    void testEvictsLeastRecentlyUsedByWeight() {
+        final String line = repeat('x', 100);
+        final long entryWeight = key(line + 10).weight() + markup(line + 10).weight();
+        // Room for 16 entries.
+        final LineMarkupCache cache = new LineMarkupCache(16 * entryWeight + entryWeight / 2);
+        final LineMarkupCache.LineMarkup first = markup(line + 10);
+        cache.put(key(line + 10), first);
+        for (int i = 11; i < 26; i++) {
+            cache.put(key(line + i), markup(line + i));
+        }
+        assertEquals(16, cache.size());
+        assertSame(first, cache.get(key(line + 10)));
+        cache.put(key(line + 26), markup(line + 26));
+        assertEquals(16, cache.size());
+        assertNotNull(cache.get(key(line + 10)));
+        assertNull(cache.get(key(line + 11)));
+    }
+
+    @Test
+    void testShardsShareTheWeight() {
+        final String line = repeat('x', 100);
+        final long entryWeight = key(line + 10).weight() + markup(line + 10).weight();
+        // Room for 32 entries in each of 4 shards.
+        final LineMarkupCache cache = new LineMarkupCache(4 * 32 * entryWeight, 4);
+        assertTrue(cache.accepts(key(line + 10)));
+        for (int i = 0; i < 1000; i++) {
+            cache.put(key(line + (1000 + i)), markup(line + (1000 + i)));
+        }
+        assertTrue(cache.size() > 3 * 32, "size " + cache.size());
+        assertTrue(cache.size() <= 4 * 32, "size " + cache.size());
+        assertTrue(cache.getWeight() <= 4 * 32 * entryWeight);
+        assertNotNull(cache.get(key(line + 1999)));
+        assertNull(cache.get(key(line + 1000)));
+        cache.clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    void testSkipsHeavyEntries() {
+        final LineMarkupCache cache = new LineMarkupCache(16 * 100);
+        final String line = repeat('x', 100);
+        assertFalse(cache.accepts(key(repeat('x', 101))));
+        assertTrue(cache.accepts(key(repeat('x', 50))));
+        cache.put(key(line), markup(line));
+        assertEquals(0, cache.size());
+    }
+
+    private static LineMarkupCache.Key key(String line) {
+        return new LineMarkupCache.Key(line, StyleState.DEFAULT, AnsiColorMap.XTerm, StyleMode.INLINE);
+    }
+
+    private static LineMarkupCache.LineMarkup markup(String line) {
+        final LineMarkupCache.Recorder recorder = new LineMarkupCache.Recorder(new MarkupText(line), true);
+        recorder.addMarkup(0, 5, "<!--", "-->");
+        recorder.addMarkup(5, "<b>");
+        recorder.addMarkup(line.length(), "</b>");
+        return recorder.toLineMarkup(StyleState.DEFAULT);
+    }
+
+    private static String repeat(char c, int times) {
+        final char[] chars = new char[times];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+}
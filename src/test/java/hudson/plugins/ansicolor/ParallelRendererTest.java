@@ -0,0 +1,97 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParallelRendererTest {
+
+    private static final AnsiRenderer RENDERER = AnsiRenderer.of(AnsiColorMap.XTerm, StyleMode.INLINE);
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterAll
+    static void shutdown() {
+        POOL.shutdown();
+    }
+
+    @Test
+    void testPiecesAreRenderedInOrder() throws IOException {
+        final StringBuilder log = new StringBuilder();
+        final StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            log.append("line ").append(i).append(" \033[31mred\033[0m\n");
+            expected.append("line ").append(i).append(" <span style=\"color: #CD0000;\">red</span>\n");
+        }
+        assertEquals(expected.toString(), render(log.toString(), 100));
+    }
+
+    @Test
+    void testStyleIsCarriedIntoPieces() throws IOException {
+        final String html = render("a \033[1mbold\nstill bold\nand still\033[0m plain\n", 8);
+        assertEquals("a <b>bold\n</b><b>still bold\n</b><b>and still</b> plain\n", html);
+    }
+
+    @Test
+    void testLongLinesAreNotSplit() throws IOException {
+        assertEquals("<span style=\"color: #CD0000;\">ü&lt;ü</span>", render("\033[31mü<ü", 2));
+    }
+
+    @Test
+    void testBoundaryPrefersLinesEndingWithReset() {
+        final byte[] bytes = "a\033[0m\nb\033[31m\nc\n".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(6, ParallelRenderer.PieceReader.findBoundary(bytes, bytes.length));
+        final byte[] noReset = "a\nb\nc".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(4, ParallelRenderer.PieceReader.findBoundary(noReset, noReset.length));
+    }
+
+    @Test
+    void testBoundaryFollowsStyleFromReset() {
+        // The style is reset in the middle of lines, and set again at the end of the last one.
+        final String log = "\033[32mok\033[0m a\n\033[1mb\033[22m c\n\033[31md\ne\n";
+        final byte[] bytes = log.getBytes(StandardCharsets.US_ASCII);
+        assertEquals(log.indexOf("\033[31md"), ParallelRenderer.PieceReader.findBoundary(bytes, bytes.length));
+    }
+
+    @Test
+    void testVeryLongLinesAreCutSafely() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            line.append("\033[3").append(i % 8).append("mü");
+        }
+        final byte[] bytes = line.toString().getBytes(StandardCharsets.UTF_8);
+        final ParallelRenderer.PieceReader reader = new ParallelRenderer.PieceReader(new ByteArrayInputStream(bytes), 16, true);
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        byte[] piece;
+        while ((piece = reader.next()) != null) {
+            assertTrue(piece.length <= 64 * 1024, String.valueOf(piece.length));
+            // No piece ends within a sequence or a char.
+            assertTrue(new String(piece, StandardCharsets.UTF_8).endsWith("ü"));
+            read.write(piece);
+        }
+        assertArrayEquals(bytes, read.toByteArray());
+        // Styles carried into a piece are opened again right before the sequence changing them.
+        assertEquals(RENDERER.toHtml(line), render(line.toString(), 16).replaceAll("<span[^>]*></span>", ""));
+    }
+
+    @Test
+    void testEmptyLog() throws IOException {
+        assertEquals("", render("", 16));
+        assertNull(new ParallelRenderer.PieceReader(new ByteArrayInputStream(new byte[0]), 16, true).next());
+    }
+
+    private static String render(String log, int pieceSize) throws IOException {
+        final ByteArrayOutputStream html = new ByteArrayOutputStream();
+        ParallelRenderer.render(RENDERER, new ByteArrayInputStream(log.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8, html, pieceSize, POOL);
+        return new String(html.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
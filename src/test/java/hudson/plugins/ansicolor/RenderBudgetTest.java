@@ -0,0 +1,74 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Semaphore;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RenderBudgetTest {
+
+    @Test
+    void testLongLineExhaustsBudget() {
+        final RenderBudget budget = new RenderBudget(100, 60000, 1000, 60000, 100, new Semaphore(1));
+        assertTrue(budget.startLine(100));
+        budget.endLine();
+        assertFalse(budget.startLine(101));
+        assertTrue(budget.isExhausted());
+        assertFalse(budget.startLine(10));
+    }
+
+    @Test
+    void testRequestCharsExhaustBudget() {
+        final RenderBudget budget = new RenderBudget(100, 60000, 250, 60000, 100, new Semaphore(1));
+        assertTrue(budget.startLine(100));
+        budget.endLine();
+        assertTrue(budget.startLine(100));
+        budget.endLine();
+        assertFalse(budget.startLine(100));
+        assertTrue(budget.isExhausted());
+    }
+
+    @Test
+    void testRequestTimeExhaustsBudget() {
+        final RenderBudget budget = new RenderBudget(100, 60000, 1000, -1, 100, new Semaphore(1));
+        assertTrue(budget.isExhausted());
+        assertFalse(budget.startLine(1));
+    }
+
+    @Test
+    void testOverdueLineExhaustsBudget() {
+        final RenderBudget budget = new RenderBudget(100, -1, 1000, 60000, 100, new Semaphore(1));
+        assertTrue(budget.startLine(10));
+        assertTrue(budget.isLineOverdue());
+        budget.endLine();
+        assertTrue(budget.isExhausted());
+    }
+
+    @Test
+    void testHeavyLinesAreAdmittedOneAtATime() {
+        final Semaphore heavyRenders = new Semaphore(1);
+        final RenderBudget first = new RenderBudget(1000, 60000, 10000, 60000, 100, heavyRenders);
+        final RenderBudget second = new RenderBudget(1000, 60000, 10000, 60000, 100, heavyRenders);
+        assertTrue(first.startLine(500));
+        assertFalse(second.startLine(500));
+        // Only the heavy line is passed through.
+        assertFalse(second.isExhausted());
+        assertTrue(second.startLine(50));
+        second.endLine();
+        first.endLine();
+        assertEquals(1, heavyRenders.availablePermits());
+        assertTrue(second.startLine(500));
+        second.endLine();
+        assertEquals(1, heavyRenders.availablePermits());
+    }
+
+    @Test
+    void testMarkedOnce() {
+        final RenderBudget budget = new RenderBudget(100, 60000, 1000, 60000, 100, new Semaphore(1));
+        assertTrue(budget.mark());
+        assertFalse(budget.mark());
+    }
+}
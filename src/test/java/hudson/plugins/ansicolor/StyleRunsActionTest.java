@@ -0,0 +1,131 @@
+package hudson.plugins.ansicolor;
+
+import hudson.Launcher;
+import hudson.model.AbstractBuild;
+import hudson.model.BuildListener;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.junit.jupiter.api.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.jvnet.hudson.test.TestBuilder;
+import org.jvnet.hudson.test.junit.jupiter.WithJenkins;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@WithJenkins
+class StyleRunsActionTest {
+
+    @Test
+    void testStyleRuns(JenkinsRule jenkinsRule) throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+        p.getBuildWrappersList().add(new AnsiColorBuildWrapper(null));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                listener.getLogger().println("\u001B[1;34mbold and blue");
+                listener.getLogger().println("still bold\u001B[0m plain \u001B[38;2;1;2;3mrgb\u001B[0m");
+                return true;
+            }
+        });
+        FreeStyleBuild b = jenkinsRule.buildAndAssertSuccess(p);
+        JenkinsRule.WebClient wc = jenkinsRule.createWebClient();
+        JSONObject response = JSONObject.fromObject(wc.goTo(b.getUrl() + "ansiColor/styleRuns", "application/json").getWebResponse().getContentAsString());
+        assertFalse(response.getBoolean("more"));
+        final String text = response.getString("text");
+        assertTrue(text.contains("bold and blue\nstill bold plain rgb\n"), text);
+        assertFalse(text.contains("\u001B"), text);
+
+        final JSONArray runs = response.getJSONArray("runs");
+        final JSONArray styles = response.getJSONArray("styles");
+        final int blue = text.indexOf("bold and blue");
+        boolean foundBlue = false;
+        boolean foundRgb = false;
+        for (int i = 0; i < runs.size(); i += 3) {
+            final int offset = runs.getInt(i);
+            final JSONObject style = styles.getJSONObject(runs.getInt(i + 2));
+            if (offset == blue) {
+                assertEquals("bold and blue\nstill bold", text.substring(offset, offset + runs.getInt(i + 1)));
+                assertEquals(StyleState.BOLD, style.getInt("attributes"));
+                assertEquals(4, style.getInt("foreground"));
+                foundBlue = true;
+            } else if (text.startsWith("rgb", offset)) {
+                assertEquals("#010203", style.getString("foreground"));
+                foundRgb = true;
+            }
+        }
+        assertTrue(foundBlue && foundRgb, response.toString());
+
+        // A client continuing from the second line passes back the style carried over to it.
+        final String log = new String(b.getLogInputStream().readAllBytes(), b.getCharset());
+        final long secondLine = log.substring(0, log.indexOf("still bold")).getBytes(b.getCharset()).length;
+        final ByteArrayOutputStream state = new ByteArrayOutputStream();
+        StyleState.of(StyleState.BOLD, 4, AnsiHtmlOutputStream.NO_COLOR, false).writeTo(new DataOutputStream(state));
+        JSONObject continued = JSONObject.fromObject(wc.goTo(b.getUrl() + "ansiColor/styleRuns?start=" + secondLine + "&state=" +
+            Base64.getUrlEncoder().withoutPadding().encodeToString(state.toByteArray()), "application/json").getWebResponse().getContentAsString());
+        assertTrue(continued.getString("text").startsWith("still bold plain"), continued.toString());
+        assertEquals(0, continued.getJSONArray("runs").getInt(0));
+        assertEquals(StyleState.BOLD, continued.getJSONArray("styles").getJSONObject(continued.getJSONArray("runs").getInt(2)).getInt("attributes"));
+
+        // Colors passed back are validated.
+        final ByteArrayOutputStream invalid = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(invalid);
+        out.writeShort(1 << 9);
+        out.writeInt(300);
+        wc.assertFails(b.getUrl() + "ansiColor/styleRuns?state=" + Base64.getUrlEncoder().withoutPadding().encodeToString(invalid.toByteArray()), 400);
+    }
+
+    @Test
+    void testHtml(JenkinsRule jenkinsRule) throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+        p.getBuildWrappersList().add(new AnsiColorBuildWrapper(null));
+        p.getBuildersList().add(new TestBuilder() {
+            @Override
+            public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener) throws InterruptedException, IOException {
+                listener.getLogger().println("\u001B[31mred <tag>\u001B[0m plain");
+                return true;
+            }
+        });
+        FreeStyleBuild b = jenkinsRule.buildAndAssertSuccess(p);
+        String html = jenkinsRule.createWebClient().goTo(b.getUrl() + "ansiColor/html").getWebResponse().getContentAsString();
+        assertTrue(html.contains("<span style=\"color: #CD0000;\">red &lt;tag&gt;</span> plain"), html);
+    }
+
+    @Test
+    void testPalette(JenkinsRule jenkinsRule) throws Exception {
+        FreeStyleProject p = jenkinsRule.createFreeStyleProject();
+        p.getBuildWrappersList().add(new AnsiColorBuildWrapper("vga"));
+        FreeStyleBuild b = jenkinsRule.buildAndAssertSuccess(p);
+        JSONObject palette = JSONObject.fromObject(jenkinsRule.createWebClient().goTo(b.getUrl() + "ansiColor/palette?map=vga", "application/json").getWebResponse().getContentAsString());
+        assertEquals("vga", palette.getString("name"));
+        assertEquals(256, palette.getJSONArray("colors").size());
+        assertEquals(AnsiColorMap.VGA.getNormal(1), palette.getJSONArray("colors").getString(1));
+    }
+
+    @Test
+    void testCutLength() {
+        final byte[] chunk = "plain \u001B[1;3".getBytes(StandardCharsets.UTF_8);
+        assertEquals(6, StyleRunsAction.cutLength(chunk, chunk.length, true));
+        final byte[] complete = "plain \u001B[1;31mred".getBytes(StandardCharsets.UTF_8);
+        assertEquals(complete.length, StyleRunsAction.cutLength(complete, complete.length, true));
+        final byte[] escape = "plain \u001B".getBytes(StandardCharsets.UTF_8);
+        assertEquals(6, StyleRunsAction.cutLength(escape, escape.length, true));
+        final byte[] euro = "plain \u20AC".getBytes(StandardCharsets.UTF_8);
+        assertEquals(euro.length, StyleRunsAction.cutLength(euro, euro.length, true));
+        assertEquals(6, StyleRunsAction.cutLength(euro, euro.length - 1, true));
+        assertEquals(6, StyleRunsAction.cutLength(euro, euro.length - 2, true));
+        assertEquals(euro.length - 1, StyleRunsAction.cutLength(euro, euro.length - 1, false));
+        // Nothing but a partial sequence is not backed off from.
+        final byte[] sequence = "\u001B[1".getBytes(StandardCharsets.UTF_8);
+        assertEquals(sequence.length, StyleRunsAction.cutLength(sequence, sequence.length, true));
+    }
+}
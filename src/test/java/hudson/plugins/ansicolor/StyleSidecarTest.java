@@ -0,0 +1,139 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class StyleSidecarTest {
+
+    private static final String NOTE = "\033[8mha:AAAA\033[0m";
+
+    private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+    private final ByteArrayOutputStream sidecar = new ByteArrayOutputStream();
+
+    @Test
+    void testEscapeSequencesAreStripped() throws IOException {
+        record("plain \033[1mbold" + NOTE + "\033[0m\n");
+        assertEquals("plain bold" + NOTE + "\n", log.toString("UTF-8"));
+    }
+
+    @Test
+    void testConcealedTextIsKept() throws IOException {
+        final StyleSidecar.Index index = record("a \033[8msecret\033[28m b\n\033[8m" + NOTE + "hidden\033[0m\n");
+        assertEquals("a secret b\n" + NOTE + "hidden\n", log.toString("UTF-8"));
+        final StyleState concealed = StyleState.of(StyleState.CONCEAL, AnsiHtmlOutputStream.NO_COLOR, AnsiHtmlOutputStream.NO_COLOR, false);
+        assertStyles(index.getLineStyles(0), StyleState.DEFAULT, 0, concealed, 2, StyleState.DEFAULT, 8);
+        // A note while concealing is kept as well.
+        assertStyles(index.getLineStyles(1), concealed, 0, StyleState.DEFAULT, 6);
+    }
+
+    @Test
+    void testStylesAreKeyedByLineAndChar() throws IOException {
+        final StyleSidecar.Index index = record(
+            "plain\n" +
+            "a" + NOTE + "ü\033[1;31mbold red\n" +
+            "still bold red\n" +
+            "\033[0mplain again \033[4m\033[24m\n" +
+            "plain\n");
+        final StyleState boldRed = StyleState.of(StyleState.BOLD, 1, AnsiHtmlOutputStream.NO_COLOR, false);
+
+        assertStyles(index.getLineStyles(0), StyleState.DEFAULT, 0);
+        // Notes do not count as chars, neither does the second byte of ü.
+        assertStyles(index.getLineStyles(1), StyleState.DEFAULT, 0, boldRed, 2);
+        assertStyles(index.getLineStyles(2), boldRed, 0);
+        // Styles without any text are not recorded.
+        assertStyles(index.getLineStyles(3), StyleState.DEFAULT, 0);
+        assertStyles(index.getLineStyles(4), StyleState.DEFAULT, 0);
+    }
+
+    @Test
+    void testChangesAreRecordedFromTheBaseLineOn() throws IOException {
+        final StyleSidecar.Index index = record(10, 200, "\033[32mgreen\n");
+        assertStyles(index.getLineStyles(9), StyleState.DEFAULT, 0);
+        assertStyles(index.getLineStyles(10), StyleState.of(0, 2, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+    }
+
+    @Test
+    void testRecordCutShortIsLeftOut() throws IOException {
+        record("\033[32mgreen\n\033[33myellow\n");
+        final byte[] bytes = Arrays.copyOf(sidecar.toByteArray(), sidecar.size() - 3);
+        final StyleSidecar.Index index = StyleSidecar.Index.read(new ByteArrayInputStream(bytes), bytes.length);
+        assertStyles(index.getLineStyles(1), StyleState.of(0, 2, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+    }
+
+    @Test
+    void testAppendedRecorderStartsNewStyleTable() throws IOException {
+        record("\033[32mgreen\n\033[33myellow\n");
+        final StyleSidecar.Index index = record(2, log.size(), "\033[34mblue\n\033[35mmagenta\n");
+        assertStyles(index.getLineStyles(0), StyleState.of(0, 2, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+        assertStyles(index.getLineStyles(1), StyleState.of(0, 3, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+        assertStyles(index.getLineStyles(2), StyleState.of(0, 4, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+        assertStyles(index.getLineStyles(3), StyleState.of(0, 5, AnsiHtmlOutputStream.NO_COLOR, false), 0);
+    }
+
+    @Test
+    void testCheckpointsAreRecordedOnLinesWithoutChanges() throws IOException {
+        final StringBuilder text = new StringBuilder("\033[1mbold\n");
+        final String line = "still bold, but nothing changes on this line at all\n";
+        for (int i = 0; i < 20_000; i++) {
+            text.append(line);
+        }
+        final StyleSidecar.Index index = record(text.toString());
+        final long offset = log.size() - 1;
+        assertTrue(offset - index.getCheckpointOffset(offset) < 256 * 1024, String.valueOf(index.getCheckpointOffset(offset)));
+        assertEquals('\n', log.toByteArray()[(int) index.getCheckpointOffset(offset) - 1]);
+        // Checkpoints carry the style on.
+        final StyleState bold = StyleState.of(StyleState.BOLD, AnsiHtmlOutputStream.NO_COLOR, AnsiHtmlOutputStream.NO_COLOR, false);
+        for (long i = 1; i <= 20_000; i += 997) {
+            assertStyles(index.getLineStyles(i), bold, 0);
+        }
+    }
+
+    @Test
+    void testLinesAreCountedFromCheckpointsWhichStillMatchTheLog() throws IOException {
+        final String line = "nothing changes on this line at all\n";
+        final StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20_000; i++) {
+            text.append(line);
+        }
+        final StyleSidecar.Index index = record(text.toString());
+        final byte[] bytes = log.toByteArray();
+        final long offset = 19_000L * line.length();
+        assertTrue(index.getCheckpointOffset(offset) > 0);
+        assertEquals(19_000, index.getLineAt(new ByteArrayInputStream(bytes), offset, false));
+        assertEquals(19_001, index.getLineAt(new ByteArrayInputStream(bytes), offset + 1, true));
+        // A logger decorated below the recorder, such as one adding timestamps, moved the lines.
+        final byte[] decorated = new byte[bytes.length + 7];
+        System.arraycopy(bytes, 0, decorated, 7, bytes.length);
+        assertEquals(-1, index.getLineAt(new ByteArrayInputStream(decorated), offset, false));
+    }
+
+    private StyleSidecar.Index record(String text) throws IOException {
+        return record(0, 0, text);
+    }
+
+    private StyleSidecar.Index record(long baseLine, long baseOffset, String text) throws IOException {
+        final DataOutputStream out = new DataOutputStream(sidecar);
+        StyleSidecar.startSegment(out, sidecar.size() == 0);
+        try (StyleSidecar.Recorder recorder = new StyleSidecar.Recorder(log, out, baseLine, baseOffset, true)) {
+            recorder.write(text.getBytes(StandardCharsets.UTF_8));
+        }
+        return StyleSidecar.Index.read(new ByteArrayInputStream(sidecar.toByteArray()), sidecar.size());
+    }
+
+    private static void assertStyles(StyleSidecar.LineStyles styles, Object... expected) {
+        assertEquals(expected.length / 2, styles.size());
+        for (int i = 0; i < styles.size(); i++) {
+            assertEquals(expected[2 * i], styles.getState(i));
+            assertEquals(expected[2 * i + 1], styles.getStart(i));
+        }
+    }
+}
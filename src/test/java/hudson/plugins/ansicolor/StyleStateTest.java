@@ -0,0 +1,62 @@
+package hudson.plugins.ansicolor;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class StyleStateTest {
+
+    @Test
+    void testDefaultStateIsCompact() throws IOException {
+        assertEquals(2, write(StyleState.DEFAULT).length);
+        assertSame(StyleState.DEFAULT, read(write(StyleState.DEFAULT)));
+    }
+
+    @Test
+    void testRoundTrip() throws IOException {
+        final StyleState state = StyleState.of(StyleState.BOLD | StyleState.OVERLINE, 1 << 24 | 0x123456, 9, true);
+        assertEquals(state, read(write(state)));
+        assertEquals(StyleState.of(StyleState.FRAMED, -1, -2, false), read(write(StyleState.of(StyleState.FRAMED, -1, -2, false))));
+        assertEquals(StyleState.of(StyleState.CONCEAL | StyleState.BOLD, -1, -1, false), read(write(StyleState.of(StyleState.CONCEAL | StyleState.BOLD, -1, -1, false))));
+    }
+
+    @Test
+    void testInvalidColorsAreRejected() throws IOException {
+        for (int color : new int[]{256, -3, 1 << 25, 1 << 24 | 1 << 31}) {
+            final byte[] bytes = write(StyleState.of(0, color, -1, false));
+            assertThrows(IOException.class, () -> read(bytes));
+        }
+        assertEquals(StyleState.of(0, 255, 1 << 24 | 0xFFFFFF, false), read(write(StyleState.of(0, 255, 1 << 24 | 0xFFFFFF, false))));
+    }
+
+    @Test
+    void testOfElements() {
+        assertEquals(StyleState.of(StyleState.ITALIC | StyleState.UNDERLINE_DOUBLE, -1, -1, false), StyleState.ofElements(Arrays.asList(
+            new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.DEFAULT, "div", "style=\"color: #AAAAAA;\""),
+            AnsiAttributeElement.italic(),
+            new AnsiAttributeElement(AnsiAttributeElement.AnsiAttrType.FG, "span", "style=\"color: #CD0000;\""),
+            AnsiAttributeElement.underlineDouble()
+        )));
+    }
+
+    private static byte[] write(StyleState state) throws IOException {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bos)) {
+            state.writeTo(out);
+        }
+        return bos.toByteArray();
+    }
+
+    private static StyleState read(byte[] bytes) throws IOException {
+        return StyleState.readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
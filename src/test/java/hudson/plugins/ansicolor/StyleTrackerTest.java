@@ -0,0 +1,53 @@
+package hudson.plugins.ansicolor;
+
+import org.apache.commons.io.output.NullOutputStream;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class StyleTrackerTest {
+
+    @Test
+    void testFollowsTheStateOfTheHtmlStream() throws IOException {
+        final String[] texts = {
+            "plain",
+            "\033[1mbold\033[22m normal \033[2mfaint\033[1mboth",
+            "\033[3;4mitalic underline\033[21mdouble\033[24m\033[23m",
+            "\033[9;51;53mstrike framed overline\033[29m\033[54m\033[55m",
+            "\033[31;42mred on green\033[39mdefault on green\033[49m",
+            "\033[91;103mbright\033[38;5;196;48;5;17mextended\033[38;2;1;2;3mrgb",
+            "\033[7mnegative\033[39mdefault fg swapped\033[49mdefault bg swapped\033[27mpositive",
+            "\033[1;31mbold red\033[mreset\033[4;32m\033[0m",
+            "\033[38mignored\033[1;2;3;4;7;9mall\033[0;1m",
+        };
+        for (AnsiColorMap colorMap : new AnsiColorMap[] {AnsiColorMap.Default, AnsiColorMap.XTerm, AnsiColorMap.VGA}) {
+            for (String text : texts) {
+                final AnsiHtmlOutputStream html = new AnsiHtmlOutputStream(new NullOutputStream(), colorMap, markup -> { });
+                final StyleTracker tracker = new StyleTracker(colorMap, StyleState.DEFAULT);
+                try (AnsiEventStream stream = new AnsiEventStream(tracker)) {
+                    final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+                    html.write(bytes);
+                    stream.write(bytes);
+                    assertEquals(html.getState(), tracker.getState(), colorMap.getName() + ": " + text);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testConcealing() throws IOException {
+        final StyleTracker tracker = new StyleTracker(AnsiColorMap.Default, StyleState.of(StyleState.BOLD, 1, AnsiHtmlOutputStream.NO_COLOR, false));
+        try (AnsiEventStream stream = new AnsiEventStream(tracker)) {
+            // Could still be the preamble of a note until the next byte.
+            stream.write("\033[8mx".getBytes(StandardCharsets.UTF_8));
+            assertEquals(StyleState.of(StyleState.BOLD | StyleState.CONCEAL, 1, AnsiHtmlOutputStream.NO_COLOR, false), tracker.getState());
+            stream.write("\033[28m".getBytes(StandardCharsets.UTF_8));
+            assertEquals(StyleState.of(StyleState.BOLD, 1, AnsiHtmlOutputStream.NO_COLOR, false), tracker.getState());
+            stream.write("\033[8m\033[0m".getBytes(StandardCharsets.UTF_8));
+            assertEquals(StyleState.DEFAULT, tracker.getState());
+        }
+    }
+}
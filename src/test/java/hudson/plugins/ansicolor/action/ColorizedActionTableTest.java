@@ -0,0 +1,163 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.util.XStream2;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ColorizedActionTableTest {
+
+    @Test
+    void canFindActionsById() {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        final ColorizedAction start = new ColorizedAction("vga", ColorizedAction.Command.START);
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.START));
+        table.addWithId(start);
+        assertEquals(start, table.getById(start.getId()));
+        assertNull(table.getById("identifier_not_in_actions"));
+    }
+
+    @Test
+    void keepsActionsInOrder() {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        for (int i = 0; i < 1000; i++) {
+            table.add(new ColorizedAction("map" + i % 3, i % 2 == 0 ? ColorizedAction.Command.START : ColorizedAction.Command.STOP));
+        }
+        final List<ColorizedAction> actions = table.getActions();
+        assertEquals(1000, actions.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals("map" + i % 3, actions.get(i).getColorMapName());
+            assertEquals(i % 2 == 0 ? ColorizedAction.Command.START : ColorizedAction.Command.STOP, actions.get(i).getCommand());
+            assertEquals("", actions.get(i).getId());
+        }
+    }
+
+    @Test
+    void tracksCurrentColorMap() {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        assertNull(table.getCurrent());
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.START));
+        assertEquals("xterm", table.getCurrent().getColorMapName());
+        assertEquals(ColorizedAction.Command.CURRENT, table.getCurrent().getCommand());
+        table.add(new ColorizedAction("vga", ColorizedAction.Command.START));
+        assertEquals("vga", table.getCurrent().getColorMapName());
+        table.add(new ColorizedAction("vga", ColorizedAction.Command.STOP));
+        // The enclosing block is in effect again.
+        assertEquals("xterm", table.getCurrent().getColorMapName());
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.STOP));
+        assertNull(table.getCurrent());
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.STOP));
+        assertNull(table.getCurrent());
+    }
+
+    @Test
+    void tracksCurrentColorMapPerBlock() {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.START), "3");
+        table.add(new ColorizedAction("vga", ColorizedAction.Command.START), "7");
+        table.add(new ColorizedAction("css", ColorizedAction.Command.START), "12");
+        assertEquals("vga", table.getCurrent(Arrays.asList("9", "7", "2")).getColorMapName());
+        assertEquals("css", table.getCurrent(Arrays.asList("12", "7")).getColorMapName());
+        assertNull(table.getCurrent(Collections.singletonList("2")));
+        table.add(new ColorizedAction("css", ColorizedAction.Command.STOP), "12");
+        assertEquals("vga", table.getCurrent(Arrays.asList("12", "7")).getColorMapName());
+        // A branch stopping its block does not affect the other ones.
+        table.add(new ColorizedAction("xterm", ColorizedAction.Command.STOP), "3");
+        assertEquals("vga", table.getCurrent(Collections.singletonList("7")).getColorMapName());
+    }
+
+    @Test
+    void canAppendConcurrently() throws Exception {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            final String colorMapName = "map" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    table.add(new ColorizedAction(colorMapName, ColorizedAction.Command.START));
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        final List<ColorizedAction> actions = table.getActions();
+        assertEquals(8000, actions.size());
+        for (int t = 0; t < 8; t++) {
+            final String colorMapName = "map" + t;
+            assertEquals(1000, actions.stream().filter(a -> colorMapName.equals(a.getColorMapName())).count());
+        }
+    }
+
+    @Test
+    void canBeSavedAndLoaded() {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        final ColorizedAction start = new ColorizedAction("vga", ColorizedAction.Command.START);
+        table.addWithId(start);
+        table.add(new ColorizedAction("css", ColorizedAction.Command.START), "7");
+        for (int i = 0; i < 300; i++) {
+            table.add(new ColorizedAction("map" + i, ColorizedAction.Command.STOP));
+        }
+        final XStream2 xstream = new XStream2();
+        final String xml = xstream.toXML(table);
+        assertTrue(xml.contains("<entries>"), xml);
+        final ColorizedActionTable loaded = (ColorizedActionTable) xstream.fromXML(xml);
+        assertEquals(start, loaded.getById(start.getId()));
+        assertEquals(
+            table.getActions().stream().map(a -> a.getCommand() + ":" + a.getColorMapName()).collect(Collectors.toList()),
+            loaded.getActions().stream().map(a -> a.getCommand() + ":" + a.getColorMapName()).collect(Collectors.toList())
+        );
+        assertNull(loaded.getCurrent());
+        assertEquals("css", loaded.getCurrent(Collections.singletonList("7")).getColorMapName());
+    }
+
+    @Test
+    void canBeSavedWhileAppending() throws Exception {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        final Map<String, ColorizedAction> added = new ConcurrentHashMap<>();
+        final List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final String colorMapName = "map" + t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 2000; i++) {
+                    final ColorizedAction action = new ColorizedAction(colorMapName, i % 2 == 0 ? ColorizedAction.Command.START : ColorizedAction.Command.STOP);
+                    added.put(action.getId(), action);
+                    table.addWithId(action);
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        final XStream2 xstream = new XStream2();
+        final List<String> saved = new ArrayList<>();
+        while (threads.stream().anyMatch(Thread::isAlive)) {
+            saved.add(xstream.toXML(table));
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        saved.add(xstream.toXML(table));
+        int loadedSize = 0;
+        for (String xml : saved) {
+            final List<ColorizedAction> loaded = ((ColorizedActionTable) xstream.fromXML(xml)).getActions();
+            loadedSize = loaded.size();
+            for (ColorizedAction action : loaded) {
+                // Commands appended while saving may be saved before their id is.
+                if (!action.getId().isEmpty()) {
+                    assertEquals(added.get(action.getId()), action);
+                }
+            }
+        }
+        assertEquals(8000, loadedSize);
+    }
+}
@@ -8,8 +8,6 @@ import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
-import java.util.Arrays;
-
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_BEGIN;
 import static hudson.plugins.ansicolor.action.ActionNote.TAG_ACTION_END;
 import static hudson.plugins.ansicolor.action.ColorizedAction.CONTINUE;
@@ -25,7 +23,6 @@ class ColorizedActionTest {
     private static final ColorizedAction ACTION_2 = new ColorizedAction("map0", ColorizedAction.Command.STOP);
     private static final ColorizedAction ACTION_3 = new ColorizedAction("map3", ColorizedAction.Command.START);
     private static final ColorizedAction ACTION_4 = new ColorizedAction("map3", ColorizedAction.Command.STOP);
-    private static final ColorizedAction ACTION_5 = new ColorizedAction("map0", ColorizedAction.Command.CURRENT);
 
     private ColorizedAction colorizedAction;
 
@@ -40,21 +37,20 @@ class ColorizedActionTest {
 
     @BeforeEach
     void setUp() throws Exception {
-        when(buildRunSingleStart.getActions(eq(ColorizedAction.class))).thenReturn(Arrays.asList(
+        when(buildRunSingleStart.getAction(eq(ColorizedActionTable.class))).thenReturn(table(
             ACTION_0,
             ACTION_1,
             ACTION_2
         ));
-        when(buildRunMultipleStarts.getActions(eq(ColorizedAction.class))).thenReturn(Arrays.asList(
+        when(buildRunMultipleStarts.getAction(eq(ColorizedActionTable.class))).thenReturn(table(
             ACTION_0,
             ACTION_1,
             ACTION_2,
             ACTION_3,
             ACTION_4
         ));
-        when(buildRunOneCurrent.getActions(eq(ColorizedAction.class))).thenReturn(Arrays.asList(
-            ACTION_0,
-            ACTION_5
+        when(buildRunOneCurrent.getAction(eq(ColorizedActionTable.class))).thenReturn(table(
+            ACTION_0
         ));
 
         colorizedAction = new ColorizedAction("vga", ColorizedAction.Command.START);
@@ -127,7 +123,9 @@ class ColorizedActionTest {
     void canParseActionCurrentWhileBuildRunning() {
         when(buildRunOneCurrent.isBuilding()).thenReturn(true);
         final MarkupText markupText = new MarkupText("Log line");
-        assertEquals(ACTION_5, ColorizedAction.parseAction(markupText, buildRunOneCurrent));
+        final ColorizedAction currentAction = ColorizedAction.parseAction(markupText, buildRunOneCurrent);
+        assertEquals(ColorizedAction.Command.CURRENT, currentAction.getCommand());
+        assertEquals("map0", currentAction.getColorMapName());
     }
 
     @Test
@@ -143,4 +141,12 @@ class ColorizedActionTest {
         final MarkupText markupText = new MarkupText("Log line");
         assertEquals(CONTINUE, ColorizedAction.parseAction(markupText, buildRunSingleStart));
     }
+
+    private static ColorizedActionTable table(ColorizedAction... actions) {
+        final ColorizedActionTable table = new ColorizedActionTable();
+        for (ColorizedAction action : actions) {
+            table.addWithId(action);
+        }
+        return table;
+    }
 }
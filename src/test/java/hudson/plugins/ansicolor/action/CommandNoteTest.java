@@ -0,0 +1,59 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.MarkupText;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import static hudson.plugins.ansicolor.action.CommandNote.TAG_COMMAND_BEGIN;
+import static hudson.plugins.ansicolor.action.CommandNote.TAG_COMMAND_END;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CommandNoteTest {
+
+    @Test
+    void canAnnotate() {
+        final MarkupText markupText = new MarkupText("abc123");
+        assertNull(new CommandNote(new ColorizedAction("vga", ColorizedAction.Command.START)).annotate(null, markupText, 4));
+        assertTrue(markupText.toString(false).contains(TAG_COMMAND_BEGIN + "\"START:vga\"" + TAG_COMMAND_END));
+    }
+
+    @Test
+    void canParseAnnotation() {
+        final ColorizedAction action = ColorizedAction.parseAction(annotated(new ColorizedAction("my \"map\": 1", ColorizedAction.Command.STOP)), null);
+        assertEquals(ColorizedAction.Command.STOP, action.getCommand());
+        assertEquals("my \"map\": 1", action.getColorMapName());
+    }
+
+    @Test
+    void willNotParseMalformedAnnotation() {
+        assertNull(CommandNote.parse("START"));
+        assertNull(CommandNote.parse("BEGIN:xterm"));
+    }
+
+    @Test
+    void canSerialize() throws Exception {
+        final ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bos)) {
+            out.writeObject(new CommandNote(new ColorizedAction("xterm", ColorizedAction.Command.START)));
+        }
+        final CommandNote note;
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()))) {
+            note = (CommandNote) in.readObject();
+        }
+        final MarkupText markupText = new MarkupText("abc");
+        note.annotate(null, markupText, 0);
+        assertTrue(markupText.toString(false).contains("\"START:xterm\""));
+    }
+
+    private static MarkupText annotated(ColorizedAction action) {
+        final MarkupText markupText = new MarkupText("Log line");
+        new CommandNote(action).annotate(null, markupText, 0);
+        return markupText;
+    }
+}
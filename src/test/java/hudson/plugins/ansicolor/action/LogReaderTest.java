@@ -0,0 +1,149 @@
+package hudson.plugins.ansicolor.action;
+
+import hudson.console.AnnotatedLargeText;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LogReaderTest {
+
+    @TempDir
+    File dir;
+
+    private final byte[] log = new byte[100_000];
+
+    @BeforeEach
+    void setUp() {
+        for (int i = 0; i < log.length; i++) {
+            log[i] = (byte) (i % 80 == 79 ? '\n' : 'a' + (i * 31 + i / 80) % 26);
+        }
+    }
+
+    @Test
+    void canReadPlainLog() throws IOException {
+        final File file = new File(dir, "log");
+        Files.write(file.toPath(), log);
+        try (LogReader reader = LogReader.open(file)) {
+            assertTrue(reader.isSeekable());
+            assertEquals(log.length, reader.length());
+            assertReads(reader);
+        }
+    }
+
+    @Test
+    void canReadBlockCompressedLog() throws IOException {
+        final File file = new File(dir, "log.gz");
+        writeBlocks(file, 7000);
+        try (LogReader reader = LogReader.open(file)) {
+            assertTrue(reader.isSeekable());
+            assertEquals(log.length, reader.length());
+            assertReads(reader);
+        }
+    }
+
+    @Test
+    void canReadCompressedLog() throws IOException {
+        final File file = new File(dir, "log.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file.toPath()))) {
+            out.write(log);
+        }
+        try (LogReader reader = LogReader.open(file)) {
+            assertFalse(reader.isSeekable());
+            assertEquals(log.length, reader.length());
+            assertReads(reader);
+            assertEquals(log.length, reader.getVerifiedLength());
+        }
+    }
+
+    @Test
+    void lengthOfConcatenatedLogIsVerified() throws IOException {
+        final File file = new File(dir, "log.gz");
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int i = 0; i < 2; i++) {
+                final GZIPOutputStream member = new GZIPOutputStream(out);
+                member.write(log);
+                member.finish();
+            }
+        }
+        try (LogReader reader = LogReader.open(file)) {
+            // Only the size of the last member is recorded at the end of the file.
+            assertEquals(log.length, reader.length());
+            assertEquals(2L * log.length, reader.getVerifiedLength());
+        }
+    }
+
+    @Test
+    void canReadLogThroughLogApi() throws IOException {
+        final File file = new File(dir, "log");
+        Files.write(file.toPath(), log);
+        try (LogReader reader = LogReader.of(new AnnotatedLargeText<>(file, StandardCharsets.UTF_8, true, null))) {
+            assertTrue(reader.isSeekable());
+            assertEquals(log.length, reader.length());
+            assertReads(reader);
+        }
+    }
+
+    private void assertReads(LogReader reader) throws IOException {
+        final byte[] buf = new byte[20_000];
+        // Overlapping reads, going forward and back.
+        for (int position : new int[]{0, 15_000, 30_000, 90_000, 50_000, 5}) {
+            final int read = reader.read(position, buf, 0, buf.length);
+            assertEquals(Math.min(buf.length, log.length - position), read);
+            assertArrayEquals(Arrays.copyOfRange(log, position, position + read), Arrays.copyOf(buf, read));
+        }
+        assertEquals(0, reader.read(log.length, buf, 0, buf.length));
+    }
+
+    /**
+     * Writes the log as gzip members holding the given number of bytes each, recording their size as {@code bgzip}
+     * does, followed by an empty member marking the end.
+     */
+    private void writeBlocks(File file, int blockSize) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file.toPath())) {
+            for (int position = 0; position < log.length; position += blockSize) {
+                writeBlock(out, position, Math.min(blockSize, log.length - position));
+            }
+            writeBlock(out, log.length, 0);
+        }
+    }
+
+    private void writeBlock(OutputStream out, int position, int length) throws IOException {
+        final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(log, position, length);
+        deflater.finish();
+        final byte[] compressed = new byte[length + 1024];
+        final int compressedLength = deflater.deflate(compressed);
+        deflater.end();
+        final CRC32 crc = new CRC32();
+        crc.update(log, position, length);
+        final int size = 18 + compressedLength + 8;
+        final ByteArrayOutputStream member = new ByteArrayOutputStream();
+        member.write(new byte[]{0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0, (byte) (size - 1), (byte) ((size - 1) >> 8)});
+        member.write(compressed, 0, compressedLength);
+        writeInt(member, (int) crc.getValue());
+        writeInt(member, length);
+        member.writeTo(out);
+    }
+
+    private static void writeInt(OutputStream out, int value) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.write(value >> 8 * i);
+        }
+    }
+}
@@ -5,12 +5,17 @@ import hudson.console.ConsoleNote;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
+import java.nio.file.Files;
 import java.util.HashMap;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
@@ -69,15 +74,29 @@ class ShortlogActionCreatorTest {
         canCreateActionForShortlog(new ShortlogActionCreator(lineIdentifier, eol), "[Pipeline] echo" + eol, "testlog-crlf.log", false);
     }
 
+    @Test
+    void canCreateActionForShortlogOfCompressedLog(@TempDir File dir) throws IOException {
+        final URL inputFile = getClass().getResource(String.join("/", "", getClass().getName().replace('.', '/'), "testlog.log"));
+        assumeTrue(inputFile != null);
+        final File file = new File(dir, "log.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(file.toPath()))) {
+            Files.copy(new File(inputFile.getFile()).toPath(), out);
+        }
+        canCreateActionForShortlog(shortlogActionCreator, "[Pipeline] echo\n", file, false);
+    }
+
     private void canCreateActionForShortlog(ShortlogActionCreator shortlogActionCreator, String shortlogLine, String logFile, boolean keepLinesWhole) {
+        final URL inputFile = getClass().getResource(String.join("/", "", getClass().getName().replace('.', '/'), logFile));
+        assumeTrue(inputFile != null);
+        canCreateActionForShortlog(shortlogActionCreator, shortlogLine, new File(inputFile.getFile()), keepLinesWhole);
+    }
+
+    private void canCreateActionForShortlog(ShortlogActionCreator shortlogActionCreator, String shortlogLine, File file, boolean keepLinesWhole) {
         final String lineHash = "mock-line-hash";
         final ColorizedAction colorizedAction = new ColorizedAction("xterm", ColorizedAction.Command.START);
         final String serializedNote = "<mock-serialized-note-start>";
         when(lineIdentifier.hash(eq(shortlogLine), eq(1L))).thenReturn(lineHash);
 
-        final URL inputFile = getClass().getResource(String.join("/", "", getClass().getName().replace('.', '/'), logFile));
-        assumeTrue(inputFile != null);
-        final File file = new File(inputFile.getFile());
         final HashMap<String, ColorizedAction> startActions = new HashMap<>();
         startActions.put(ConsoleNote.PREAMBLE_STR + "<mock-serialized-note-start0>", new ColorizedAction("css", ColorizedAction.Command.START));
         startActions.put(ConsoleNote.PREAMBLE_STR + "<mock-serialized-note-stop0>", new ColorizedAction("css", ColorizedAction.Command.STOP));